@@ -0,0 +1,79 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The cost of a node's status check (interpreting every endpoint it knows about) and of reporting heartbeats, with
+ * arrival windows that have already filled up with a history of roughly one second intervals.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FailureDetectorBenchmark
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int HISTORY = 1000;
+
+    @Param({"100", "1000", "10000"})
+    public int clusterSize;
+
+    private List<InetAddress> endpoints;
+    private SimulatedFailureDetector failureDetector;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException
+    {
+        endpoints = new ArrayList<>(clusterSize);
+        for (int i = 0; i < clusterSize; i++)
+            endpoints.add(InetAddress.getByAddress(new byte[]{ 127, (byte) (i >> 16), (byte) (i >> 8), (byte) i }));
+
+        SimulationScheduler scheduler = new DiscreteEventScheduler(new Runnable()
+        {
+            public void run()
+            {
+            }
+        });
+        IFailureDetectionEventListener listener = new IFailureDetectionEventListener()
+        {
+            public void convict(InetAddress ep, double phi)
+            {
+            }
+        };
+        failureDetector = new SimulatedFailureDetector(scheduler, listener, new FailureDetectorStats());
+
+        now = SECOND;
+        for (int i = 0; i < HISTORY; i++)
+        {
+            // jitter the intervals a little, so the mean isn't exact
+            now += SECOND - (i % 7) * 1000;
+            for (InetAddress ep : endpoints)
+                failureDetector.report(ep, now);
+        }
+    }
+
+    @Benchmark
+    public void interpretAll()
+    {
+        long t = now + SECOND / 2;
+        for (InetAddress ep : endpoints)
+            failureDetector.interpret(ep, t);
+    }
+
+    @Benchmark
+    public void reportAll()
+    {
+        now += SECOND;
+        for (InetAddress ep : endpoints)
+            failureDetector.report(ep, now);
+    }
+}
@@ -0,0 +1,157 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-round costs of the gossip hot paths, as seen by a single node. The local node knows about every endpoint in the
+ * cluster; the remote node has the same endpoints, but with newer application states for a tenth of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GossiperBenchmark
+{
+    private static final int GENERATION = 1;
+
+    @Param({"100", "1000", "10000"})
+    public int clusterSize;
+
+    @Param({"4", "16"})
+    public int appStateCount;
+
+    private List<InetAddress> endpoints;
+    /* shared by every gossiper here, so all their values are versioned from the one counter */
+    private CustomMessagingService messaging;
+    private GossiperSimulator local;
+    private GossiperSimulator remote;
+    private List<GossipDigest> remoteDigests;
+    private Map<InetAddress, EndpointState> remoteDeltas;
+    private GossipDigestSynVerbHandlerSimulator synHandler;
+
+    /** a node that knows everything the local node knows, but nothing newer; rebuilt for every apply invocation */
+    private GossiperSimulator behind;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException
+    {
+        endpoints = new ArrayList<>(clusterSize);
+        for (int i = 0; i < clusterSize; i++)
+            endpoints.add(InetAddress.getByAddress(new byte[]{ 127, (byte) (i >> 16), (byte) (i >> 8), (byte) i }));
+        messaging = new CustomMessagingService(new DiscreteEventScheduler(new Runnable()
+        {
+            public void run()
+            {
+            }
+        }));
+
+        local = newGossiper();
+        // copy, rather than build a new one, so the remote's new LOAD values are the only versions the local lacks
+        remote = copyOf(local);
+        for (int i = 0; i < clusterSize; i += 10)
+        {
+            InetAddress ep = endpoints.get(i);
+            remote.injectApplicationState(ep, ApplicationState.LOAD, messaging.values.load(i));
+        }
+
+        remoteDigests = new ArrayList<>(clusterSize);
+        remote.makeRandomGossipDigest(remoteDigests);
+
+        remoteDeltas = new HashMap<>();
+        for (InetAddress ep : endpoints)
+        {
+            EndpointState delta = remote.getStateForVersionBiggerThan(ep, local.getMaxEndpointStateVersion(local.getEndpointStateForEndpoint(ep)));
+            if (delta != null)
+                remoteDeltas.put(ep, delta);
+        }
+
+        synHandler = new GossipDigestSynVerbHandlerSimulator();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupBehind()
+    {
+        behind = copyOf(local);
+    }
+
+    private GossiperSimulator emptyGossiper()
+    {
+        return new GossiperSimulator(endpoints.get(0), Collections.<InetAddress>emptyList(), messaging);
+    }
+
+    private GossiperSimulator copyOf(GossiperSimulator source)
+    {
+        GossiperSimulator copy = emptyGossiper();
+        for (Map.Entry<InetAddress, EndpointState> entry : source.endpointStateMap.entrySet())
+        {
+            EndpointState state = new MaxVersionEndpointState(entry.getValue().getHeartBeatState());
+            for (Map.Entry<ApplicationState, VersionedValue> appState : entry.getValue().getApplicationStateMap().entrySet())
+                state.addApplicationState(appState.getKey(), appState.getValue());
+            state.markAlive();
+            copy.putEndpointState(entry.getKey(), state);
+        }
+        return copy;
+    }
+
+    private GossiperSimulator newGossiper()
+    {
+        GossiperSimulator gossiper = emptyGossiper();
+        ApplicationState[] states = ApplicationState.values();
+        for (InetAddress ep : endpoints)
+        {
+            gossiper.initializeNodeUnsafe(ep, new UUID(0, ep.hashCode()), GENERATION);
+            // skip STATUS, as it's parsed for dead states
+            for (int i = 1; i <= appStateCount && i < states.length; i++)
+                gossiper.injectApplicationState(ep, states[i], messaging.values.rack("rack" + i));
+        }
+        return gossiper;
+    }
+
+    @Benchmark
+    public List<GossipDigest> makeRandomGossipDigest()
+    {
+        List<GossipDigest> digests = new ArrayList<>(clusterSize);
+        local.makeRandomGossipDigest(digests);
+        return digests;
+    }
+
+    @Benchmark
+    public void examineGossiper(Blackhole bh)
+    {
+        List<GossipDigest> deltaDigests = new ArrayList<>();
+        Map<InetAddress, EndpointState> deltaStates = new HashMap<>();
+        local.examineGossiper(remoteDigests, deltaDigests, deltaStates);
+        bh.consume(deltaDigests);
+        bh.consume(deltaStates);
+    }
+
+    @Benchmark
+    public List<GossipDigest> doSort()
+    {
+        List<GossipDigest> digests = new ArrayList<>(remoteDigests);
+        synHandler.doSort(digests, local);
+        return digests;
+    }
+
+    @Benchmark
+    public void getStateForVersionBiggerThan(Blackhole bh)
+    {
+        for (GossipDigest digest : remoteDigests)
+            bh.consume(local.getStateForVersionBiggerThan(digest.getEndpoint(), digest.getMaxVersion()));
+    }
+
+    @Benchmark
+    public GossiperSimulator applyStateLocally()
+    {
+        behind.applyStateLocally(remoteDeltas);
+        return behind;
+    }
+}
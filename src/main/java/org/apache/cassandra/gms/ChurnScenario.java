@@ -0,0 +1,357 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node churn, played out in the middle of a simulation:
+ * <ul>
+ * <li>bounce - a node goes down for a while, then comes back with a newer generation</li>
+ * <li>add - a brand new node joins</li>
+ * <li>remove - a node goes down, and a coordinator removes it with advertiseRemoving and advertiseTokenRemoved</li>
+ * <li>replace - a node goes down, and a new node takes over its address after a shadow round with the seeds</li>
+ * <li>change - a node changes one of its application states (LOAD), without going anywhere</li>
+ * </ul>
+ * Remove and replace are played out with the Cassandra gossiper's own operations, so are skipped (with a warning)
+ * for the other protocols.
+ *
+ * Events are specified as {@code <kind>@<round>,...}, e.g. {@code bounce@20,add@25,remove@30,replace@40}, and pick
+ * their node at random from the non-seed nodes that are up. Each event is stepped once per round from the round
+ * action, so the waits (RING_DELAY, the shadow round, ...) are counted in rounds rather than slept through.
+ *
+ * Once all the events in flight have played out, the next time the cluster converges the rounds and messages it took
+ * are recorded against them.
+ */
+public class ChurnScenario
+{
+    private static final Logger logger = LoggerFactory.getLogger(ChurnScenario.class);
+
+    /** rounds a bounced or replaced node stays down for */
+    static final int DOWN_ROUNDS = Integer.getInteger("gossipocolypse.churn.down", 5);
+
+    /**
+     * What the scenario needs from the simulation.
+     */
+    interface Cluster
+    {
+        CustomMessagingService messaging();
+
+        boolean isSeed(InetAddress addr);
+
+        /** an address that has never been used in this simulation */
+        InetAddress nextAddress();
+
+        /** create and register, but don't start, a node */
+        SimulatedNode newNode(InetAddress addr);
+
+        Map<ApplicationState, VersionedValue> appStates(InetAddress addr, UUID hostId);
+
+        /** seeded from the simulation, so a run picks the same nodes when it's replayed */
+        Random random();
+
+        UUID newHostId();
+    }
+
+    private final Cluster cluster;
+    private final PriorityQueue<Event> pending = new PriorityQueue<>(11, new Comparator<Event>()
+    {
+        public int compare(Event e1, Event e2)
+        {
+            return Integer.compare(e1.round, e2.round);
+        }
+    });
+    private final List<Event> active = new ArrayList<>();
+    // nodes taking part in an event in flight, so two events don't pick the same node
+    private final Set<InetAddress> busy = new HashSet<>();
+    private final List<Event> awaitingConvergence = new ArrayList<>();
+    private int lastFinishedRound;
+    private long messagesAtLastFinish;
+    private long bytesAtLastFinish;
+
+    ChurnScenario(Cluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @param spec the events, or null for none
+     */
+    public static ChurnScenario parse(String spec, Cluster cluster)
+    {
+        ChurnScenario scenario = new ChurnScenario(cluster);
+        if (spec == null)
+            return scenario;
+        for (String entry : spec.split(","))
+        {
+            String[] parts = entry.trim().split("@");
+            if (parts.length != 2)
+                throw new IllegalArgumentException("expected <kind>@<round>, got " + entry);
+            scenario.schedule(Kind.valueOf(parts[0].toUpperCase()), Integer.parseInt(parts[1]));
+        }
+        return scenario;
+    }
+
+    void schedule(Kind kind, int round)
+    {
+        pending.add(new Event(kind, round));
+    }
+
+    /**
+     * @return true once every event has played out
+     */
+    public boolean isDone()
+    {
+        return pending.isEmpty() && active.isEmpty();
+    }
+
+    /**
+     * Start any events that are due, and move those in flight along. Called once per round, from the round action.
+     */
+    void tick(int round)
+    {
+        while (!pending.isEmpty() && pending.peek().round <= round)
+            active.add(pending.poll());
+
+        for (Iterator<Event> iter = active.iterator(); iter.hasNext(); )
+        {
+            Event event = iter.next();
+            boolean finished;
+            try
+            {
+                finished = event.step(round);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("churn event {} failed", event, e);
+                finished = true;
+            }
+            if (finished)
+            {
+                iter.remove();
+                if (event.victim != null)
+                    busy.remove(event.victim);
+                if (event.coordinator != null)
+                    busy.remove(event.coordinator.address());
+                logger.warn("****** churn event {} played out in round {}", event, round);
+                awaitingConvergence.add(event);
+                SimulationMetrics metrics = cluster.messaging().metrics;
+                lastFinishedRound = round;
+                messagesAtLastFinish = metrics.totalMessages();
+                bytesAtLastFinish = metrics.totalMessageBytes();
+            }
+        }
+    }
+
+    /**
+     * Let the scenario know the cluster has converged, so it can record what it took to get there after the churn.
+     */
+    void converged(int round, SimulationMetrics metrics)
+    {
+        if (awaitingConvergence.isEmpty() || !active.isEmpty())
+            return;
+        StringBuilder events = new StringBuilder();
+        for (Event event : awaitingConvergence)
+        {
+            if (events.length() > 0)
+                events.append('+');
+            events.append(event);
+        }
+        awaitingConvergence.clear();
+
+        int rounds = round - lastFinishedRound;
+        long messages = metrics.totalMessages() - messagesAtLastFinish;
+        long bytes = metrics.totalMessageBytes() - bytesAtLastFinish;
+        logger.warn("****** reconverged {} rounds and {} messages after {}", new Object[]{ rounds, messages, events });
+        metrics.recordChurn(events.toString(), rounds, messages, bytes);
+    }
+
+    /* a non-seed node that is up and not already caught up in another event, or null if there isn't one */
+    private SimulatedNode pick()
+    {
+        List<SimulatedNode> candidates = new ArrayList<>();
+        for (SimulatedNode node : cluster.messaging().gossipers.values())
+        {
+            if (node.isEnabled() && !cluster.isSeed(node.address()) && !busy.contains(node.address()))
+                candidates.add(node);
+        }
+        if (candidates.isEmpty())
+            return null;
+        SimulatedNode picked = candidates.get(cluster.random().nextInt(candidates.size()));
+        busy.add(picked.address());
+        return picked;
+    }
+
+    /* the rounds advertiseRemoving and the shadow round would wait for */
+    private int ringDelayRounds()
+    {
+        return (int) (GossiperSimulator.RING_DELAY / cluster.messaging().scheduler().intervalMillis());
+    }
+
+    private UUID hostId(SimulatedNode node)
+    {
+        VersionedValue hostId = node.getEndpointStateForEndpoint(node.address()).getApplicationState(ApplicationState.HOST_ID);
+        return hostId == null ? cluster.newHostId() : UUID.fromString(hostId.value);
+    }
+
+    enum Kind { BOUNCE, ADD, REMOVE, REPLACE, CHANGE }
+
+    class Event
+    {
+        final Kind kind;
+        final int round;
+
+        // which step the event is on, and the round it got there
+        int step;
+        int stepRound;
+
+        InetAddress victim;
+        int generation;
+        UUID hostId;
+        GossiperSimulator coordinator;
+        GossiperSimulator replacement;
+
+        Event(Kind kind, int round)
+        {
+            this.kind = kind;
+            this.round = round;
+        }
+
+        /**
+         * @return true when the event has played out
+         */
+        boolean step(int now)
+        {
+            if (step == 0)
+            {
+                if (kind == Kind.ADD)
+                {
+                    InetAddress addr = cluster.nextAddress();
+                    cluster.newNode(addr).start(0, cluster.appStates(addr, cluster.newHostId()));
+                    victim = addr;
+                    return true;
+                }
+
+                SimulatedNode node = pick();
+                if (node == null)
+                {
+                    logger.warn("no node available for churn event {}", this);
+                    return true;
+                }
+                victim = node.address();
+                if ((kind == Kind.REMOVE || kind == Kind.REPLACE) && !(node instanceof GossiperSimulator))
+                {
+                    logger.warn("churn event {} needs the Cassandra gossiper, skipping it", this);
+                    return true;
+                }
+                if (kind == Kind.CHANGE)
+                {
+                    node.addLocalApplicationState(ApplicationState.LOAD, cluster.messaging().values.load(cluster.random().nextInt(1 << 30)));
+                    return true;
+                }
+                generation = node.getEndpointStateForEndpoint(victim).getHeartBeatState().getGeneration();
+                hostId = hostId(node);
+                cluster.messaging().deregister(node);
+                return advance(now);
+            }
+
+            switch (kind)
+            {
+                case BOUNCE: return bounce(now);
+                case REMOVE: return remove(now);
+                case REPLACE: return replace(now);
+                default: throw new IllegalStateException("unknown step " + step + " for " + this);
+            }
+        }
+
+        private boolean advance(int now)
+        {
+            step++;
+            stepRound = now;
+            return false;
+        }
+
+        private boolean bounce(int now)
+        {
+            if (now - stepRound < DOWN_ROUNDS)
+                return false;
+            cluster.newNode(victim).start(generation + 1, cluster.appStates(victim, hostId));
+            return true;
+        }
+
+        private boolean remove(int now)
+        {
+            switch (step)
+            {
+                case 1:
+                    // removenode needs a coordinator that has seen the node go down
+                    if (coordinator == null)
+                    {
+                        coordinator = (GossiperSimulator) pick();
+                        if (coordinator == null)
+                        {
+                            logger.warn("no coordinator available for churn event {}", this);
+                            return true;
+                        }
+                    }
+                    EndpointState epState = coordinator.getEndpointStateForEndpoint(victim);
+                    if (CustomMessagingService.FAILURE_DETECTION && epState != null && epState.isAlive())
+                        return false;
+                    if (epState != null)
+                        generation = epState.getHeartBeatState().getGeneration();
+                    return advance(now);
+                case 2:
+                    // advertiseRemoving would sleep RING_DELAY to make sure the generation doesn't change
+                    if (now - stepRound < ringDelayRounds())
+                        return false;
+                    InetAddress owner = coordinator.address();
+                    cluster.messaging().convergence.transfer(victim, owner, ConvergenceTracker.fingerprint(victim, coordinator.getEndpointStateForEndpoint(victim)));
+                    coordinator.advertiseRemovingNoWait(victim, generation, hostId, hostId(coordinator));
+                    return advance(now);
+                case 3:
+                    // give the removing status a couple of rounds to spread
+                    if (now - stepRound < 2)
+                        return false;
+                    coordinator.advertiseTokenRemovedNoWait(victim, hostId);
+                    return advance(now);
+                default:
+                    // ensure at least one gossip round occurs, as advertiseTokenRemoved does
+                    return now - stepRound >= 2;
+            }
+        }
+
+        private boolean replace(int now)
+        {
+            switch (step)
+            {
+                case 1:
+                    if (now - stepRound < DOWN_ROUNDS)
+                        return false;
+                    replacement = (GossiperSimulator) cluster.newNode(victim);
+                    replacement.doShadowRound();
+                    return advance(now);
+                default:
+                    if (replacement.isInShadowRound())
+                    {
+                        if (now - stepRound < ringDelayRounds())
+                            return false;
+                        logger.error("replacement for {} was unable to gossip with any seeds", victim);
+                        cluster.messaging().deregister(replacement);
+                        return true;
+                    }
+                    // the replacement has the cluster's view now; start over with a new host id, as a replacement would
+                    replacement.resetEndpointStateMap();
+                    replacement.start(generation + 1, cluster.appStates(victim, cluster.newHostId()));
+                    return true;
+            }
+        }
+
+        public String toString()
+        {
+            String s = kind.name().toLowerCase() + '@' + round;
+            return victim == null ? s : s + '(' + victim.getHostAddress() + ')';
+        }
+    }
+}
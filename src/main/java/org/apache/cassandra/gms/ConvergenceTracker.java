@@ -0,0 +1,155 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incrementally tracks whether every node's view of the cluster agrees with each endpoint's own state.
+ *
+ * Each (endpoint, state) pair is reduced to a 64-bit fingerprint of the endpoint, generation, max application state
+ * version and number of application states (heartbeat versions are ignored, as they never converge). Every node keeps
+ * the sum of the fingerprints of all the endpoints it knows about, and the tracker keeps the sum of the fingerprints
+ * of each endpoint's state as the endpoint itself knows it. A node has converged when its sum equals the expected sum,
+ * so the whole cluster can be checked in O(N) - and each state change costs O(1) - instead of comparing the full
+ * state maps. As this is based on hashes, a positive answer should be confirmed by {@link ConvergenceVerifier}.
+ *
+ * Callers must not update the same node concurrently, as a change is applied as the delta between the fingerprint
+ * before and after the change.
+ *
+ * An endpoint is normally the owner of its own state. Once a node has been removed from the cluster, the node
+ * coordinating the removal becomes the owner (see {@link #transfer(InetAddress, InetAddress, long)}), as it is the
+ * one now updating the removed endpoint's state.
+ */
+public class ConvergenceTracker
+{
+    private final AtomicLong expected = new AtomicLong();
+    private final Map<InetAddress, AtomicLong> observed = new IndexedEndpointMap<>();
+    // endpoints that are owned by another node
+    private final Map<InetAddress, InetAddress> owners = new IndexedEndpointMap<>();
+
+    void register(InetAddress node)
+    {
+        observed.put(node, new AtomicLong());
+    }
+
+    void unregister(InetAddress node)
+    {
+        observed.remove(node);
+    }
+
+    /**
+     * Stop observing a node that is going down, and, if it still owns its own state, drop its state from the expected
+     * sum: nobody can agree with a node that isn't there.
+     *
+     * @param selfFingerprint the fingerprint of the node's state as it knows it
+     */
+    void unregister(InetAddress node, long selfFingerprint)
+    {
+        observed.remove(node);
+        if (ownerOf(node).equals(node))
+            expected.addAndGet(-selfFingerprint);
+    }
+
+    /**
+     * Hand ownership of the endpoint's state to another node, which must not have any updates to that state in
+     * flight. The endpoint is expected to have been unregistered already.
+     *
+     * @param ownerFingerprint the fingerprint of the endpoint's state as the new owner currently knows it
+     */
+    void transfer(InetAddress endpoint, InetAddress newOwner, long ownerFingerprint)
+    {
+        owners.put(endpoint, newOwner);
+        expected.addAndGet(ownerFingerprint);
+    }
+
+    InetAddress ownerOf(InetAddress endpoint)
+    {
+        InetAddress owner = owners.get(endpoint);
+        return owner == null ? endpoint : owner;
+    }
+
+    /**
+     * Record that the observer's state for the endpoint has changed.
+     */
+    void update(InetAddress observer, InetAddress endpoint, long before, long after)
+    {
+        if (before == after)
+            return;
+        AtomicLong sum = observed.get(observer);
+        if (sum == null)
+            return;
+        long delta = after - before;
+        sum.addAndGet(delta);
+        if (observer.equals(ownerOf(endpoint)))
+            expected.addAndGet(delta);
+    }
+
+    public boolean isConverged()
+    {
+        long expectedSum = expected.get();
+        for (AtomicLong sum : observed.values())
+        {
+            if (sum.get() != expectedSum)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Recompute all the sums from scratch. Should only be called when the nodes are not being mutated.
+     */
+    void rebuild(Collection<SimulatedNode> nodes)
+    {
+        long expectedSum = 0;
+        for (SimulatedNode node : nodes)
+        {
+            // a node that is down (or hasn't started yet) doesn't speak for anyone
+            if (!node.isEnabled() && !node.isInShadowRound())
+                continue;
+            long sum = 0;
+            for (Map.Entry<InetAddress, EndpointState> entry : node.endpointStates().entrySet())
+            {
+                long fingerprint = fingerprint(entry.getKey(), entry.getValue());
+                sum += fingerprint;
+                if (node.isEnabled() && ownerOf(entry.getKey()).equals(node.address()))
+                    expectedSum += fingerprint;
+            }
+            AtomicLong observedSum = observed.get(node.address());
+            if (observedSum != null)
+                observedSum.set(sum);
+        }
+        expected.set(expectedSum);
+    }
+
+    static long fingerprint(InetAddress endpoint, EndpointState epState)
+    {
+        if (epState == null)
+            return 0;
+        int maxVersion = 0;
+        int count = 0;
+        for (VersionedValue value : epState.getApplicationStateMap().values())
+        {
+            maxVersion = Math.max(maxVersion, value.version);
+            count++;
+        }
+        long h = mix(endpoint.hashCode() * 0x9E3779B97F4A7C15L);
+        h = mix(h ^ epState.getHeartBeatState().getGeneration());
+        h = mix(h ^ maxVersion);
+        h = mix(h ^ count);
+        // reserve 0 for 'unknown endpoint'
+        return h == 0 ? 1 : h;
+    }
+
+    // murmur3 fmix64
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,307 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+/**
+ * Full verification of convergence, off the round path so a round doesn't wait on the O(N^2) comparison. Every node
+ * that is up must know about every other node (and no others), and have the same generation and application states
+ * for each node as that node has for itself. An endpoint's state is the one held by its owner in the
+ * {@link ConvergenceTracker} - itself, or the node that removed it. Nobody can agree with a node that is down and
+ * hasn't been removed, so the cluster can't converge until it's back.
+ *
+ * The owner's state for each endpoint is digested first (generation, and every application state's version), into an
+ * array over the {@link EndpointRegistry} ids. Then each node's view is read, without taking its lock, and compared
+ * entry by entry against those digests as it's read. Nothing is kept per node, so the memory a verification takes is
+ * linear in the cluster size. A node's {@link SimulatedNode#viewSequence()} acts as a seqlock, so a read that overlaps
+ * a change to the node's state is retried. The nodes keep gossiping while they are read, so a positive verdict only
+ * stands if no node's view changed between the start of the verification and its end
+ * ({@link SimulatedNode#viewChanges()}). In that case every read held at the same moment. Otherwise the verdict is
+ * inconclusive and is dropped. The nodes are checked in parallel, split across a fork-join pool.
+ *
+ * Simulations on virtual time verify inline, on the simulation thread, instead. That way the round a verdict arrives
+ * in doesn't depend on how fast the verifier thread happened to be, and replays stay deterministic.
+ */
+public class ConvergenceVerifier
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConvergenceVerifier.class);
+
+    /** attempts at a consistent read of a node's view before giving up on the verification */
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    /**
+     * The outcome of a verification requested in a round.
+     */
+    static class Verdict
+    {
+        final int round;
+        final boolean converged;
+        /* requested even though the convergence tracker didn't think the cluster had converged */
+        final boolean drifted;
+
+        Verdict(int round, boolean converged, boolean drifted)
+        {
+            this.round = round;
+            this.converged = converged;
+            this.drifted = drifted;
+        }
+    }
+
+    /* null to verify inline */
+    private final ExecutorService executor;
+    /* splits the check of the nodes' views across the cores; null to check them on the verifying thread */
+    private final ForkJoinPool pool;
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    private final AtomicReference<Verdict> completed = new AtomicReference<>();
+
+    ConvergenceVerifier(boolean inline)
+    {
+        executor = inline ? null : Executors.newSingleThreadExecutor(new NamedThreadFactory("convergence_verifier"));
+        pool = inline ? null : new ForkJoinPool();
+    }
+
+    /**
+     * Start verifying the cluster as it is in the round, unless a verification is already under way.
+     */
+    void request(final int round, final boolean drifted, final Map<InetAddress, SimulatedNode> gossipers, final ConvergenceTracker tracker)
+    {
+        if (!inFlight.compareAndSet(false, true))
+            return;
+        Runnable verification = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Boolean converged = verify(gossipers, tracker);
+                    if (converged != null)
+                        completed.set(new Verdict(round, converged, drifted));
+                    else
+                        logger.debug("verification of round {} was inconclusive", round);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("convergence verification failed", e);
+                }
+                finally
+                {
+                    inFlight.set(false);
+                }
+            }
+        };
+        if (executor == null)
+            verification.run();
+        else
+            executor.execute(verification);
+    }
+
+    /**
+     * @return the verdict of the last completed verification, if it hasn't been collected yet
+     */
+    Verdict poll()
+    {
+        return completed.getAndSet(null);
+    }
+
+    void shutdown()
+    {
+        if (executor != null)
+            executor.shutdownNow();
+        if (pool != null)
+            pool.shutdownNow();
+    }
+
+    /**
+     * @return whether the views agree, or null if the cluster changed under the verification
+     */
+    Boolean verify(Map<InetAddress, SimulatedNode> gossipers, ConvergenceTracker tracker)
+    {
+        List<SimulatedNode> live = new ArrayList<>(gossipers.size());
+        for (SimulatedNode node : gossipers.values())
+        {
+            if (node.isEnabled())
+                live.add(node);
+        }
+        // taken before anything is read, so any change made while reading shows up at the end
+        long[] changes = new long[live.size()];
+        for (int i = 0; i < live.size(); i++)
+            changes[i] = live.get(i).viewChanges();
+
+        int endpointIds = EndpointRegistry.instance.size();
+        // the index in live of the node that speaks for each endpoint's state, or -1 if it's down
+        int[] owners = new int[endpointIds];
+        Arrays.fill(owners, -1);
+        // the digest of each endpoint's state, as its owner has it
+        long[] owned = new long[endpointIds];
+        Map<InetAddress, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < live.size(); i++)
+            indexes.put(live.get(i).address(), i);
+        int endpoints = 0;
+        for (SimulatedNode node : gossipers.values())
+        {
+            Integer owner = indexes.get(tracker.ownerOf(node.address()));
+            if (owner == null)
+                continue;
+            int id = EndpointRegistry.instance.idOf(node.address());
+            owners[id] = owner;
+            EndpointState state = live.get(owner).endpointStates().get(node.address());
+            owned[id] = state == null ? 0 : digest(state);
+            endpoints++;
+        }
+
+        SimulatedNode[] nodes = live.toArray(new SimulatedNode[live.size()]);
+        CheckTask check = new CheckTask(nodes, 0, nodes.length, owners, owned, endpoints, new Flag());
+        Boolean converged = pool == null ? check.compute() : pool.invoke(check);
+        if (converged == null)
+            return null;
+
+        // a node that changed since it was read might no longer agree (or might now)
+        for (int i = 0; i < live.size(); i++)
+        {
+            if (live.get(i).viewChanges() != changes[i] || !live.get(i).isEnabled())
+                return null;
+        }
+        return converged;
+    }
+
+    /**
+     * @return whether the node's view agrees with the owners' states, or null if it couldn't be read consistently
+     */
+    private static Boolean check(SimulatedNode node, int index, int[] owners, long[] owned, int endpoints)
+    {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++)
+        {
+            long sequence = node.viewSequence();
+            if ((sequence & 1) == 0)
+            {
+                boolean agrees = agrees(node, index, owners, owned, endpoints);
+                if (node.viewSequence() == sequence)
+                    return agrees;
+            }
+            Thread.yield();
+        }
+        return null;
+    }
+
+    private static boolean agrees(SimulatedNode node, int index, int[] owners, long[] owned, int endpoints)
+    {
+        Map<InetAddress, EndpointState> view = node.endpointStates();
+        if (view.size() != endpoints)
+        {
+            logger.debug("verify: node {} knows about {} nodes (out of {} total)", new Object[]{ node.address(), view.size(), endpoints });
+            return false;
+        }
+        for (Map.Entry<InetAddress, EndpointState> entry : view.entrySet())
+        {
+            int id = EndpointRegistry.instance.lookup(entry.getKey());
+            // registered since the verification started, so nobody speaks for it
+            if (id < 0 || id >= owners.length || owners[id] < 0)
+                return false;
+            if (owners[id] != index && owned[id] != digest(entry.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /** set once any task finds a node that disagrees or can't be read, so the remaining tasks can bail out early */
+    private static class Flag
+    {
+        volatile boolean stop;
+    }
+
+    /**
+     * Checks a range of the live nodes, splitting it across the pool's threads; the result is null if any node
+     * couldn't be read, else false if any disagrees.
+     */
+    private static class CheckTask extends RecursiveTask<Boolean>
+    {
+        /** below this many nodes, a task checks the nodes itself rather than forking */
+        private static final int THRESHOLD = 16;
+
+        private final SimulatedNode[] nodes;
+        private final int start;
+        private final int end;
+        private final int[] owners;
+        private final long[] owned;
+        private final int endpoints;
+        private final Flag flag;
+
+        CheckTask(SimulatedNode[] nodes, int start, int end, int[] owners, long[] owned, int endpoints, Flag flag)
+        {
+            this.nodes = nodes;
+            this.start = start;
+            this.end = end;
+            this.owners = owners;
+            this.owned = owned;
+            this.endpoints = endpoints;
+            this.flag = flag;
+        }
+
+        protected Boolean compute()
+        {
+            if (end - start <= THRESHOLD)
+            {
+                for (int i = start; i < end; i++)
+                {
+                    if (flag.stop)
+                        return false;
+                    Boolean agrees = check(nodes[i], i, owners, owned, endpoints);
+                    if (agrees == null || !agrees)
+                    {
+                        flag.stop = true;
+                        return agrees;
+                    }
+                }
+                return true;
+            }
+
+            int mid = (start + end) >>> 1;
+            CheckTask left = new CheckTask(nodes, start, mid, owners, owned, endpoints, flag);
+            CheckTask right = new CheckTask(nodes, mid, end, owners, owned, endpoints, flag);
+            left.fork();
+            Boolean rightAgrees = right.compute();
+            Boolean leftAgrees = left.join();
+            if (leftAgrees == null || rightAgrees == null)
+                return null;
+            return leftAgrees && rightAgrees;
+        }
+    }
+
+    /**
+     * A digest of everything that has to agree: the generation and the version of each application state. Heartbeat
+     * versions are left out, as they never converge. 0 is reserved for 'unknown endpoint'.
+     */
+    static long digest(EndpointState epState)
+    {
+        long h = mix(epState.getHeartBeatState().getGeneration() * 0x9E3779B97F4A7C15L);
+        for (Map.Entry<ApplicationState, VersionedValue> entry : epState.getApplicationStateMap().entrySet())
+            h += mix(((long) entry.getKey().ordinal() << 32) ^ entry.getValue().version);
+        return h == 0 ? 1 : h;
+    }
+
+    // murmur3 fmix64
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -2,75 +2,383 @@ package org.apache.cassandra.gms;
 
 import org.apache.cassandra.net.MessageIn;
 import org.apache.cassandra.net.MessageOut;
+import org.apache.cassandra.net.MessagingService;
 
 import java.net.InetAddress;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 
 public class CustomMessagingService
 {
+    private static final Logger logger = LoggerFactory.getLogger(CustomMessagingService.class);
     public static final Map<String, byte[]> parameters = new HashMap<String, byte[]>();
+    public static final int MAILBOX_CAPACITY = Integer.getInteger("gossipocolypse.mailbox.capacity", 1024);
+    public static final boolean FAILURE_DETECTION = Boolean.parseBoolean(System.getProperty("gossipocolypse.fd", "true"));
 
-    private static CustomMessagingService INSTANCE = new CustomMessagingService();
+    public enum DeliveryMode
+    {
+        /** hand the delivery to the scheduler, which (for the threaded schedulers) runs the verb handler on the sender's thread */
+        INLINE,
+        /** enqueue into the target's bounded mailbox, drained by a shared pool of worker threads */
+        MAILBOX
+    }
 
-    public final Map<InetAddress, GossiperSimulator> gossipers = new ConcurrentHashMap<>();
+    public final Map<InetAddress, SimulatedNode> gossipers = new IndexedEndpointMap<>();
+    public final ConvergenceTracker convergence = new ConvergenceTracker();
+    public final SimulationMetrics metrics = new SimulationMetrics();
+    public final LinkStats linkStats = new LinkStats();
+    public final FailureDetectorStats failureDetection = new FailureDetectorStats();
+    public final DisseminationTracker dissemination;
+    /* the application state values, and their versions, of this simulation */
+    public final SimulatedValueFactory values = new SimulatedValueFactory();
+    /* when each node that has been taken down went down, on the simulation clock */
+    private final Map<InetAddress, Long> downSince = new IndexedEndpointMap<>();
+    private final SimulationScheduler scheduler;
+    private final DeliveryMode deliveryMode;
+    private final long seed;
+    /* hands out the seeds of every other random source in the simulation, so a run can be replayed from {@link #seed()} */
+    private final Random seeds;
     private final Random random;
+    private volatile LinkModel linkModel = LinkModel.PERFECT;
+    private volatile Topology topology;
+    private volatile NetworkPartitions partitions = NetworkPartitions.NONE;
+    private final long startMillis;
+
+    private final Map<InetAddress, Mailbox> mailboxes;
+    private final ExecutorService mailboxWorkers;
+    private final Mailbox.Stats mailboxStats;
+
+    /* non-null if messages should be put through their wire format */
+    private final WireSerializer wireSerializer;
+    /* non-null if events should be traced */
+    private volatile TraceRecorder trace;
+
+    public CustomMessagingService(SimulationScheduler scheduler)
+    {
+        this(scheduler, DeliveryMode.INLINE, false);
+    }
+
+    public CustomMessagingService(SimulationScheduler scheduler, DeliveryMode deliveryMode, boolean serializeMessages)
+    {
+        this(scheduler, deliveryMode, serializeMessages, System.nanoTime());
+    }
+
+    public CustomMessagingService(SimulationScheduler scheduler, DeliveryMode deliveryMode, boolean serializeMessages, long seed)
+    {
+        if (deliveryMode == DeliveryMode.MAILBOX && scheduler instanceof DiscreteEventScheduler)
+            throw new IllegalArgumentException("mailbox delivery requires a threaded scheduler");
+        this.scheduler = scheduler;
+        this.deliveryMode = deliveryMode;
+        dissemination = new DisseminationTracker(scheduler);
+        this.seed = seed;
+        seeds = new Random(seed);
+        random = newRandom();
+        startMillis = scheduler.currentTimeMillis();
+
+        if (deliveryMode == DeliveryMode.MAILBOX)
+        {
+            mailboxes = new IndexedEndpointMap<>();
+            mailboxWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("mailbox_worker"));
+            mailboxStats = new Mailbox.Stats();
+        }
+        else
+        {
+            mailboxes = null;
+            mailboxWorkers = null;
+            mailboxStats = null;
+        }
+        wireSerializer = serializeMessages ? new WireSerializer() : null;
+    }
+
+    public SimulationScheduler scheduler()
+    {
+        return scheduler;
+    }
+
+    public long seed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return a random source seeded from this simulation's seed. Only the discrete event scheduler calls these in
+     * the same order on every run, the threaded schedulers leave the order to how the threads interleave.
+     */
+    public Random newRandom()
+    {
+        synchronized (seeds)
+        {
+            return new Random(seeds.nextLong());
+        }
+    }
+
+    public void setLinkModel(LinkModel linkModel)
+    {
+        this.linkModel = linkModel;
+    }
 
-    public CustomMessagingService()
+    /**
+     * Use the topology as the link model, and account for the traffic between datacenters.
+     */
+    public void setTopology(Topology topology)
     {
-        random = new Random(System.nanoTime());
+        this.topology = topology;
+        this.linkModel = topology;
     }
 
-    public static CustomMessagingService instance()
+    /**
+     * Record the nodes' events to the trace. Should be set before any nodes are registered.
+     */
+    public void setTrace(TraceRecorder trace)
     {
-        return INSTANCE;
+        this.trace = trace;
     }
 
-    //should only be called at the beginning on a simulation
-    public static void renewInstance()
+    public TraceRecorder trace()
     {
-        INSTANCE = new CustomMessagingService();
+        return trace;
     }
 
-    public void sendOneWay(MessageOut message, InetAddress to, GossiperSimulator sender)
+    public void setPartitions(NetworkPartitions partitions)
     {
-        GossiperSimulator target = gossipers.get(to);
+        this.partitions = partitions;
+    }
+
+    public NetworkPartitions partitions()
+    {
+        return partitions;
+    }
+
+    /**
+     * @return the simulation time since this messaging service was created, which is what partitions are scheduled against
+     */
+    public long elapsedMillis()
+    {
+        return scheduler.currentTimeMillis() - startMillis;
+    }
+
+    public void sendOneWay(MessageOut message, InetAddress to, SimulatedNode sender)
+    {
+        SimulatedNode target = gossipers.get(to);
         if (target == null)
             throw new IllegalArgumentException("unknown peer addr: " + to);
+        if (trace != null)
+        {
+            // sender is whoever started the exchange, not necessarily who's sending this message
+            SimulatedNode from = gossipers.get(message.from);
+            if (from != null)
+                from.trace(TraceRecorder.Event.SEND, to, null, message.verb.ordinal());
+        }
+
+        if (partitions.blocks(message.from, to, elapsedMillis()))
+        {
+            metrics.recordSend(message.verb, 0);
+            metrics.recordPartitionDrop();
+            linkStats.partitioned.incrementAndGet();
+            if (logger.isTraceEnabled())
+                logger.trace("partitioned, dropping {} from {} to {}", message.verb, message.from, to);
+            return;
+        }
+
+        Topology topology = this.topology;
+        LinkModel.Link link;
+        boolean crossDc = false;
+        if (topology != null)
+        {
+            Topology.LinkClass linkClass = topology.linkClass(message.from, to);
+            crossDc = linkClass == Topology.LinkClass.CROSS_DC;
+            link = topology.link(linkClass);
+        }
+        else
+        {
+            link = linkModel.link(message.from, to);
+        }
+
+        if (link.drop(random))
+        {
+            // dropped before it gets near the wire serializer, so there are no bytes to count
+            metrics.recordSend(message.verb, 0);
+            linkStats.dropped.incrementAndGet();
+            if (logger.isTraceEnabled())
+                logger.trace("dropping {} from {} to {}", message.verb, message.from, to);
+            return;
+        }
+
+        // only size the message if something needs to know
+        long bytes = link.bandwidthBytesPerSecond > 0 || crossDc ? message.serializedSize(MessagingService.current_version) : 0;
+        int copies = 1;
+        if (link.duplicate(random))
+        {
+            linkStats.duplicated.incrementAndGet();
+            copies = 2;
+        }
+        for (int i = 0; i < copies; i++)
+        {
+            if (crossDc)
+                metrics.recordCrossDc(bytes);
+            dispatch(link, newDelivery(message, sender, target), to, bytes);
+        }
+    }
+
+    private Delivery newDelivery(final MessageOut message, final SimulatedNode sender, final SimulatedNode target)
+    {
+        Delivery delivery;
+        if (wireSerializer != null)
+        {
+            final WireSerializer.SerializedMessage serialized = wireSerializer.serialize(message);
+            metrics.recordSend(message.verb, serialized.size());
+            delivery = new Delivery()
+            {
+                public void run()
+                {
+                    Object payload = wireSerializer.deserialize(serialized);
+                    // no payload from a buffer means the message was discarded, as the simulation ended
+                    if (payload != null || serialized.buffer == null)
+                        deliver(serialized.from, serialized.verb, payload, sender, target);
+                }
+
+                @Override
+                void discard()
+                {
+                    wireSerializer.discard(serialized);
+                }
+            };
+        }
+        else
+        {
+            metrics.recordSend(message.verb, 0);
+            delivery = new Delivery()
+            {
+                public void run()
+                {
+                    deliver(message.from, message.verb, message.payload, sender, target);
+                }
+            };
+        }
+
+        return delivery;
+    }
+
+    private void dispatch(LinkModel.Link link, final Delivery delivery, final InetAddress to, long bytes)
+    {
+        long delayMicros = link.delayMicros(random, linkStats, bytes);
+        linkStats.delivered.incrementAndGet();
+        linkStats.delayMicros.addAndGet(delayMicros);
 
-        switch (message.verb)
+        if (deliveryMode == DeliveryMode.MAILBOX)
         {
-            case GOSSIP_DIGEST_SYN:
-                MessageIn<GossipDigestSyn> synMsg = MessageIn.create(message.from, (GossipDigestSyn)message.payload, parameters, message.verb, 0);
-                new GossipDigestSynVerbHandlerSimulator().doVerb(synMsg, sender, target);
-                break;
-            case GOSSIP_DIGEST_ACK:
-                MessageIn<GossipDigestAck> ackMsg = MessageIn.create(message.from, (GossipDigestAck)message.payload, parameters, message.verb, 0);
-                new GossipDigestAckVerbHandlerSimulator().doVerb(ackMsg, sender, target);
-                break;
-            case GOSSIP_DIGEST_ACK2:
-                MessageIn<GossipDigestAck2> msg = MessageIn.create(message.from, (GossipDigestAck2)message.payload, parameters, message.verb, 0);
-                new GossipDigestAck2VerbHandlerSimulator().doVerb(msg, target);
-                break;
+            final Mailbox mailbox = mailboxes.get(to);
+            if (delayMicros <= 0)
+            {
+                enqueue(mailbox, delivery, to);
+                return;
+            }
+            scheduler.deliver(new Runnable()
+            {
+                public void run()
+                {
+                    enqueue(mailbox, delivery, to);
+                }
+            }, delayMicros);
         }
+        else
+        {
+            scheduler.deliver(delivery, delayMicros);
+        }
+    }
+
+    private void enqueue(Mailbox mailbox, Delivery delivery, InetAddress to)
+    {
+        if (mailbox.offer(delivery))
+            return;
+        delivery.discard();
+        if (logger.isTraceEnabled())
+            logger.trace("mailbox for {} is full, dropping a message", to);
     }
 
-    private void generateDelay()
+    private void deliver(InetAddress from, MessagingService.Verb verb, Object payload, SimulatedNode sender, SimulatedNode target)
     {
-        // would love to do some neato probability distributions, but, alas, I'm not smart enough <sigh>
-        double d = random.nextDouble();
-        long delay = (long)(10000L * d);
-        Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.MICROSECONDS);
+        target.trace(TraceRecorder.Event.RECEIVE, from, null, verb.ordinal());
+        target.receive(MessageIn.create(from, payload, parameters, verb, 0), sender);
     }
 
+    public void register(SimulatedNode node)
+    {
+        InetAddress addr = node.address();
+        if (mailboxes != null)
+            mailboxes.put(addr, new Mailbox(MAILBOX_CAPACITY, mailboxWorkers, mailboxStats));
+        convergence.register(addr);
+        node.setConvergenceTracker(convergence);
+        if (trace != null)
+            node.setTrace(trace.newBuffer(addr));
+        gossipers.put(addr, node);
+        downSince.remove(addr);
+        dissemination.register();
+    }
 
-    public void register(GossiperSimulator gossiper)
+    /**
+     * Take a node down in the middle of a simulation. It stays registered, so messages sent to it are simply ignored,
+     * until either a new instance is registered at the same address or it's removed from the cluster.
+     */
+    public void deregister(SimulatedNode node)
     {
-        gossipers.put(gossiper.broadcastAddr, gossiper);
+        InetAddress addr = node.address();
+        node.terminate();
+        downSince.put(addr, scheduler.nanoTime());
+        dissemination.deregister();
+        convergence.unregister(addr, ConvergenceTracker.fingerprint(addr, node.getEndpointStateForEndpoint(addr)));
+    }
+
+    /**
+     * Record a node convicting the endpoint. The simulation can see whether the endpoint is really down, so this
+     * records either a false positive or how long detection took.
+     */
+    void recordConviction(InetAddress endpoint)
+    {
+        SimulatedNode node = gossipers.get(endpoint);
+        if (node == null)
+            return;
+        Long down = downSince.get(endpoint);
+        failureDetection.recordConviction(node.isEnabled() || down == null ? -1 : scheduler.nanoTime() - down);
+    }
+
+    /**
+     * Stop any delivery threads. Should be called at the end of a simulation, after the nodes have been terminated.
+     */
+    public void shutdown()
+    {
+        if (wireSerializer != null)
+        {
+            // the scheduler and the mailboxes won't deliver what they still hold
+            wireSerializer.discardInFlight();
+            wireSerializer.logStats();
+            logger.warn("interned values: {}", VersionedValueInterner.instance);
+        }
+        if (FAILURE_DETECTION)
+            logger.warn("failure detector stats: {}", failureDetection);
+        if (linkModel != LinkModel.PERFECT || !partitions.isEmpty())
+            logger.warn("link stats ({}): {}", linkModel, linkStats);
+        if (mailboxWorkers == null)
+            return;
+        mailboxWorkers.shutdownNow();
+        logger.warn("mailbox stats: {}", mailboxStats);
+    }
+
+    /**
+     * A message on its way to a node. One that will never be run must be discarded, to give back its wire buffer.
+     */
+    private abstract static class Delivery implements Runnable
+    {
+        void discard()
+        {
+        }
     }
 }
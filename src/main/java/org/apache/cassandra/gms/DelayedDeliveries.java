@@ -0,0 +1,50 @@
+package org.apache.cassandra.gms;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+/**
+ * Delivery for the wall clock schedulers: inline on the sender's thread or, if the message is delayed, on a shared
+ * timer pool.
+ */
+class DelayedDeliveries
+{
+    private static final Logger logger = LoggerFactory.getLogger(DelayedDeliveries.class);
+
+    private final ScheduledExecutorService timers = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                                                     new NamedThreadFactory("delayed_delivery"));
+
+    void deliver(final Runnable delivery, long delayMicros)
+    {
+        if (delayMicros <= 0)
+        {
+            delivery.run();
+            return;
+        }
+        timers.schedule(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    delivery.run();
+                }
+                catch (Exception e)
+                {
+                    logger.error("delayed delivery failed", e);
+                }
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    void shutdown()
+    {
+        timers.shutdownNow();
+    }
+}
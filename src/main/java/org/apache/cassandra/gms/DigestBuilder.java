@@ -0,0 +1,110 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds the randomized digest list for a gossip round without copying the endpoint set. Endpoints are kept in a slot
+ * array that is shuffled in place each round (still a full shuffle, as Cassandra's shuffle of a fresh copy of the key
+ * set is, just without the copy). That copy is all it saves: the digests, and the list they go out in, are still
+ * allocated every round, as a heartbeat bumps every live endpoint's max version each round anyway.
+ *
+ * Membership changes must be reported via {@link #add(InetAddress)} and {@link #remove(InetAddress)}.
+ */
+class DigestBuilder
+{
+    private final Random random;
+    private final Map<InetAddress, Slot> index = new HashMap<>();
+    private Slot[] slots = new Slot[64];
+    private int size;
+
+    DigestBuilder(Random random)
+    {
+        this.random = random;
+    }
+
+    synchronized void add(InetAddress endpoint)
+    {
+        if (index.containsKey(endpoint))
+            return;
+        if (size == slots.length)
+            slots = Arrays.copyOf(slots, size * 2);
+
+        Slot slot = new Slot(endpoint);
+        index.put(endpoint, slot);
+        // inside-out shuffle step, so the permutation stays uniform as it grows
+        int j = random.nextInt(size + 1);
+        place(slots[j], size);
+        place(slot, j);
+        size++;
+    }
+
+    synchronized void remove(InetAddress endpoint)
+    {
+        Slot slot = index.remove(endpoint);
+        if (slot == null)
+            return;
+        size--;
+        Slot last = slots[size];
+        slots[size] = null;
+        if (last != slot)
+            place(last, slot.index);
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Reshuffle the endpoints, and add a digest for each of them to the list.
+     */
+    synchronized void build(Map<InetAddress, EndpointState> endpointStateMap, GossiperSimulator gossiper, List<GossipDigest> gDigests)
+    {
+        for (int i = size - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            Slot tmp = slots[i];
+            place(slots[j], i);
+            place(tmp, j);
+        }
+
+        for (int i = 0; i < size; i++)
+        {
+            Slot slot = slots[i];
+            EndpointState epState = endpointStateMap.get(slot.endpoint);
+            if (epState != null)
+            {
+                int generation = epState.getHeartBeatState().getGeneration();
+                gDigests.add(new GossipDigest(slot.endpoint, generation, gossiper.getMaxEndpointStateVersion(epState)));
+            }
+            else
+            {
+                // as the original did for a state that disappeared underneath us
+                gDigests.add(new GossipDigest(slot.endpoint, 0, 0));
+            }
+        }
+    }
+
+    private void place(Slot slot, int i)
+    {
+        slots[i] = slot;
+        if (slot != null)
+            slot.index = i;
+    }
+
+    private static class Slot
+    {
+        final InetAddress endpoint;
+        int index;
+
+        Slot(InetAddress endpoint)
+        {
+            this.endpoint = endpoint;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.apache.cassandra.gms;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A virtual clock and a priority queue of timestamped events, all executed on the thread that calls
+ * {@link #awaitCompletion(CountDownLatch, long, TimeUnit)}. Time only moves forward when the next event is
+ * pulled off the queue, so there's no sleeping between rounds and a round costs only the CPU of the work done in it.
+ *
+ * Events at the same timestamp are ordered by priority, then by the order in which they were scheduled. At the
+ * start of each round the round action runs first, then every node's tick (in registration order),
+ * then the messages those ticks sent, and so on. This is *not* thread-safe; everything (including node
+ * registration) is expected to happen on the simulation thread.
+ */
+class DiscreteEventScheduler implements SimulationScheduler
+{
+    private static final int PRIORITY_ROUND = 0;
+    private static final int PRIORITY_DEFAULT = 1;
+
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final Map<SimulatedNode, Runnable> ticks = new LinkedHashMap<>();
+    private final Runnable roundAction;
+    private final long intervalNanos;
+
+    private long nowNanos;
+    private long sequence;
+
+    DiscreteEventScheduler(Runnable roundAction)
+    {
+        this(roundAction, GossiperSimulator.intervalInMillis);
+    }
+
+    DiscreteEventScheduler(Runnable roundAction, long intervalMillis)
+    {
+        this.roundAction = roundAction;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        schedule(intervalNanos, PRIORITY_ROUND, new RoundTask());
+    }
+
+    public long currentTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nowNanos);
+    }
+
+    public long nanoTime()
+    {
+        return nowNanos;
+    }
+
+    public long intervalMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    public void register(final SimulatedNode node)
+    {
+        ticks.put(node, new Runnable()
+        {
+            public void run()
+            {
+                node.tick();
+            }
+        });
+    }
+
+    public void unregister(SimulatedNode node)
+    {
+        ticks.remove(node);
+    }
+
+    public void deliver(Runnable delivery, long delayMicros)
+    {
+        schedule(TimeUnit.MICROSECONDS.toNanos(Math.max(0, delayMicros)), PRIORITY_DEFAULT, delivery);
+    }
+
+    void schedule(long delayNanos, int priority, Runnable task)
+    {
+        queue.add(new Event(nowNanos + delayNanos, priority, sequence++, task));
+    }
+
+    public boolean awaitCompletion(CountDownLatch latch, long timeout, TimeUnit unit)
+    {
+        long deadline = nowNanos + unit.toNanos(timeout);
+        while (latch.getCount() > 0)
+        {
+            Event event = queue.peek();
+            if (event == null || event.time > deadline)
+                break;
+            queue.poll();
+            nowNanos = event.time;
+            event.task.run();
+        }
+        return latch.getCount() == 0;
+    }
+
+    public void shutdown()
+    {
+        queue.clear();
+        ticks.clear();
+    }
+
+    private class RoundTask implements Runnable
+    {
+        public void run()
+        {
+            roundAction.run();
+
+            // copy, as a tick may (un)register nodes
+            Runnable[] tasks = ticks.values().toArray(new Runnable[ticks.size()]);
+            for (Runnable task : tasks)
+                schedule(0, PRIORITY_DEFAULT, task);
+
+            schedule(intervalNanos, PRIORITY_ROUND, this);
+        }
+    }
+
+    private static final class Event implements Comparable<Event>
+    {
+        final long time;
+        final int priority;
+        final long sequence;
+        final Runnable task;
+
+        Event(long time, int priority, long sequence, Runnable task)
+        {
+            this.time = time;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        public int compareTo(Event other)
+        {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            if (priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
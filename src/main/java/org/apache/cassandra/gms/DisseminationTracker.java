@@ -0,0 +1,229 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how long individual state changes take to reach the rest of the cluster. Every application state a node
+ * adds for itself (or a removal coordinator adds on behalf of a removed node) after {@link #start()} is stamped with
+ * the simulation time it originated at, and every node that applies it (or a later version of the same endpoint's
+ * state, which includes it) counts towards its dissemination, against the number of nodes that were up when it
+ * originated. The time at which each change reached {@link #PERCENTILES} of them is exported per change.
+ *
+ * The changes made while the initial nodes start up aren't tracked, as the cluster they would disseminate to is
+ * still being built.
+ */
+public class DisseminationTracker
+{
+    private static final Logger logger = LoggerFactory.getLogger(DisseminationTracker.class);
+
+    static final int[] PERCENTILES = { 10, 20, 30, 40, 50, 60, 70, 80, 90, 95, 99, 100 };
+
+    private final SimulationScheduler scheduler;
+    private final long startNanos;
+    private final ConcurrentMap<InetAddress, Origin> origins = new ConcurrentHashMap<>();
+    private final List<Change> changes = new CopyOnWriteArrayList<>();
+    // nodes registered and not taken down
+    private final AtomicInteger liveNodes = new AtomicInteger();
+    private volatile boolean started;
+
+    DisseminationTracker(SimulationScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+        startNanos = scheduler.nanoTime();
+    }
+
+    void register()
+    {
+        liveNodes.incrementAndGet();
+    }
+
+    void deregister()
+    {
+        liveNodes.decrementAndGet();
+    }
+
+    /**
+     * Track the changes that originate from here on.
+     */
+    void start()
+    {
+        started = true;
+    }
+
+    /**
+     * A new version of the endpoint's state, at the node that made it.
+     */
+    void originate(InetAddress endpoint, int generation, int version)
+    {
+        if (!started)
+            return;
+        Origin origin = origins.get(endpoint);
+        if (origin == null || origin.generation < generation)
+        {
+            origin = new Origin(generation);
+            origins.put(endpoint, origin);
+        }
+        else if (origin.generation > generation)
+        {
+            return;
+        }
+
+        Change change = new Change(endpoint, generation, version, scheduler.nanoTime(), liveNodes.get() - 1);
+        origin.changes.put(version, change);
+        changes.add(change);
+    }
+
+    /**
+     * A node has applied the endpoint's state at the generation, having previously had it up to fromVersion
+     * (or nothing of the generation, if it's a new one to the node).
+     */
+    void seen(InetAddress endpoint, int generation, int fromVersion, int toVersion)
+    {
+        Origin origin = origins.get(endpoint);
+        if (origin == null || origin.generation != generation || fromVersion >= toVersion)
+            return;
+        ConcurrentNavigableMap<Integer, Change> seen = origin.changes.subMap(fromVersion, false, toVersion, true);
+        if (seen.isEmpty())
+            return;
+        long now = scheduler.nanoTime();
+        for (Change change : seen.values())
+            change.seen(now);
+    }
+
+    /**
+     * @return the tracked changes, in the order they originated
+     */
+    List<Change> changes()
+    {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Write a row per change to {@code <label>-dissemination.csv}, and log the median time to each percentile.
+     */
+    void export(File dir, String label)
+    {
+        if (changes.isEmpty())
+            return;
+
+        File file = new File(dir, label + "-dissemination.csv");
+        try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            StringBuilder header = new StringBuilder("endpoint,generation,version,origin_ms,expected,reached");
+            for (int percentile : PERCENTILES)
+                header.append(",p").append(percentile).append("_ms");
+            out.println(header);
+
+            for (Change change : changes)
+            {
+                StringBuilder row = new StringBuilder();
+                row.append(change.endpoint.getHostAddress()).append(',').append(change.generation).append(',')
+                   .append(change.version).append(',').append(TimeUnit.NANOSECONDS.toMillis(change.originNanos - startNanos)).append(',')
+                   .append(change.expected).append(',').append(change.reached.get());
+                for (int i = 0; i < PERCENTILES.length; i++)
+                {
+                    row.append(',');
+                    long millis = change.millisTo(i);
+                    if (millis >= 0)
+                        row.append(millis);
+                }
+                out.println(row);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("failed to write the dissemination of " + label, e);
+            return;
+        }
+        logger.warn("dissemination of {} changes, median ms to p50/p90/p99/p100: {}/{}/{}/{}",
+                    new Object[]{ changes.size(), medianMillis(4), medianMillis(8), medianMillis(10), medianMillis(11) });
+    }
+
+    /* the median, over the changes that got there, of the time to reach the percentile */
+    private String medianMillis(int percentileIndex)
+    {
+        List<Long> millis = new ArrayList<>(changes.size());
+        for (Change change : changes)
+        {
+            long value = change.millisTo(percentileIndex);
+            if (value >= 0)
+                millis.add(value);
+        }
+        if (millis.isEmpty())
+            return "-";
+        Collections.sort(millis);
+        return String.valueOf(millis.get(millis.size() / 2));
+    }
+
+    /* the tracked changes of an endpoint's current generation */
+    private static class Origin
+    {
+        final int generation;
+        final ConcurrentNavigableMap<Integer, Change> changes = new ConcurrentSkipListMap<>();
+
+        Origin(int generation)
+        {
+            this.generation = generation;
+        }
+    }
+
+    static class Change
+    {
+        final InetAddress endpoint;
+        final int generation;
+        final int version;
+        final long originNanos;
+        /* nodes that were up, other than the originator, when the change was made */
+        final int expected;
+        final AtomicInteger reached = new AtomicInteger();
+        /* nanos since the origin at which each percentile was reached, or -1 */
+        final AtomicLongArray percentileNanos = new AtomicLongArray(PERCENTILES.length);
+        private final int[] needed = new int[PERCENTILES.length];
+
+        Change(InetAddress endpoint, int generation, int version, long originNanos, int expected)
+        {
+            this.endpoint = endpoint;
+            this.generation = generation;
+            this.version = version;
+            this.originNanos = originNanos;
+            this.expected = expected;
+            for (int i = 0; i < PERCENTILES.length; i++)
+            {
+                needed[i] = Math.max(1, (int) Math.ceil(PERCENTILES[i] * expected / 100.0));
+                percentileNanos.set(i, -1);
+            }
+        }
+
+        void seen(long nowNanos)
+        {
+            int count = reached.incrementAndGet();
+            for (int i = 0; i < needed.length; i++)
+            {
+                if (needed[i] == count && expected > 0)
+                    percentileNanos.set(i, nowNanos - originNanos);
+            }
+        }
+
+        long millisTo(int percentileIndex)
+        {
+            long nanos = percentileNanos.get(percentileIndex);
+            return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
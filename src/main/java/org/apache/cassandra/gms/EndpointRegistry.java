@@ -0,0 +1,70 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out dense int ids for endpoints, so the per-node endpoint structures ({@link IndexedEndpointMap},
+ * {@link IndexedEndpointSet}) can be arrays indexed by id instead of each node holding its own hash tables keyed by
+ * InetAddress. There is a single address-to-id map for the whole process; ids are never reused.
+ */
+public class EndpointRegistry
+{
+    public static final EndpointRegistry instance = new EndpointRegistry();
+
+    private final ConcurrentMap<InetAddress, Integer> ids = new ConcurrentHashMap<>();
+    private volatile InetAddress[] addresses = new InetAddress[1024];
+    private volatile int size;
+
+    /**
+     * @return the id of the endpoint, assigning one if it's not known yet
+     */
+    int idOf(InetAddress endpoint)
+    {
+        Integer id = ids.get(endpoint);
+        if (id != null)
+            return id;
+
+        synchronized (this)
+        {
+            id = ids.get(endpoint);
+            if (id != null)
+                return id;
+
+            InetAddress[] current = addresses;
+            if (size == current.length)
+                current = Arrays.copyOf(current, size * 2);
+            current[size] = endpoint;
+            addresses = current;
+            // publish the address before the id, so anyone who can see the id can resolve it
+            id = size;
+            size = id + 1;
+            ids.put(endpoint, id);
+            return id;
+        }
+    }
+
+    /**
+     * @return the id of the endpoint, or -1 if it has never been registered
+     */
+    int lookup(Object endpoint)
+    {
+        Integer id = ids.get(endpoint);
+        return id == null ? -1 : id;
+    }
+
+    InetAddress address(int id)
+    {
+        return addresses[id];
+    }
+
+    /**
+     * @return one more than the highest id handed out
+     */
+    int size()
+    {
+        return size;
+    }
+}
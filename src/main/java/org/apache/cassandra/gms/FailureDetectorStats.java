@@ -0,0 +1,58 @@
+package org.apache.cassandra.gms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Failure detector outcomes for a whole simulation: how long it takes to convict a node that really went down,
+ * how often a node that is up gets convicted, and what {@link SimulatedFailureDetector#interpret(java.net.InetAddress)}
+ * costs.
+ */
+public class FailureDetectorStats
+{
+    final AtomicLong convictions = new AtomicLong();
+    final AtomicLong falsePositives = new AtomicLong();
+    // simulation millis from a node stopping to a peer convicting it
+    final EstimatedHistogram detectionMillis = new EstimatedHistogram(160);
+    final AtomicLong interprets = new AtomicLong();
+    final AtomicLong interpretNanos = new AtomicLong();
+
+    /**
+     * @param downForNanos how long (in simulation time) the convicted node had actually been down for, or -1 if it is up
+     */
+    void recordConviction(long downForNanos)
+    {
+        convictions.incrementAndGet();
+        if (downForNanos < 0)
+            falsePositives.incrementAndGet();
+        else
+            detectionMillis.add(TimeUnit.NANOSECONDS.toMillis(downForNanos));
+    }
+
+    void recordInterpret(long nanos)
+    {
+        interprets.incrementAndGet();
+        interpretNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the percentile of the time to detect a node that really went down, or 0 if none were
+     */
+    long detectionMillis(double percentile)
+    {
+        return convictions.get() == falsePositives.get() ? 0 : detectionMillis.percentile(percentile);
+    }
+
+    public String toString()
+    {
+        long count = convictions.get();
+        long detected = count - falsePositives.get();
+        long calls = interprets.get();
+        return String.format("convictions = %d, false positives = %d (%.2f%%), time to detect (ms) p50 = %d, p99 = %d, max = %d, interpret calls = %d (avg %dns)",
+                             count, falsePositives.get(), count == 0 ? 0.0 : 100.0 * falsePositives.get() / count,
+                             detected == 0 ? 0 : detectionMillis.percentile(0.5), detected == 0 ? 0 : detectionMillis.percentile(0.99),
+                             detectionMillis.max(), calls, calls == 0 ? 0 : interpretNanos.get() / calls);
+    }
+}
@@ -0,0 +1,115 @@
+package org.apache.cassandra.gms;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * One version of an endpoint's state - heartbeat and application states - that never changes once made. An update
+ * makes a new version, sharing the application states with the old one when only the heartbeat moved on.
+ *
+ * Versions are passed along with the deltas they were gossiped in (see {@link Delta}), and a node that ends up with
+ * the same state as the sender takes the sender's version rather than building its own. So the nodes that agree on
+ * an endpoint share one version of it, instead of each holding a copy of its application states.
+ */
+final class FrozenEndpointState
+{
+    static final Map<ApplicationState, VersionedValue> NO_STATES = Collections.emptyMap();
+
+    final FrozenHeartBeatState heartBeat;
+    final Map<ApplicationState, VersionedValue> states;
+    final int maxAppStateVersion;
+
+    FrozenEndpointState(FrozenHeartBeatState heartBeat)
+    {
+        this(heartBeat, NO_STATES, 0);
+    }
+
+    private FrozenEndpointState(FrozenHeartBeatState heartBeat, Map<ApplicationState, VersionedValue> states, int maxAppStateVersion)
+    {
+        this.heartBeat = heartBeat;
+        this.states = states;
+        this.maxAppStateVersion = maxAppStateVersion;
+    }
+
+    FrozenEndpointState withHeartBeat(FrozenHeartBeatState heartBeat)
+    {
+        return heartBeat == this.heartBeat ? this : new FrozenEndpointState(heartBeat, states, maxAppStateVersion);
+    }
+
+    FrozenEndpointState with(ApplicationState key, VersionedValue value)
+    {
+        if (states.get(key) == value)
+            return this;
+        return merge(heartBeat, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * @return this version with the heartbeat replaced, and the application states added (over any already here)
+     */
+    FrozenEndpointState merge(FrozenHeartBeatState heartBeat, Map<ApplicationState, VersionedValue> added)
+    {
+        if (added.isEmpty())
+            return withHeartBeat(heartBeat);
+        EnumMap<ApplicationState, VersionedValue> merged = states.isEmpty()
+                                                         ? new EnumMap<ApplicationState, VersionedValue>(ApplicationState.class)
+                                                         : new EnumMap<>(states);
+        merged.putAll(added);
+        int max = 0;
+        for (VersionedValue value : merged.values())
+            max = Math.max(max, value.version);
+        return new FrozenEndpointState(heartBeat, Collections.unmodifiableMap(merged), max);
+    }
+
+    /**
+     * @return true if the other version holds the same heartbeat and the same application states
+     */
+    boolean sameAs(FrozenEndpointState other)
+    {
+        if (other == this)
+            return true;
+        if (other.heartBeat.getGeneration() != heartBeat.getGeneration()
+            || other.heartBeat.getHeartBeatVersion() != heartBeat.getHeartBeatVersion()
+            || other.states.size() != states.size())
+            return false;
+        if (other.states == states)
+            return true;
+        for (Map.Entry<ApplicationState, VersionedValue> entry : states.entrySet())
+        {
+            if (other.states.get(entry.getKey()) != entry.getValue())
+                return false;
+        }
+        return true;
+    }
+
+    int getMaxVersion()
+    {
+        return Math.max(heartBeat.getHeartBeatVersion(), maxAppStateVersion);
+    }
+
+    /**
+     * @return the whole of this version, as a delta
+     */
+    Delta toDelta()
+    {
+        Delta delta = new Delta(this);
+        for (Map.Entry<ApplicationState, VersionedValue> entry : states.entrySet())
+            delta.addApplicationState(entry.getKey(), entry.getValue());
+        return delta;
+    }
+
+    /**
+     * The part of an endpoint's state a node sends in a gossip message: a plain EndpointState, as that is what the
+     * wire serializer reads, along with the sender's whole version of the state it was taken from.
+     */
+    static class Delta extends EndpointState
+    {
+        final FrozenEndpointState source;
+
+        Delta(FrozenEndpointState source)
+        {
+            super(source.heartBeat);
+            this.source = source;
+        }
+    }
+}
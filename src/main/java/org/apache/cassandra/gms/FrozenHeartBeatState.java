@@ -0,0 +1,57 @@
+package org.apache.cassandra.gms;
+
+/**
+ * A heartbeat that can't be changed once made, so it can be handed to other nodes (and kept by them) without them
+ * seeing, or racing with, the owner's later beats. A beat, or a forced generation change, makes a new one.
+ */
+class FrozenHeartBeatState extends HeartBeatState
+{
+    FrozenHeartBeatState(int generation)
+    {
+        this(generation, 0);
+    }
+
+    FrozenHeartBeatState(int generation, int version)
+    {
+        super(generation, version);
+    }
+
+    static FrozenHeartBeatState of(HeartBeatState hbState)
+    {
+        if (hbState instanceof FrozenHeartBeatState)
+            return (FrozenHeartBeatState) hbState;
+        return new FrozenHeartBeatState(hbState.getGeneration(), hbState.getHeartBeatVersion());
+    }
+
+    /**
+     * @param version the next version of the simulation (see {@link SimulatedValueFactory#nextVersion()}), as
+     * Cassandra's beats take the next from VersionGenerator; a per-node count would fall behind the application
+     * state versions, and the beats would never be gossiped
+     */
+    FrozenHeartBeatState nextBeat(int version)
+    {
+        return new FrozenHeartBeatState(getGeneration(), version);
+    }
+
+    FrozenHeartBeatState newerGeneration()
+    {
+        return new FrozenHeartBeatState(getGeneration() + 1, getHeartBeatVersion());
+    }
+
+    @Override
+    void updateHeartBeat()
+    {
+        throw new UnsupportedOperationException("heartbeats are frozen, use nextBeat(int)");
+    }
+
+    @Override
+    void forceNewerGenerationUnsafe()
+    {
+        throw new UnsupportedOperationException("heartbeats are frozen, use newerGeneration()");
+    }
+
+    public String toString()
+    {
+        return String.format("FrozenHeartBeat: generation = %d, version = %d", getGeneration(), getHeartBeatVersion());
+    }
+}
@@ -35,6 +35,7 @@ public class GossipDigestAck2VerbHandlerSimulator implements IVerbHandler<Gossip
 
     public void doVerb(MessageIn<GossipDigestAck2> message, GossiperSimulator target)
     {
+        long start = System.nanoTime();
         if (logger.isTraceEnabled())
         {
             InetAddress from = message.from;
@@ -50,5 +51,6 @@ public class GossipDigestAck2VerbHandlerSimulator implements IVerbHandler<Gossip
         /* Notify the Failure Detector */
         target.notifyFailureDetector(remoteEpStateMap);
         target.applyStateLocally(remoteEpStateMap);
+        target.messaging.metrics.recordAck2(remoteEpStateMap.size(), System.nanoTime() - start);
     }
 }
@@ -38,6 +38,7 @@ public class GossipDigestAckVerbHandlerSimulator implements IVerbHandler<GossipD
     {   }
     public void doVerb(MessageIn<GossipDigestAck> message, GossiperSimulator sender, GossiperSimulator target)
     {
+        long start = System.nanoTime();
         InetAddress from = message.from;
         if (logger.isTraceEnabled())
             logger.trace("Received a GossipDigestAckMessage from {}", from);
@@ -65,6 +66,7 @@ public class GossipDigestAckVerbHandlerSimulator implements IVerbHandler<GossipD
             if (logger.isDebugEnabled())
                 logger.debug("Finishing shadow round with {}", from);
             target.finishShadowRound();
+            target.messaging.metrics.recordAck(gDigestList.size(), epStateMap.size(), System.nanoTime() - start);
             return; // don't bother doing anything else, we have what we came for
         }
 
@@ -85,6 +87,8 @@ public class GossipDigestAckVerbHandlerSimulator implements IVerbHandler<GossipD
                                                                                            CustomMessagingService.parameters);
         if (logger.isTraceEnabled())
             logger.trace("Sending a GossipDigestAck2Message to {}", from);
-        CustomMessagingService.instance().sendOneWay(gDigestAck2Message, from, sender);
+        CustomMessagingService messaging = target.messaging;
+        messaging.metrics.recordAck(gDigestList.size(), epStateMap.size(), System.nanoTime() - start);
+        messaging.sendOneWay(gDigestAck2Message, from, sender);
     }
 }
@@ -37,6 +37,7 @@ public class GossipDigestSynVerbHandlerSimulator implements IVerbHandler<GossipD
 
     public void doVerb(MessageIn<GossipDigestSyn> message, GossiperSimulator sender, GossiperSimulator target)
     {
+        long start = System.nanoTime();
         InetAddress from = message.from;
         if (logger.isTraceEnabled())
             logger.trace("Received a GossipDigestSynMessage from {}", from);
@@ -62,6 +63,7 @@ public class GossipDigestSynVerbHandlerSimulator implements IVerbHandler<GossipD
 //        }
 
         List<GossipDigest> gDigestList = gDigestMessage.getGossipDigests();
+        int digestCount = gDigestList.size();
         if (logger.isTraceEnabled())
         {
             StringBuilder sb = new StringBuilder();
@@ -84,7 +86,10 @@ public class GossipDigestSynVerbHandlerSimulator implements IVerbHandler<GossipD
                                                                                         GossipDigestAck.serializer, CustomMessagingService.parameters);
         if (logger.isTraceEnabled())
             logger.trace("Sending a GossipDigestAckMessage to {}", from);
-        CustomMessagingService.instance().sendOneWay(gDigestAckMessage, from, sender);
+        CustomMessagingService messaging = target.messaging;
+        // record before sending, as an inline delivery would otherwise count the ACK and ACK2 handlers, too
+        messaging.metrics.recordSyn(digestCount, System.nanoTime() - start);
+        messaging.sendOneWay(gDigestAckMessage, from, sender);
     }
 
     /*
@@ -94,7 +99,7 @@ public class GossipDigestSynVerbHandlerSimulator implements IVerbHandler<GossipD
      * Sort this list. Now loop through the sorted list and retrieve the GossipDigest corresponding
      * to the endpoint from the map that was initially constructed.
     */
-    private void doSort(List<GossipDigest> gDigestList, GossiperSimulator gossiper)
+    void doSort(List<GossipDigest> gDigestList, GossiperSimulator gossiper)
     {
         /* Construct a map of endpoint to GossipDigest. */
         Map<InetAddress, GossipDigest> epToDigestMap = new HashMap<InetAddress, GossipDigest>();
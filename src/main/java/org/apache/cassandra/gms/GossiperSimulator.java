@@ -26,16 +26,14 @@ import java.util.concurrent.*;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.Uninterruptibles;
 
-import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.dht.IPartitioner;
 import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.net.MessageIn;
 import org.apache.cassandra.net.MessageOut;
 import org.apache.cassandra.net.MessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableList;
-
 /**
  * This module is responsible for Gossiping information for the local endpoint. This abstraction
  * maintains the list of live and dead endpoints. Periodically i.e. every 1 second this module
@@ -49,16 +47,18 @@ import com.google.common.collect.ImmutableList;
  * the Failure Detector.
  */
 
-public class GossiperSimulator implements IFailureDetectionEventListener//, GossiperMBean
+public class GossiperSimulator implements SimulatedNode, IFailureDetectionEventListener//, GossiperMBean
 {
     private static final String MBEAN_NAME = "org.apache.gms.net:type=Gossiper";
 
-    private final ScheduledThreadPoolExecutor executor;
+    private final SimulationScheduler scheduler;
+    final CustomMessagingService messaging;
 
     final ApplicationState[] STATES = ApplicationState.values();
     final List<String> DEAD_STATES = Arrays.asList(VersionedValue.REMOVING_TOKEN, VersionedValue.REMOVED_TOKEN,
                                                           VersionedValue.STATUS_LEFT, VersionedValue.HIBERNATE);
-    private ScheduledFuture<?> scheduledGossipTask;
+    private volatile boolean enabled;
+    /* the default gossip interval; a simulation takes its actual round length from the scheduler */
     public final static int intervalInMillis = 1000;
     public static final int RING_DELAY = 30 * 1000;
     public final static int QUARANTINE_DELAY = RING_DELAY * 2;
@@ -66,132 +66,272 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
 
     public static final long aVeryLongTime = 259200 * 1000; // 3 days
     private long FatClientTimeout;
-    private final Random random = new Random();
-    private final Comparator<InetAddress> inetcomparator = new Comparator<InetAddress>()
-    {
-        public int compare(InetAddress addr1, InetAddress addr2)
-        {
-            return addr1.getHostAddress().compareTo(addr2.getHostAddress());
-        }
-    };
+    private final Random random;
+    private final DigestBuilder digestBuilder;
 
     /* subscribers for interest in EndpointState change */
     private final List<IEndpointStateChangeSubscriber> subscribers = new CopyOnWriteArrayList<IEndpointStateChangeSubscriber>();
 
     /* live member set */
-    private final Set<InetAddress> liveEndpoints = new ConcurrentSkipListSet<InetAddress>(inetcomparator);
+    final MembershipView liveEndpoints = new MembershipView();
 
-    /* unreachable member set */
-    private final Map<InetAddress, Long> unreachableEndpoints = new ConcurrentHashMap<InetAddress, Long>();
+    /* unreachable member set, with the time each went down; the view is kept in step for peer selection */
+    private final Map<InetAddress, Long> unreachableEndpoints = new IndexedEndpointMap<Long>();
+    private final MembershipView unreachableMembers = new MembershipView();
 
     /* initial seeds for joining the cluster */
-    private final Set<InetAddress> seeds = new ConcurrentSkipListSet<InetAddress>(inetcomparator);
+    private final MembershipView seeds = new MembershipView();
 
     /* map where key is the endpoint and value is the state associated with the endpoint */
-    final ConcurrentMap<InetAddress, EndpointState> endpointStateMap = new ConcurrentHashMap<InetAddress, EndpointState>();
+    final ConcurrentMap<InetAddress, EndpointState> endpointStateMap = new IndexedEndpointMap<EndpointState>();
 
     /* map where key is endpoint and value is timestamp when this endpoint was removed from
      * gossip. We will ignore any gossip regarding these endpoints for QUARANTINE_DELAY time
      * after removal to prevent nodes from falsely reincarnating during the time when removal
      * gossip gets propagated to all nodes */
-    private final Map<InetAddress, Long> justRemovedEndpoints = new ConcurrentHashMap<InetAddress, Long>();
+    private final Map<InetAddress, Long> justRemovedEndpoints = new IndexedEndpointMap<Long>();
 
-    private final Map<InetAddress, Long> expireTimeEndpointMap = new ConcurrentHashMap<InetAddress, Long>();
+    private final Map<InetAddress, Long> expireTimeEndpointMap = new IndexedEndpointMap<Long>();
 
-    private boolean inShadowRound = false;
+    private volatile boolean inShadowRound = false;
 
-    private volatile long lastProcessedMessageAt = System.currentTimeMillis();
+    /* tracks changes to endpointStateMap for the convergence check; state changes are applied under stateLock */
+    private volatile ConvergenceTracker convergenceTracker;
+    private volatile TraceRecorder.Buffer trace;
+    /* a seqlock over the endpoint state map for readers off the gossip path, only ever written under the stateLock */
+    private volatile long viewSequence;
+    private volatile long viewChanges;
+
+    /* this node's own failure detector; null if failure detection is off */
+    private volatile SimulatedFailureDetector failureDetector;
+    private final Object stateLock = new Object();
+
+    private volatile long lastProcessedMessageAt;
+    /* live members to gossip to each round; Cassandra always uses one */
+    private volatile int fanout = 1;
     
     public final InetAddress broadcastAddr;
     public static final IPartitioner partitioner = new Murmur3Partitioner();
-    public static final VersionedValue.VersionedValueFactory valueFactory = new VersionedValue.VersionedValueFactory(partitioner);
-    public CyclicBarrier roundBarrier;
 
 
-    private class GossipTask implements Runnable
+    /**
+     * A gossip round: beat, then gossip to live members, maybe an unreachable one and maybe a seed.
+     */
+    public void tick()
     {
-        public void run()
+        if (!enabled)
+            return;
+        try
         {
-            try
-            {
-                roundBarrier.await();
-                /* Update the local heartbeat counter. */
-                endpointStateMap.get(getBroadcastAddress()).getHeartBeatState().updateHeartBeat();
-                if (logger.isTraceEnabled())
-                    logger.trace("My heartbeat is now " + endpointStateMap.get(getBroadcastAddress()).getHeartBeatState().getHeartBeatVersion());
-                final List<GossipDigest> gDigests = new ArrayList<GossipDigest>();
-                makeRandomGossipDigest(gDigests);
+            /* Update the local heartbeat counter. */
+            ((MaxVersionEndpointState) endpointStateMap.get(getBroadcastAddress())).updateHeartBeat(messaging.values.nextVersion());
+            if (logger.isTraceEnabled())
+                logger.trace("My heartbeat is now " + endpointStateMap.get(getBroadcastAddress()).getHeartBeatState().getHeartBeatVersion());
+            final List<GossipDigest> gDigests = new ArrayList<GossipDigest>(digestBuilder.size());
+            makeRandomGossipDigest(gDigests);
 
 
 
 
-                if (gDigests.size() > 0)
-                {
-                    GossipDigestSyn digestSynMessage = new GossipDigestSyn("gossipocolypse",
-                                                                           "BigFunTimePartitoner",
-                                                                           gDigests);
-                    MessageOut<GossipDigestSyn> message = new MessageOut<GossipDigestSyn>(broadcastAddr,
-                                                                                          MessagingService.Verb.GOSSIP_DIGEST_SYN,
-                                                                                          digestSynMessage,
-                                                                                          GossipDigestSyn.serializer,
-                                                                                          CustomMessagingService.parameters);
-                    /* Gossip to some random live member */
-                    boolean gossipedToSeed = doGossipToLiveMember(message);
-
-                    /* Gossip to some unreachable member with some probability to check if he is back up */
-                    doGossipToUnreachableMember(message);
-
-                    /* Gossip to a seed if we did not do so above, or we have seen less nodes
-                       than there are seeds.  This prevents partitions where each group of nodes
-                       is only gossiping to a subset of the seeds.
-
-                       The most straightforward check would be to check that all the seeds have been
-                       verified either as live or unreachable.  To avoid that computation each round,
-                       we reason that:
-
-                       either all the live nodes are seeds, in which case non-seeds that come online
-                       will introduce themselves to a member of the ring by definition,
-
-                       or there is at least one non-seed node in the list, in which case eventually
-                       someone will gossip to it, and then do a gossip to a random seed from the
-                       gossipedToSeed check.
-
-                       See CASSANDRA-150 for more exposition. */
-                    if (!gossipedToSeed || liveEndpoints.size() < seeds.size())
-                        doGossipToSeed(message);
-
-                    doStatusCheck();
-                }
-            }
-            catch (Exception e)
+            if (gDigests.size() > 0)
             {
-                logger.error("Gossip error", e);
+                GossipDigestSyn digestSynMessage = new GossipDigestSyn("gossipocolypse",
+                                                                       "BigFunTimePartitoner",
+                                                                       gDigests);
+                MessageOut<GossipDigestSyn> message = new MessageOut<GossipDigestSyn>(broadcastAddr,
+                                                                                      MessagingService.Verb.GOSSIP_DIGEST_SYN,
+                                                                                      digestSynMessage,
+                                                                                      GossipDigestSyn.serializer,
+                                                                                      CustomMessagingService.parameters);
+                /* Gossip to some random live member(s) */
+                boolean gossipedToSeed = false;
+                for (int i = 0; i < fanout; i++)
+                    gossipedToSeed |= doGossipToLiveMember(message);
+
+                /* Gossip to some unreachable member with some probability to check if he is back up */
+                doGossipToUnreachableMember(message);
+
+                /* Gossip to a seed if we did not do so above, or we have seen less nodes
+                   than there are seeds.  This prevents partitions where each group of nodes
+                   is only gossiping to a subset of the seeds.
+
+                   The most straightforward check would be to check that all the seeds have been
+                   verified either as live or unreachable.  To avoid that computation each round,
+                   we reason that:
+
+                   either all the live nodes are seeds, in which case non-seeds that come online
+                   will introduce themselves to a member of the ring by definition,
+
+                   or there is at least one non-seed node in the list, in which case eventually
+                   someone will gossip to it, and then do a gossip to a random seed from the
+                   gossipedToSeed check.
+
+                   See CASSANDRA-150 for more exposition. */
+                if (!gossipedToSeed || liveEndpoints.size() < seeds.size())
+                    doGossipToSeed(message);
+
+                doStatusCheck();
             }
         }
+        catch (Exception e)
+        {
+            logger.error("Gossip error", e);
+        }
     }
 
-    public GossiperSimulator(InetAddress broadcastAddr, List<InetAddress> incomingSeeds, CyclicBarrier barrier)
+    public GossiperSimulator(InetAddress broadcastAddr, List<InetAddress> incomingSeeds, CustomMessagingService messaging)
     {
         this.broadcastAddr = broadcastAddr;
-        this.roundBarrier = barrier;
+        this.messaging = messaging;
+        this.scheduler = messaging.scheduler();
+        random = messaging.newRandom();
+        digestBuilder = new DigestBuilder(random);
+        lastProcessedMessageAt = scheduler.currentTimeMillis();
         // half of QUARATINE_DELAY, to ensure justRemovedEndpoints has enough leeway to prevent re-gossip
         FatClientTimeout = (long) (QUARANTINE_DELAY / 2);
-        /* register with the Failure Detector for receiving Failure detector events */
-//        FailureDetector.instance.registerFailureDetectionEventListener(this);
         for (InetAddress seed : incomingSeeds)
         {
             if (seed.equals(getBroadcastAddress()))
                 continue;
             seeds.add(seed);
         }
-
-        executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("gossiper_" + broadcastAddr.toString()));
     }
 
     private InetAddress getBroadcastAddress()
     {
         return broadcastAddr;
     }
+
+    public InetAddress address()
+    {
+        return broadcastAddr;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void receive(MessageIn<?> message, SimulatedNode sender)
+    {
+        // a simulation runs a single protocol, so the gossip verbs should only ever come from another gossiper
+        if (!(sender instanceof GossiperSimulator))
+        {
+            logger.warn("dropping {} from {}, which doesn't run the Cassandra gossiper", message.verb, message.from);
+            return;
+        }
+        GossiperSimulator from = (GossiperSimulator) sender;
+        switch (message.verb)
+        {
+            case GOSSIP_DIGEST_SYN:
+                new GossipDigestSynVerbHandlerSimulator().doVerb((MessageIn<GossipDigestSyn>) message, from, this);
+                break;
+            case GOSSIP_DIGEST_ACK:
+                new GossipDigestAckVerbHandlerSimulator().doVerb((MessageIn<GossipDigestAck>) message, from, this);
+                break;
+            case GOSSIP_DIGEST_ACK2:
+                new GossipDigestAck2VerbHandlerSimulator().doVerb((MessageIn<GossipDigestAck2>) message, this);
+                break;
+        }
+    }
+
+    /**
+     * Give the node a failure detector, which reports convictions back to the node.
+     */
+    void setFailureDetector(SimulatedFailureDetector failureDetector)
+    {
+        this.failureDetector = failureDetector;
+    }
+
+    /**
+     * Gossip to this many (randomly chosen, so not necessarily distinct) live members each round.
+     */
+    public void setFanout(int fanout)
+    {
+        if (fanout < 1)
+            throw new IllegalArgumentException("fanout must be at least 1, got " + fanout);
+        this.fanout = fanout;
+    }
+
+    public void setConvergenceTracker(ConvergenceTracker tracker)
+    {
+        convergenceTracker = tracker;
+    }
+
+    public void setTrace(TraceRecorder.Buffer trace)
+    {
+        this.trace = trace;
+    }
+
+    public void trace(TraceRecorder.Event event, InetAddress peer, InetAddress subject, int value)
+    {
+        TraceRecorder.Buffer trace = this.trace;
+        if (trace != null)
+            trace.record(event, peer, subject, value);
+    }
+
+    /* a new value for the endpoint's state, made here */
+    private void originated(InetAddress ep, EndpointState epState, VersionedValue value)
+    {
+        messaging.dissemination.originate(ep, epState.getHeartBeatState().getGeneration(), value.version);
+    }
+
+    /* a remote node's state, at versions after fromVersion up to toVersion, has been applied */
+    private void applied(InetAddress ep, int generation, int fromVersion, int toVersion)
+    {
+        trace(TraceRecorder.Event.APPLY, null, ep, toVersion);
+        messaging.dissemination.seen(ep, generation, fromVersion, toVersion);
+    }
+
+    /**
+     * Open a change to the endpoint's state, under the stateLock.
+     *
+     * @return the fingerprint of the state before the change; skips the work if no-one is tracking convergence
+     */
+    private long beginStateChange(InetAddress ep)
+    {
+        viewSequence++;
+        return convergenceTracker == null ? 0 : ConvergenceTracker.fingerprint(ep, endpointStateMap.get(ep));
+    }
+
+    /* EndpointState stamps its update time off the system clock, which would tie evictions to how fast the simulation runs */
+    private void touch(EndpointState epState)
+    {
+        if (epState instanceof MaxVersionEndpointState)
+            ((MaxVersionEndpointState) epState).updateTimestamp(scheduler.nanoTime());
+        else
+            epState.updateTimestamp();
+    }
+
+    private void endStateChange(InetAddress ep, long before)
+    {
+        ConvergenceTracker tracker = convergenceTracker;
+        if (tracker != null)
+        {
+            long after = ConvergenceTracker.fingerprint(ep, endpointStateMap.get(ep));
+            tracker.update(getBroadcastAddress(), ep, before, after);
+            if (after != before)
+                viewChanges++;
+        }
+        viewSequence++;
+    }
+
+    /**
+     * @return a sequence that is odd while the endpoint state map is being changed, and moves on with every change
+     */
+    public long viewSequence()
+    {
+        return viewSequence;
+    }
+
+    /**
+     * @return how many times this node's view of the cluster (generations and application states, not heartbeats) has changed
+     */
+    public long viewChanges()
+    {
+        return viewChanges;
+    }
+
+    public Map<InetAddress, EndpointState> endpointStates()
+    {
+        return Collections.unmodifiableMap(endpointStateMap);
+    }
     
     public void setLastProcessedMessageAt(long timeInMillis)
     {
@@ -286,7 +426,7 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
     {
         Long downtime = unreachableEndpoints.get(ep);
         if (downtime != null)
-            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downtime);
+            return TimeUnit.NANOSECONDS.toMillis(scheduler.nanoTime() - downtime);
         else
             return 0L;
     }
@@ -300,14 +440,33 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
     public void convict(InetAddress endpoint, double phi)
     {
         EndpointState epState = endpointStateMap.get(endpoint);
+        if (epState == null)
+            return;
         if (epState.isAlive() && !isDeadState(epState))
         {
+            messaging.recordConviction(endpoint);
             markDead(endpoint, epState);
         }
         else
             epState.markDead();
     }
 
+    /**
+     * All additions to, and removals from, the endpointStateMap should go through here (or tell the digestBuilder
+     * themselves), so the gossip digest stays in step with the membership.
+     */
+    void putEndpointState(InetAddress ep, EndpointState epState)
+    {
+        endpointStateMap.put(ep, epState);
+        digestBuilder.add(ep);
+    }
+
+    private void removeEndpointState(InetAddress ep)
+    {
+        endpointStateMap.remove(ep);
+        digestBuilder.remove(ep);
+    }
+
     /**
      * Return either: the greatest heartbeat or application state
      *
@@ -316,6 +475,9 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      */
     int getMaxEndpointStateVersion(EndpointState epState)
     {
+        if (epState instanceof MaxVersionEndpointState)
+            return ((MaxVersionEndpointState) epState).getMaxVersion();
+
         int maxVersion = epState.getHeartBeatState().getHeartBeatVersion();
         for (VersionedValue value : epState.getApplicationStateMap().values())
             maxVersion = Math.max(maxVersion, value.version);
@@ -329,8 +491,13 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      */
     private void evictFromMembership(InetAddress endpoint)
     {
-        unreachableEndpoints.remove(endpoint);
-        endpointStateMap.remove(endpoint);
+        removeUnreachable(endpoint);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(endpoint);
+            removeEndpointState(endpoint);
+            endStateChange(endpoint, before);
+        }
         expireTimeEndpointMap.remove(endpoint);
         quarantineEndpoint(endpoint);
         if (logger.isDebugEnabled())
@@ -354,9 +521,11 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         }
 
         liveEndpoints.remove(endpoint);
-        unreachableEndpoints.remove(endpoint);
+        removeUnreachable(endpoint);
         // do not remove endpointState until the quarantine expires
-//        FailureDetector.instance.remove(endpoint);
+        SimulatedFailureDetector fd = failureDetector;
+        if (fd != null)
+            fd.remove(endpoint);
         //gossipocolypse
 //        MessagingService.instance().resetVersion(endpoint);
         quarantineEndpoint(endpoint);
@@ -373,7 +542,7 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      */
     private void quarantineEndpoint(InetAddress endpoint)
     {
-        justRemovedEndpoints.put(endpoint, System.currentTimeMillis());
+        justRemovedEndpoints.put(endpoint, scheduler.currentTimeMillis());
     }
 
     /**
@@ -396,23 +565,8 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      */
     public void makeRandomGossipDigest(List<GossipDigest> gDigests)
     {
-        EndpointState epState;
-        int generation = 0;
-        int maxVersion = 0;
-
         // local epstate will be part of endpointStateMap
-        List<InetAddress> endpoints = new ArrayList<InetAddress>(endpointStateMap.keySet());
-        Collections.shuffle(endpoints, random);
-        for (InetAddress endpoint : endpoints)
-        {
-            epState = endpointStateMap.get(endpoint);
-            if (epState != null)
-            {
-                generation = epState.getHeartBeatState().getGeneration();
-                maxVersion = getMaxEndpointStateVersion(epState);
-            }
-            gDigests.add(new GossipDigest(endpoint, generation, maxVersion));
-        }
+        digestBuilder.build(endpointStateMap, this, gDigests);
 
         if (logger.isTraceEnabled())
         {
@@ -442,18 +596,37 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         logger.info("Removing host: {}", hostId);
         logger.info("Sleeping for {}ms to ensure {} does not change", RING_DELAY, endpoint);
         Uninterruptibles.sleepUninterruptibly(RING_DELAY, TimeUnit.MILLISECONDS);
+        advertiseRemovingNoWait(endpoint, generation, hostId, localHostId);
+    }
+
+    /**
+     * The second half of {@link #advertiseRemoving(InetAddress, UUID, UUID)}, for callers that can't sleep through
+     * RING_DELAY (such as the simulation's own round action) and wait it out themselves.
+     *
+     * @param generation the endpoint's generation from before waiting
+     */
+    void advertiseRemovingNoWait(InetAddress endpoint, int generation, UUID hostId, UUID localHostId)
+    {
         // make sure it did not change
-        epState = endpointStateMap.get(endpoint);
+        EndpointState epState = endpointStateMap.get(endpoint);
         if (epState.getHeartBeatState().getGeneration() != generation)
             throw new RuntimeException("Endpoint " + endpoint + " generation changed while trying to remove it");
         // update the other node's generation to mimic it as if it had changed it itself
         logger.info("Advertising removal for {}", endpoint);
-        epState.updateTimestamp(); // make sure we don't evict it too soon
-        epState.getHeartBeatState().forceNewerGenerationUnsafe();
-        //gossipocolypse
-//        epState.addApplicationState(ApplicationState.STATUS, StorageService.instance.valueFactory.removingNonlocal(hostId));
-//        epState.addApplicationState(ApplicationState.REMOVAL_COORDINATOR, StorageService.instance.valueFactory.removalCoordinator(localHostId));
-        endpointStateMap.put(endpoint, epState);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(endpoint);
+            touch(epState); // make sure we don't evict it too soon
+            ((MaxVersionEndpointState) epState).forceNewerGeneration();
+            VersionedValue removing = messaging.values.removingNonlocal(hostId);
+            VersionedValue coordinator = messaging.values.removalCoordinator(localHostId);
+            epState.addApplicationState(ApplicationState.STATUS, removing);
+            epState.addApplicationState(ApplicationState.REMOVAL_COORDINATOR, coordinator);
+            originated(endpoint, epState, removing);
+            originated(endpoint, epState, coordinator);
+            endpointStateMap.put(endpoint, epState);
+            endStateChange(endpoint, before);
+        }
     }
 
     /**
@@ -464,18 +637,32 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      * @param hostId
      */
     public void advertiseTokenRemoved(InetAddress endpoint, UUID hostId)
+    {
+        advertiseTokenRemovedNoWait(endpoint, hostId);
+        // ensure at least one gossip round occurs before returning
+        Uninterruptibles.sleepUninterruptibly(scheduler.intervalMillis() * 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@link #advertiseTokenRemoved(InetAddress, UUID)}, without waiting for a gossip round to go by.
+     */
+    void advertiseTokenRemovedNoWait(InetAddress endpoint, UUID hostId)
     {
         EndpointState epState = endpointStateMap.get(endpoint);
-        epState.updateTimestamp(); // make sure we don't evict it too soon
-        epState.getHeartBeatState().forceNewerGenerationUnsafe();
         long expireTime = computeExpireTime();
-        //gossipocolypse
-//        epState.addApplicationState(ApplicationState.STATUS, StorageService.instance.valueFactory.removedNonlocal(hostId, expireTime));
-        logger.info("Completing removal of {}", endpoint);
-        addExpireTimeForEndpoint(endpoint, expireTime);
-        endpointStateMap.put(endpoint, epState);
-        // ensure at least one gossip round occurs before returning
-        Uninterruptibles.sleepUninterruptibly(intervalInMillis * 2, TimeUnit.MILLISECONDS);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(endpoint);
+            touch(epState); // make sure we don't evict it too soon
+            ((MaxVersionEndpointState) epState).forceNewerGeneration();
+            VersionedValue removed = messaging.values.removedNonlocal(hostId, expireTime);
+            epState.addApplicationState(ApplicationState.STATUS, removed);
+            originated(endpoint, epState, removed);
+            logger.info("Completing removal of {}", endpoint);
+            addExpireTimeForEndpoint(endpoint, expireTime);
+            endpointStateMap.put(endpoint, epState);
+            endStateChange(endpoint, before);
+        }
     }
 
     /**
@@ -549,22 +736,29 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      * @param epSet   a set of endpoint from which a random endpoint is chosen.
      * @return true if the chosen endpoint is also a seed.
      */
-    private boolean sendGossip(MessageOut<GossipDigestSyn> message, Set<InetAddress> epSet)
+    private boolean sendGossip(MessageOut<GossipDigestSyn> message, MembershipView epSet)
     {
-        List<InetAddress> liveEndpoints = ImmutableList.copyOf(epSet);
-        
-        int size = liveEndpoints.size();
-        if (size < 1)
+        InetAddress to = epSet.random(random);
+        if (to == null)
             return false;
-        /* Generate a random number from 0 -> size */
-        int index = (size == 1) ? 0 : random.nextInt(size);
-        InetAddress to = liveEndpoints.get(index);
         if (logger.isTraceEnabled())
             logger.trace("Sending a GossipDigestSyn to {} ...", to);
-        CustomMessagingService.instance().sendOneWay(message, to, this);
+        messaging.sendOneWay(message, to, this);
         return seeds.contains(to);
     }
 
+    private void addUnreachable(InetAddress ep)
+    {
+        unreachableEndpoints.put(ep, scheduler.nanoTime());
+        unreachableMembers.add(ep);
+    }
+
+    private void removeUnreachable(InetAddress ep)
+    {
+        unreachableEndpoints.remove(ep);
+        unreachableMembers.remove(ep);
+    }
+
     /* Sends a Gossip message to a live member and returns true if the recipient was a seed */
     private boolean doGossipToLiveMember(MessageOut<GossipDigestSyn> message)
     {
@@ -585,7 +779,7 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
             double prob = unreachableEndpointCount / (liveEndpointCount + 1);
             double randDbl = random.nextDouble();
             if (randDbl < prob)
-                sendGossip(message, unreachableEndpoints.keySet());
+                sendGossip(message, unreachableMembers);
         }
     }
 
@@ -631,8 +825,9 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         if (logger.isTraceEnabled())
             logger.trace("Performing status check ...");
 
-        long now = System.currentTimeMillis();
-        long nowNano = System.nanoTime();
+        long now = scheduler.currentTimeMillis();
+        // endpoint states are stamped from the simulation clock (see touch())
+        long nowNano = scheduler.nanoTime();
 
         //gossipocolypse
 //        long pending = ((JMXEnabledThreadPoolExecutor) StageManager.getStage(Stage.GOSSIP)).getPendingTasks();
@@ -649,13 +844,15 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
 //            }
 //        }
 
+        SimulatedFailureDetector fd = failureDetector;
         Set<InetAddress> eps = endpointStateMap.keySet();
         for (InetAddress endpoint : eps)
         {
             if (endpoint.equals(getBroadcastAddress()))
                 continue;
 
-//            FailureDetector.instance.interpret(endpoint);
+            if (fd != null)
+                fd.interpret(endpoint);
             EndpointState epState = endpointStateMap.get(endpoint);
             if (epState != null)
             {
@@ -714,8 +911,17 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
     // removes ALL endpoint states; should only be called after shadow gossip
     public void resetEndpointStateMap()
     {
-        endpointStateMap.clear();
+        synchronized (stateLock)
+        {
+            for (InetAddress ep : endpointStateMap.keySet())
+            {
+                long before = beginStateChange(ep);
+                removeEndpointState(ep);
+                endStateChange(ep, before);
+            }
+        }
         unreachableEndpoints.clear();
+        unreachableMembers.clear();
         liveEndpoints.clear();
     }
 
@@ -754,6 +960,8 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
 
         if (epState != null)
         {
+            // read one version of the state, so the delta and its source agree
+            FrozenEndpointState frozen = ((MaxVersionEndpointState) epState).frozen();
             /*
              * Here we try to include the Heart Beat state only if it is
              * greater than the version passed in. It might happen that
@@ -762,22 +970,22 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
              * than the version passed in. In this case we also send the old
              * heart beat and throw it away on the receiver if it is redundant.
             */
-            int localHbVersion = epState.getHeartBeatState().getHeartBeatVersion();
+            int localHbVersion = frozen.heartBeat.getHeartBeatVersion();
             if (localHbVersion > version)
             {
-                reqdEndpointState = new EndpointState(epState.getHeartBeatState());
+                reqdEndpointState = new FrozenEndpointState.Delta(frozen);
                 if (logger.isTraceEnabled())
                     logger.trace("local heartbeat version " + localHbVersion + " greater than " + version + " for " + forEndpoint);
             }
             /* Accumulate all application states whose versions are greater than "version" variable */
-            for (Entry<ApplicationState, VersionedValue> entry : epState.getApplicationStateMap().entrySet())
+            for (Entry<ApplicationState, VersionedValue> entry : frozen.states.entrySet())
             {
                 VersionedValue value = entry.getValue();
                 if (value.version > version)
                 {
                     if (reqdEndpointState == null)
                     {
-                        reqdEndpointState = new EndpointState(epState.getHeartBeatState());
+                        reqdEndpointState = new FrozenEndpointState.Delta(frozen);
                     }
                     final ApplicationState key = entry.getKey();
                     if (logger.isTraceEnabled())
@@ -802,9 +1010,11 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
 
     void notifyFailureDetector(Map<InetAddress, EndpointState> remoteEpStateMap)
     {
+        if (failureDetector == null)
+            return;
         for (Entry<InetAddress, EndpointState> entry : remoteEpStateMap.entrySet())
         {
-//            notifyFailureDetector(entry.getKey(), entry.getValue());
+            notifyFailureDetector(entry.getKey(), entry.getValue());
         }
     }
 
@@ -815,14 +1025,14 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
          * If the local endpoint state exists then report to the FD only
          * if the versions workout.
         */
-        if (localEndpointState != null)
+        SimulatedFailureDetector fd = failureDetector;
+        if (localEndpointState != null && fd != null)
         {
-            IFailureDetector fd = FailureDetector.instance;
             int localGeneration = localEndpointState.getHeartBeatState().getGeneration();
             int remoteGeneration = remoteEndpointState.getHeartBeatState().getGeneration();
             if (remoteGeneration > localGeneration)
             {
-                localEndpointState.updateTimestamp();
+                touch(localEndpointState);
                 // this node was dead and the generation changed, this indicates a reboot, or possibly a takeover
                 // we will clean the fd intervals for it and relearn them
                 if (!localEndpointState.isAlive())
@@ -840,7 +1050,7 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
                 int remoteVersion = remoteEndpointState.getHeartBeatState().getHeartBeatVersion();
                 if (remoteVersion > localVersion)
                 {
-                    localEndpointState.updateTimestamp();
+                    touch(localEndpointState);
                     // just a version change, report to the fd
                     fd.report(endpoint);
                 }
@@ -881,9 +1091,10 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         if (logger.isTraceEnabled())
                 logger.trace("marking as alive {}", addr);
         localState.markAlive();
-        localState.updateTimestamp(); // prevents doStatusCheck from racing us and evicting if it was down > aVeryLongTime
+        trace(TraceRecorder.Event.MARK_ALIVE, null, addr, 0);
+        touch(localState); // prevents doStatusCheck from racing us and evicting if it was down > aVeryLongTime
         liveEndpoints.add(addr);
-        unreachableEndpoints.remove(addr);
+        removeUnreachable(addr);
         expireTimeEndpointMap.remove(addr);
         logger.debug("removing expire time for endpoint : " + addr);
         logger.info("InetAddress {} is now UP", addr);
@@ -898,8 +1109,9 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         if (logger.isTraceEnabled())
             logger.trace("marking as down {}", addr);
         localState.markDead();
+        trace(TraceRecorder.Event.MARK_DEAD, null, addr, 0);
         liveEndpoints.remove(addr);
-        unreachableEndpoints.put(addr, System.nanoTime());
+        addUnreachable(addr);
         logger.info("InetAddress {} is now DOWN", addr);
         for (IEndpointStateChangeSubscriber subscriber : subscribers)
             subscriber.onDead(addr, localState);
@@ -924,7 +1136,10 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         }
         if (logger.isTraceEnabled())
             logger.trace("Adding endpoint state for " + ep);
-        endpointStateMap.put(ep, epState);
+        // keep our own entry for the endpoint, sharing the sender's version of the state where we can
+        epState = MaxVersionEndpointState.copyOf(epState);
+        touch(epState);
+        putEndpointState(ep, epState);
 
         // the node restarted: it is up to the subscriber to take whatever action is necessary
         for (IEndpointStateChangeSubscriber subscriber : subscribers)
@@ -971,54 +1186,68 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
                 continue;
             }
 
-            EndpointState localEpStatePtr = endpointStateMap.get(ep);
-            EndpointState remoteState = entry.getValue();
-            /*
-                If state does not exist just add it. If it does then add it if the remote generation is greater.
-                If there is a generation tie, attempt to break it by heartbeat version.
-            */
-            if (localEpStatePtr != null)
+            synchronized (stateLock)
             {
-                int localGeneration = localEpStatePtr.getHeartBeatState().getGeneration();
-                int remoteGeneration = remoteState.getHeartBeatState().getGeneration();
-                if (logger.isTraceEnabled())
-                    logger.trace(ep + "local generation " + localGeneration + ", remote generation " + remoteGeneration);
+                long before = beginStateChange(ep);
+                applyStateLocally(ep, entry.getValue());
+                endStateChange(ep, before);
+            }
+        }
+    }
 
-                if (remoteGeneration > localGeneration)
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("Updating heartbeat state generation to " + remoteGeneration + " from " + localGeneration + " for " + ep);
-                    // major state change will handle the update by inserting the remote state directly
-                    handleMajorStateChange(ep, remoteState);
-                }
-                else if (remoteGeneration == localGeneration) // generation has not changed, apply new states
-                {
-                    /* find maximum state */
-                    int localMaxVersion = getMaxEndpointStateVersion(localEpStatePtr);
-                    int remoteMaxVersion = getMaxEndpointStateVersion(remoteState);
-                    if (remoteMaxVersion > localMaxVersion)
-                    {
-                        // apply states, but do not notify since there is no major change
-                        applyNewStates(ep, localEpStatePtr, remoteState);
-                    }
-                    else if (logger.isTraceEnabled())
-                            logger.trace("Ignoring remote version " + remoteMaxVersion + " <= " + localMaxVersion + " for " + ep);
-                    if (!localEpStatePtr.isAlive() && !isDeadState(localEpStatePtr)) // unless of course, it was dead
-                        markAlive(ep, localEpStatePtr);
-                }
-                else
+    private void applyStateLocally(InetAddress ep, EndpointState remoteState)
+    {
+        EndpointState localEpStatePtr = endpointStateMap.get(ep);
+        /*
+            If state does not exist just add it. If it does then add it if the remote generation is greater.
+            If there is a generation tie, attempt to break it by heartbeat version.
+        */
+        if (localEpStatePtr != null)
+        {
+            int localGeneration = localEpStatePtr.getHeartBeatState().getGeneration();
+            int remoteGeneration = remoteState.getHeartBeatState().getGeneration();
+            if (logger.isTraceEnabled())
+                logger.trace(ep + "local generation " + localGeneration + ", remote generation " + remoteGeneration);
+
+            if (remoteGeneration > localGeneration)
+            {
+                if (logger.isTraceEnabled())
+                    logger.trace("Updating heartbeat state generation to " + remoteGeneration + " from " + localGeneration + " for " + ep);
+                // major state change will handle the update by inserting the remote state directly
+                handleMajorStateChange(ep, remoteState);
+                applied(ep, remoteGeneration, Integer.MIN_VALUE, getMaxEndpointStateVersion(remoteState));
+            }
+            else if (remoteGeneration == localGeneration) // generation has not changed, apply new states
+            {
+                /* find maximum state */
+                int localMaxVersion = getMaxEndpointStateVersion(localEpStatePtr);
+                int remoteMaxVersion = getMaxEndpointStateVersion(remoteState);
+                if (remoteMaxVersion > localMaxVersion)
                 {
-                    if (logger.isTraceEnabled())
-                        logger.trace("Ignoring remote generation " + remoteGeneration + " < " + localGeneration);
+                    // apply states, but do not notify since there is no major change
+                    applyNewStates(ep, localEpStatePtr, remoteState);
+                    applied(ep, remoteGeneration, localMaxVersion, remoteMaxVersion);
                 }
+                else if (logger.isTraceEnabled())
+                        logger.trace("Ignoring remote version " + remoteMaxVersion + " <= " + localMaxVersion + " for " + ep);
+                if (!localEpStatePtr.isAlive() && !isDeadState(localEpStatePtr)) // unless of course, it was dead
+                    markAlive(ep, localEpStatePtr);
             }
             else
             {
-                // this is a new node, report it to the FD in case it is the first time we are seeing it AND it's not alive
-//                FailureDetector.instance.report(ep);
-                handleMajorStateChange(ep, remoteState);
+                if (logger.isTraceEnabled())
+                    logger.trace("Ignoring remote generation " + remoteGeneration + " < " + localGeneration);
             }
         }
+        else
+        {
+            // this is a new node, report it to the FD in case it is the first time we are seeing it AND it's not alive
+            SimulatedFailureDetector fd = failureDetector;
+            if (fd != null)
+                fd.report(ep);
+            handleMajorStateChange(ep, remoteState);
+            applied(ep, remoteState.getHeartBeatState().getGeneration(), Integer.MIN_VALUE, getMaxEndpointStateVersion(remoteState));
+        }
     }
 
     private void applyNewStates(InetAddress addr, EndpointState localState, EndpointState remoteState)
@@ -1026,19 +1255,12 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         // don't assert here, since if the node restarts the version will go back to zero
         int oldVersion = localState.getHeartBeatState().getHeartBeatVersion();
 
-        localState.setHeartBeatState(remoteState.getHeartBeatState());
+        // apply all the states in one go, then notify, this way all states in an update are present and current when the notifications are received
+        assert remoteState.getHeartBeatState().getGeneration() == localState.getHeartBeatState().getGeneration();
+        ((MaxVersionEndpointState) localState).merge(remoteState);
         if (logger.isTraceEnabled())
             logger.trace("Updating heartbeat state version to " + localState.getHeartBeatState().getHeartBeatVersion() + " from " + oldVersion + " for " + addr + " ...");
 
-        // we need to make two loops here, one to apply, then another to notify, this way all states in an update are present and current when the notifications are received
-        for (Entry<ApplicationState, VersionedValue> remoteEntry : remoteState.getApplicationStateMap().entrySet())
-        {
-            ApplicationState remoteKey = remoteEntry.getKey();
-            VersionedValue remoteValue = remoteEntry.getValue();
-
-            assert remoteState.getHeartBeatState().getGeneration() == localState.getHeartBeatState().getGeneration();
-            localState.addApplicationState(remoteKey, remoteValue);
-        }
         for (Entry<ApplicationState, VersionedValue> remoteEntry : remoteState.getApplicationStateMap().entrySet())
         {
             doOnChangeNotifications(addr, remoteEntry.getKey(), remoteEntry.getValue());
@@ -1168,17 +1390,23 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         /* initialize the heartbeat state for this localEndpoint */
         maybeInitializeLocalState(generationNbr);
         EndpointState localState = endpointStateMap.get(getBroadcastAddress());
-        for (Map.Entry<ApplicationState, VersionedValue> entry : preloadLocalStates.entrySet())
-            localState.addApplicationState(entry.getKey(), entry.getValue());
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(getBroadcastAddress());
+            for (Map.Entry<ApplicationState, VersionedValue> entry : preloadLocalStates.entrySet())
+            {
+                localState.addApplicationState(entry.getKey(), entry.getValue());
+                originated(getBroadcastAddress(), localState, entry.getValue());
+            }
+            endStateChange(getBroadcastAddress(), before);
+        }
 
         //notify snitches that Gossiper is about to start
         if (logger.isTraceEnabled())
             logger.trace("gossip started with generation " + localState.getHeartBeatState().getGeneration());
 
-        scheduledGossipTask = executor.scheduleWithFixedDelay(new GossipTask(),
-                                                              GossiperSimulator.intervalInMillis,
-                                                              GossiperSimulator.intervalInMillis,
-                                                              TimeUnit.MILLISECONDS);
+        enabled = true;
+        scheduler.register(this);
     }
 
     /**
@@ -1187,36 +1415,22 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
      */
     public void doShadowRound()
     {
-        //gossipocolypse
-//        buildSeedsList();
-//        // send a completely empty syn
-//        List<GossipDigest> gDigests = new ArrayList<GossipDigest>();
-//        GossipDigestSyn digestSynMessage = new GossipDigestSyn(DatabaseDescriptor.getClusterName(),
-//                DatabaseDescriptor.getPartitionerName(),
-//                gDigests);
-//        MessageOut<GossipDigestSyn> message = new MessageOut<GossipDigestSyn>(CustomMessagingService.Verb.GOSSIP_DIGEST_SYN,
-//                digestSynMessage,
-//                GossipDigestSyn.serializer);
-//        inShadowRound = true;
-//        for (InetAddress seed : seeds)
-//            CustomMessagingService.instance().sendOneWay(message, seed);
-//        int slept = 0;
-//        try
-//        {
-//            while (true)
-//            {
-//                Thread.sleep(1000);
-//                if (!inShadowRound)
-//                    break;
-//                slept += 1000;
-//                if (slept > RING_DELAY)
-//                    throw new RuntimeException("Unable to gossip with any seeds");
-//            }
-//        }
-//        catch (InterruptedException wtf)
-//        {
-//            throw new RuntimeException(wtf);
-//        }
+        buildSeedsList();
+        // send a completely empty syn
+        List<GossipDigest> gDigests = new ArrayList<GossipDigest>();
+        GossipDigestSyn digestSynMessage = new GossipDigestSyn("gossipocolypse",
+                                                               "BigFunTimePartitoner",
+                                                               gDigests);
+        MessageOut<GossipDigestSyn> message = new MessageOut<GossipDigestSyn>(broadcastAddr,
+                                                                              MessagingService.Verb.GOSSIP_DIGEST_SYN,
+                                                                              digestSynMessage,
+                                                                              GossipDigestSyn.serializer,
+                                                                              CustomMessagingService.parameters);
+        inShadowRound = true;
+        for (InetAddress seed : seeds)
+            messaging.sendOneWay(message, seed, this);
+        // gossipocolypse: sleeping until a seed answers would stall the simulation (and, under the discrete event
+        // scheduler, the answer would never come), so callers poll isInShadowRound() instead - see ChurnScenario
     }
 
     private void buildSeedsList()
@@ -1232,10 +1446,17 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
     // initialize local HB state if needed, i.e., if gossiper has never been started before.
     public void maybeInitializeLocalState(int generationNbr)
     {
-        HeartBeatState hbState = new UniqueHeartBeatState(generationNbr);
-        EndpointState localState = new EndpointState(hbState);
+        HeartBeatState hbState = new FrozenHeartBeatState(generationNbr);
+        EndpointState localState = new MaxVersionEndpointState(hbState);
         localState.markAlive();
-        endpointStateMap.putIfAbsent(getBroadcastAddress(), localState);
+        touch(localState);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(getBroadcastAddress());
+            endpointStateMap.putIfAbsent(getBroadcastAddress(), localState);
+            digestBuilder.add(getBroadcastAddress());
+            endStateChange(getBroadcastAddress(), before);
+        }
     }
 
     /**
@@ -1254,17 +1475,23 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         if (epState != null)
         {
             logger.debug("not replacing a previous epState for {}, but reusing it: {}", ep, epState);
-            epState.setHeartBeatState(new UniqueHeartBeatState(0));
+            epState.setHeartBeatState(new FrozenHeartBeatState(0));
         }
         else
         {
-            epState = new EndpointState(new UniqueHeartBeatState(0));
+            epState = new MaxVersionEndpointState(new FrozenHeartBeatState(0));
+            touch(epState);
         }
 
 
         epState.markDead();
-        endpointStateMap.put(ep, epState);
-        unreachableEndpoints.put(ep, System.nanoTime());
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(ep);
+            putEndpointState(ep, epState);
+            endStateChange(ep, before);
+        }
+        addUnreachable(ep);
         if (logger.isTraceEnabled())
             logger.trace("Adding saved endpoint " + ep + " " + epState.getHeartBeatState().getGeneration());
     }
@@ -1279,33 +1506,39 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         // Notifications may have taken some time, so preventively raise the version
         // of the new value, otherwise it could be ignored by the remote node
         // if another value with a newer version was received in the meantime:
-        value = valueFactory.cloneWithHigherVersion(value);
+        value = messaging.values.cloneWithHigherVersion(value);
         // Add to local application state and fire "on change" notifications:
-        epState.addApplicationState(state, value);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(epAddr);
+            epState.addApplicationState(state, value);
+            endStateChange(epAddr, before);
+        }
+        originated(epAddr, epState, value);
         doOnChangeNotifications(epAddr, state, value);
     }
 
     public void stop()
     {
-    	if (scheduledGossipTask != null)
-    		scheduledGossipTask.cancel(false);
+        enabled = false;
+        scheduler.unregister(this);
         logger.info("Announcing shutdown");
-        Uninterruptibles.sleepUninterruptibly(intervalInMillis * 2, TimeUnit.MILLISECONDS);
+        Uninterruptibles.sleepUninterruptibly(scheduler.intervalMillis() * 2, TimeUnit.MILLISECONDS);
         MessageOut message = new MessageOut(MessagingService.Verb.GOSSIP_SHUTDOWN);
         for (InetAddress ep : liveEndpoints)
-            CustomMessagingService.instance().sendOneWay(message, ep, this);
+            messaging.sendOneWay(message, ep, this);
     }
 
     public void terminate()
     {
-        if (scheduledGossipTask != null)
-            scheduledGossipTask.cancel(false);
-        executor.shutdownNow();
+        enabled = false;
+        inShadowRound = false;
+        scheduler.unregister(this);
     }
 
     public boolean isEnabled()
     {
-        return (scheduledGossipTask != null) && (!scheduledGossipTask.isCancelled());
+        return enabled;
     }
 
     protected void finishShadowRound()
@@ -1314,7 +1547,7 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
             inShadowRound = false;
     }
 
-    protected boolean isInShadowRound()
+    public boolean isInShadowRound()
     {
         return inShadowRound;
     }
@@ -1323,21 +1556,33 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
     public void initializeNodeUnsafe(InetAddress addr, UUID uuid, int generationNbr)
     {
         HeartBeatState hbState = new HeartBeatState(generationNbr);
-        EndpointState newState = new EndpointState(hbState);
+        EndpointState newState = new MaxVersionEndpointState(hbState);
         newState.markAlive();
-        EndpointState oldState = endpointStateMap.putIfAbsent(addr, newState);
-        EndpointState localState = oldState == null ? newState : oldState;
-
-        // always add the version state
-        localState.addApplicationState(ApplicationState.NET_VERSION, valueFactory.networkVersion());
-        localState.addApplicationState(ApplicationState.HOST_ID, valueFactory.hostId(uuid));
+        touch(newState);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(addr);
+            EndpointState oldState = endpointStateMap.putIfAbsent(addr, newState);
+            digestBuilder.add(addr);
+            EndpointState localState = oldState == null ? newState : oldState;
+
+            // always add the version state
+            localState.addApplicationState(ApplicationState.NET_VERSION, messaging.values.networkVersion());
+            localState.addApplicationState(ApplicationState.HOST_ID, messaging.values.hostId(uuid));
+            endStateChange(addr, before);
+        }
     }
 
     @VisibleForTesting
     public void injectApplicationState(InetAddress endpoint, ApplicationState state, VersionedValue value)
     {
         EndpointState localState = endpointStateMap.get(endpoint);
-        localState.addApplicationState(state, value);
+        synchronized (stateLock)
+        {
+            long before = beginStateChange(endpoint);
+            localState.addApplicationState(state, value);
+            endStateChange(endpoint, before);
+        }
     }
 
     public long getEndpointDowntime(String address) throws UnknownHostException
@@ -1359,9 +1604,9 @@ public class GossiperSimulator implements IFailureDetectionEventListener//, Goss
         expireTimeEndpointMap.put(endpoint, expireTime);
     }
 
-    public static long computeExpireTime()
+    public long computeExpireTime()
     {
-        return System.currentTimeMillis() + GossiperSimulator.aVeryLongTime;
+        return scheduler.currentTimeMillis() + GossiperSimulator.aVeryLongTime;
     }
 
 }
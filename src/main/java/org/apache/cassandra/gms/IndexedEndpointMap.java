@@ -0,0 +1,307 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A ConcurrentMap keyed by endpoint, with the values held in arrays indexed by the {@link EndpointRegistry} id of
+ * the endpoint. The arrays are allocated in chunks as ids are first used, so maps that only ever hold a few entries
+ * (unreachable, just removed, etc) stay small. Reads and value updates are lock-free; only allocating a new chunk
+ * takes a lock. Iteration is in id order and, like ConcurrentHashMap's, weakly consistent.
+ */
+public class IndexedEndpointMap<V> extends AbstractMap<InetAddress, V> implements ConcurrentMap<InetAddress, V>
+{
+    static final int CHUNK_SHIFT = 8;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final EndpointRegistry registry;
+    @SuppressWarnings("unchecked")
+    private volatile AtomicReferenceArray<V>[] chunks = new AtomicReferenceArray[0];
+    private final AtomicInteger size = new AtomicInteger();
+    private final EntrySet entrySet = new EntrySet();
+
+    public IndexedEndpointMap()
+    {
+        this(EndpointRegistry.instance);
+    }
+
+    IndexedEndpointMap(EndpointRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    private AtomicReferenceArray<V> chunk(int id)
+    {
+        AtomicReferenceArray<V>[] current = chunks;
+        int index = id >>> CHUNK_SHIFT;
+        return index < current.length ? current[index] : null;
+    }
+
+    private AtomicReferenceArray<V> chunkForWrite(int id)
+    {
+        AtomicReferenceArray<V> chunk = chunk(id);
+        if (chunk != null)
+            return chunk;
+
+        synchronized (this)
+        {
+            int index = id >>> CHUNK_SHIFT;
+            AtomicReferenceArray<V>[] current = chunks;
+            if (index < current.length && current[index] != null)
+                return current[index];
+            // copy on write, so readers never see a partially filled array
+            AtomicReferenceArray<V>[] updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+            updated[index] = chunk;
+            chunks = updated;
+            return chunk;
+        }
+    }
+
+    V get(int id)
+    {
+        AtomicReferenceArray<V> chunk = chunk(id);
+        return chunk == null ? null : chunk.get(id & CHUNK_MASK);
+    }
+
+    public V get(Object key)
+    {
+        int id = registry.lookup(key);
+        return id < 0 ? null : get(id);
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return get(key) != null;
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public boolean isEmpty()
+    {
+        return size.get() == 0;
+    }
+
+    public V put(InetAddress key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException();
+        int id = registry.idOf(key);
+        V previous = chunkForWrite(id).getAndSet(id & CHUNK_MASK, value);
+        if (previous == null)
+            size.incrementAndGet();
+        return previous;
+    }
+
+    public V putIfAbsent(InetAddress key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException();
+        int id = registry.idOf(key);
+        AtomicReferenceArray<V> chunk = chunkForWrite(id);
+        int index = id & CHUNK_MASK;
+        while (true)
+        {
+            if (chunk.compareAndSet(index, null, value))
+            {
+                size.incrementAndGet();
+                return null;
+            }
+            V current = chunk.get(index);
+            if (current != null)
+                return current;
+        }
+    }
+
+    public V remove(Object key)
+    {
+        int id = registry.lookup(key);
+        if (id < 0)
+            return null;
+        AtomicReferenceArray<V> chunk = chunk(id);
+        if (chunk == null)
+            return null;
+        V previous = chunk.getAndSet(id & CHUNK_MASK, null);
+        if (previous != null)
+            size.decrementAndGet();
+        return previous;
+    }
+
+    public boolean remove(Object key, Object value)
+    {
+        int id = registry.lookup(key);
+        if (id < 0 || value == null)
+            return false;
+        AtomicReferenceArray<V> chunk = chunk(id);
+        if (chunk == null)
+            return false;
+        int index = id & CHUNK_MASK;
+        while (true)
+        {
+            V current = chunk.get(index);
+            if (current == null || !current.equals(value))
+                return false;
+            if (chunk.compareAndSet(index, current, null))
+            {
+                size.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean replace(InetAddress key, V oldValue, V newValue)
+    {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        int id = registry.lookup(key);
+        AtomicReferenceArray<V> chunk = id < 0 ? null : chunk(id);
+        if (chunk == null)
+            return false;
+        int index = id & CHUNK_MASK;
+        while (true)
+        {
+            V current = chunk.get(index);
+            if (current == null || !current.equals(oldValue))
+                return false;
+            if (chunk.compareAndSet(index, current, newValue))
+                return true;
+        }
+    }
+
+    public V replace(InetAddress key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException();
+        int id = registry.lookup(key);
+        AtomicReferenceArray<V> chunk = id < 0 ? null : chunk(id);
+        if (chunk == null)
+            return null;
+        int index = id & CHUNK_MASK;
+        while (true)
+        {
+            V current = chunk.get(index);
+            if (current == null)
+                return null;
+            if (chunk.compareAndSet(index, current, value))
+                return current;
+        }
+    }
+
+    public void clear()
+    {
+        for (AtomicReferenceArray<V> chunk : chunks)
+        {
+            if (chunk == null)
+                continue;
+            for (int i = 0; i < CHUNK_SIZE; i++)
+            {
+                if (chunk.getAndSet(i, null) != null)
+                    size.decrementAndGet();
+            }
+        }
+    }
+
+    public Set<Map.Entry<InetAddress, V>> entrySet()
+    {
+        return entrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<InetAddress, V>>
+    {
+        public Iterator<Map.Entry<InetAddress, V>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        public int size()
+        {
+            return IndexedEndpointMap.this.size();
+        }
+
+        public void clear()
+        {
+            IndexedEndpointMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<InetAddress, V>>
+    {
+        private final int limit = registry.size();
+        private int nextId = -1;
+        private V nextValue;
+        private InetAddress lastKey;
+
+        EntryIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            nextValue = null;
+            while (++nextId < limit)
+            {
+                AtomicReferenceArray<V> chunk = chunk(nextId);
+                if (chunk == null)
+                {
+                    // skip the rest of the missing chunk
+                    nextId |= CHUNK_MASK;
+                    continue;
+                }
+                nextValue = chunk.get(nextId & CHUNK_MASK);
+                if (nextValue != null)
+                    return;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return nextValue != null;
+        }
+
+        public Map.Entry<InetAddress, V> next()
+        {
+            if (nextValue == null)
+                throw new NoSuchElementException();
+            Map.Entry<InetAddress, V> entry = new WriteThroughEntry(registry.address(nextId), nextValue);
+            lastKey = entry.getKey();
+            advance();
+            return entry;
+        }
+
+        public void remove()
+        {
+            if (lastKey == null)
+                throw new IllegalStateException();
+            IndexedEndpointMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<InetAddress, V>
+    {
+        WriteThroughEntry(InetAddress key, V value)
+        {
+            super(key, value);
+        }
+
+        public V setValue(V value)
+        {
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+}
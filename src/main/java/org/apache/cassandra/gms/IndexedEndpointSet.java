@@ -0,0 +1,196 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent set of endpoints, held as a bitset over the {@link EndpointRegistry} ids. Like
+ * {@link IndexedEndpointMap}, the bits are allocated in chunks, updates are lock-free and iteration is in id order
+ * and weakly consistent.
+ */
+public class IndexedEndpointSet extends AbstractSet<InetAddress>
+{
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_BITS - 1;
+
+    private final EndpointRegistry registry;
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+    private final AtomicInteger size = new AtomicInteger();
+
+    public IndexedEndpointSet()
+    {
+        this(EndpointRegistry.instance);
+    }
+
+    IndexedEndpointSet(EndpointRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    private AtomicLongArray chunk(int id)
+    {
+        AtomicLongArray[] current = chunks;
+        int index = id >>> CHUNK_SHIFT;
+        return index < current.length ? current[index] : null;
+    }
+
+    private AtomicLongArray chunkForWrite(int id)
+    {
+        AtomicLongArray chunk = chunk(id);
+        if (chunk != null)
+            return chunk;
+
+        synchronized (this)
+        {
+            int index = id >>> CHUNK_SHIFT;
+            AtomicLongArray[] current = chunks;
+            if (index < current.length && current[index] != null)
+                return current[index];
+            AtomicLongArray[] updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            chunk = new AtomicLongArray(CHUNK_BITS / 64);
+            updated[index] = chunk;
+            chunks = updated;
+            return chunk;
+        }
+    }
+
+    boolean contains(int id)
+    {
+        AtomicLongArray chunk = chunk(id);
+        return chunk != null && (chunk.get((id & CHUNK_MASK) >>> 6) & (1L << id)) != 0;
+    }
+
+    public boolean contains(Object o)
+    {
+        int id = registry.lookup(o);
+        return id >= 0 && contains(id);
+    }
+
+    public boolean add(InetAddress endpoint)
+    {
+        int id = registry.idOf(endpoint);
+        AtomicLongArray chunk = chunkForWrite(id);
+        int word = (id & CHUNK_MASK) >>> 6;
+        long bit = 1L << id;
+        while (true)
+        {
+            long current = chunk.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (chunk.compareAndSet(word, current, current | bit))
+            {
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean remove(Object o)
+    {
+        int id = registry.lookup(o);
+        AtomicLongArray chunk = id < 0 ? null : chunk(id);
+        if (chunk == null)
+            return false;
+        int word = (id & CHUNK_MASK) >>> 6;
+        long bit = 1L << id;
+        while (true)
+        {
+            long current = chunk.get(word);
+            if ((current & bit) == 0)
+                return false;
+            if (chunk.compareAndSet(word, current, current & ~bit))
+            {
+                size.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public boolean isEmpty()
+    {
+        return size.get() == 0;
+    }
+
+    public void clear()
+    {
+        for (AtomicLongArray chunk : chunks)
+        {
+            if (chunk == null)
+                continue;
+            for (int i = 0; i < chunk.length(); i++)
+            {
+                long previous = chunk.getAndSet(i, 0);
+                if (previous != 0)
+                    size.addAndGet(-Long.bitCount(previous));
+            }
+        }
+    }
+
+    public Iterator<InetAddress> iterator()
+    {
+        return new Iterator<InetAddress>()
+        {
+            private final int limit = registry.size();
+            private int nextId = advance(-1);
+            private int lastId = -1;
+
+            private int advance(int from)
+            {
+                int id = from;
+                while (++id < limit)
+                {
+                    AtomicLongArray chunk = chunk(id);
+                    if (chunk == null)
+                    {
+                        id |= CHUNK_MASK;
+                        continue;
+                    }
+                    long word = chunk.get((id & CHUNK_MASK) >>> 6) >>> (id & 63);
+                    if (word == 0)
+                    {
+                        // nothing else set in this word
+                        id |= 63;
+                        continue;
+                    }
+                    id += Long.numberOfTrailingZeros(word);
+                    if (id < limit)
+                        return id;
+                }
+                return -1;
+            }
+
+            public boolean hasNext()
+            {
+                return nextId >= 0;
+            }
+
+            public InetAddress next()
+            {
+                if (nextId < 0)
+                    throw new NoSuchElementException();
+                lastId = nextId;
+                nextId = advance(nextId);
+                return registry.address(lastId);
+            }
+
+            public void remove()
+            {
+                if (lastId < 0)
+                    throw new IllegalStateException();
+                IndexedEndpointSet.this.remove(registry.address(lastId));
+                lastId = -1;
+            }
+        };
+    }
+}
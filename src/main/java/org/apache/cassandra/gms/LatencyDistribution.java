@@ -0,0 +1,151 @@
+package org.apache.cassandra.gms;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * One-way message latency, in microseconds.
+ */
+public abstract class LatencyDistribution
+{
+    public static final LatencyDistribution NONE = constant(0);
+
+    public abstract long sampleMicros(Random random);
+
+    public static LatencyDistribution constant(final long micros)
+    {
+        return new LatencyDistribution()
+        {
+            public long sampleMicros(Random random)
+            {
+                return micros;
+            }
+
+            public String toString()
+            {
+                return "constant(" + micros + "us)";
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(final long minMicros, final long maxMicros)
+    {
+        if (maxMicros < minMicros)
+            throw new IllegalArgumentException("max must not be less than min: " + minMicros + ", " + maxMicros);
+        return new LatencyDistribution()
+        {
+            public long sampleMicros(Random random)
+            {
+                return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+            }
+
+            public String toString()
+            {
+                return "uniform(" + minMicros + "us, " + maxMicros + "us)";
+            }
+        };
+    }
+
+    /**
+     * A long-tailed distribution, the usual fit for network round trips.
+     *
+     * @param medianMicros the median latency
+     * @param sigma the standard deviation of the underlying normal distribution; larger is a fatter tail
+     */
+    public static LatencyDistribution lognormal(final long medianMicros, final double sigma)
+    {
+        final double mu = Math.log(medianMicros);
+        return new LatencyDistribution()
+        {
+            public long sampleMicros(Random random)
+            {
+                return (long) Math.exp(mu + sigma * random.nextGaussian());
+            }
+
+            public String toString()
+            {
+                return "lognormal(" + medianMicros + "us, " + sigma + ")";
+            }
+        };
+    }
+
+    /**
+     * Samples from a measured histogram: bucket i holds latencies in (bounds[i-1], bounds[i]] and is picked with
+     * probability proportional to weights[i]; the latency is uniform within the bucket.
+     */
+    public static LatencyDistribution empirical(final long[] bounds, long[] weights)
+    {
+        if (bounds.length == 0 || bounds.length != weights.length)
+            throw new IllegalArgumentException("need the same, non-zero, number of bounds and weights");
+        final double[] cumulative = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++)
+        {
+            if (i > 0 && bounds[i] <= bounds[i - 1])
+                throw new IllegalArgumentException("bucket bounds must be increasing: " + Arrays.toString(bounds));
+            total += weights[i];
+            cumulative[i] = total;
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("weights must add up to more than zero");
+        final double sum = total;
+        return new LatencyDistribution()
+        {
+            public long sampleMicros(Random random)
+            {
+                double point = random.nextDouble() * sum;
+                int i = Arrays.binarySearch(cumulative, point);
+                i = i < 0 ? -i - 1 : i;
+                // skip over empty buckets
+                while (i < cumulative.length - 1 && cumulative[i] <= point)
+                    i++;
+                long lower = i == 0 ? 0 : bounds[i - 1];
+                return lower + (long) (random.nextDouble() * (bounds[i] - lower));
+            }
+
+            public String toString()
+            {
+                return "empirical(" + Arrays.toString(bounds) + ")";
+            }
+        };
+    }
+
+    /**
+     * Parse a distribution from a spec string, in one of the forms
+     * <ul>
+     *     <li>{@code constant:<micros>}</li>
+     *     <li>{@code uniform:<min micros>,<max micros>}</li>
+     *     <li>{@code lognormal:<median micros>,<sigma>}</li>
+     *     <li>{@code empirical:<bound micros>=<weight>,<bound micros>=<weight>,...}</li>
+     * </ul>
+     */
+    public static LatencyDistribution parse(String spec)
+    {
+        int colon = spec.indexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("expected <type>:<args>, got " + spec);
+        String type = spec.substring(0, colon).trim();
+        String[] args = spec.substring(colon + 1).split(",");
+        switch (type)
+        {
+            case "constant":
+                return constant(Long.parseLong(args[0].trim()));
+            case "uniform":
+                return uniform(Long.parseLong(args[0].trim()), Long.parseLong(args[1].trim()));
+            case "lognormal":
+                return lognormal(Long.parseLong(args[0].trim()), Double.parseDouble(args[1].trim()));
+            case "empirical":
+                long[] bounds = new long[args.length];
+                long[] weights = new long[args.length];
+                for (int i = 0; i < args.length; i++)
+                {
+                    String[] pair = args[i].split("=");
+                    bounds[i] = Long.parseLong(pair[0].trim());
+                    weights[i] = Long.parseLong(pair[1].trim());
+                }
+                return empirical(bounds, weights);
+            default:
+                throw new IllegalArgumentException("unknown latency distribution: " + type);
+        }
+    }
+}
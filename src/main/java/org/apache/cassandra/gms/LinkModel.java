@@ -0,0 +1,102 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * Decides how the network treats a message between two nodes: how long it takes, and whether it is lost,
+ * duplicated or held back (so that it arrives after messages sent later).
+ */
+public interface LinkModel
+{
+    /** every message delivered once, immediately */
+    LinkModel PERFECT = new Uniform(new Link(LatencyDistribution.NONE, 0, 0, 0, 0, 0));
+
+    Link link(InetAddress from, InetAddress to);
+
+    /**
+     * The behaviour of a single link.
+     */
+    class Link
+    {
+        public final LatencyDistribution latency;
+        public final double dropRate;
+        public final double duplicateRate;
+        public final double reorderRate;
+        /** the extra delay added to a reordered message is uniform in [0, reorderWindowMicros) */
+        public final long reorderWindowMicros;
+        /** adds the time to put the message on the wire; zero for unlimited */
+        public final long bandwidthBytesPerSecond;
+
+        public Link(LatencyDistribution latency, double dropRate, double duplicateRate, double reorderRate, long reorderWindowMicros, long bandwidthBytesPerSecond)
+        {
+            this.latency = latency;
+            this.dropRate = dropRate;
+            this.duplicateRate = duplicateRate;
+            this.reorderRate = reorderRate;
+            this.reorderWindowMicros = reorderWindowMicros;
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        }
+
+        public Link withLatency(LatencyDistribution latency, long bandwidthBytesPerSecond)
+        {
+            return new Link(latency, dropRate, duplicateRate, reorderRate, reorderWindowMicros, bandwidthBytesPerSecond);
+        }
+
+        public boolean drop(Random random)
+        {
+            return dropRate > 0 && random.nextDouble() < dropRate;
+        }
+
+        public boolean duplicate(Random random)
+        {
+            return duplicateRate > 0 && random.nextDouble() < duplicateRate;
+        }
+
+        /**
+         * @return the delay, in micros, before a copy of a message is delivered
+         */
+        public long delayMicros(Random random, LinkStats stats, long bytes)
+        {
+            long delay = latency.sampleMicros(random);
+            if (bandwidthBytesPerSecond > 0)
+                delay += bytes * 1000000L / bandwidthBytesPerSecond;
+            if (reorderRate > 0 && reorderWindowMicros > 0 && random.nextDouble() < reorderRate)
+            {
+                stats.reordered.incrementAndGet();
+                delay += (long) (random.nextDouble() * reorderWindowMicros);
+            }
+            return delay;
+        }
+
+        public String toString()
+        {
+            return String.format("latency = %s, drop = %s, duplicate = %s, reorder = %s (window %dus), bandwidth = %s",
+                                 latency, dropRate, duplicateRate, reorderRate, reorderWindowMicros,
+                                 bandwidthBytesPerSecond > 0 ? bandwidthBytesPerSecond + "B/s" : "unlimited");
+        }
+    }
+
+    /**
+     * The same link behaviour between every pair of nodes.
+     */
+    class Uniform implements LinkModel
+    {
+        private final Link link;
+
+        public Uniform(Link link)
+        {
+            this.link = link;
+        }
+
+        public Link link(InetAddress from, InetAddress to)
+        {
+            return link;
+        }
+
+        public String toString()
+        {
+            return link.toString();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.apache.cassandra.gms;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the {@link LinkModel} did to the messages of a simulation.
+ */
+public class LinkStats
+{
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong partitioned = new AtomicLong();
+    final AtomicLong duplicated = new AtomicLong();
+    final AtomicLong reordered = new AtomicLong();
+    final AtomicLong delayMicros = new AtomicLong();
+
+    public String toString()
+    {
+        long count = delivered.get();
+        return String.format("delivered = %d, dropped = %d, partitioned = %d, duplicated = %d, reordered = %d, avg delay (us) = %d",
+                             count, dropped.get(), partitioned.get(), duplicated.get(), reordered.get(), count == 0 ? 0 : delayMicros.get() / count);
+    }
+}
@@ -0,0 +1,113 @@
+package org.apache.cassandra.gms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Bounded inbound queue of deliveries for one node. The mailbox is drained by the shared worker pool, and at most one
+ * worker drains a given mailbox at any time, so a node's verb handlers execute serially (like the single GOSSIP stage
+ * in cassandra). If the mailbox is full, the message is dropped.
+ */
+class Mailbox implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(Mailbox.class);
+
+    /** max number of messages processed before yielding the worker thread to other mailboxes */
+    private static final int BATCH_SIZE = 64;
+
+    private final BlockingQueue<Envelope> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor workers;
+    private final Stats stats;
+
+    Mailbox(int capacity, Executor workers, Stats stats)
+    {
+        queue = new ArrayBlockingQueue<>(capacity);
+        this.workers = workers;
+        this.stats = stats;
+    }
+
+    boolean offer(Runnable delivery)
+    {
+        if (!queue.offer(new Envelope(delivery, System.nanoTime())))
+        {
+            stats.dropped.incrementAndGet();
+            return false;
+        }
+        maybeSchedule();
+        return true;
+    }
+
+    private void maybeSchedule()
+    {
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+            workers.execute(this);
+    }
+
+    public void run()
+    {
+        try
+        {
+            for (int i = 0; i < BATCH_SIZE; i++)
+            {
+                Envelope envelope = queue.poll();
+                if (envelope == null)
+                    break;
+                stats.queueLatency.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - envelope.enqueuedAt));
+                stats.delivered.incrementAndGet();
+                try
+                {
+                    envelope.delivery.run();
+                }
+                catch (Exception e)
+                {
+                    logger.error("failed to deliver message", e);
+                }
+            }
+        }
+        finally
+        {
+            scheduled.set(false);
+            maybeSchedule();
+        }
+    }
+
+    private static class Envelope
+    {
+        final Runnable delivery;
+        final long enqueuedAt;
+
+        Envelope(Runnable delivery, long enqueuedAt)
+        {
+            this.delivery = delivery;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Stats shared by all the mailboxes in a simulation.
+     */
+    static class Stats
+    {
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        /** time spent waiting in the mailbox, in micros */
+        final EstimatedHistogram queueLatency = new EstimatedHistogram(160);
+
+        public String toString()
+        {
+            return String.format("delivered = %d, dropped = %d, queue latency (us): mean = %d, p50 = %d, p99 = %d, max = %d",
+                                 delivered.get(), dropped.get(), queueLatency.mean(), queueLatency.percentile(0.5),
+                                 queueLatency.percentile(0.99), queueLatency.max());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.apache.cassandra.gms;
+
+import java.util.Map;
+
+/**
+ * A node's entry for an endpoint: what the node alone knows about the endpoint (whether it's alive, when it last
+ * heard of it), and the current {@link FrozenEndpointState} version of the endpoint's state, which can be shared with
+ * every other node that has the same version. Changes swap in a new version rather than changing the shared one.
+ *
+ * The version caches the highest application state version, so
+ * {@link GossiperSimulator#getMaxEndpointStateVersion(EndpointState)} doesn't need to walk the application states on
+ * every digest comparison.
+ *
+ * It also keeps its update timestamp on the simulation clock (see {@link #updateTimestamp(long)}), rather than the
+ * system clock EndpointState uses.
+ */
+class MaxVersionEndpointState extends EndpointState
+{
+    private volatile FrozenEndpointState current;
+    private volatile long updateTimestampNanos;
+
+    MaxVersionEndpointState(HeartBeatState initialHbState)
+    {
+        this(new FrozenEndpointState(FrozenHeartBeatState.of(initialHbState)));
+    }
+
+    MaxVersionEndpointState(FrozenEndpointState state)
+    {
+        super(state.heartBeat);
+        current = state;
+    }
+
+    /**
+     * Copy a state that came from elsewhere (for example, in a gossip message) before it is kept locally.
+     */
+    static MaxVersionEndpointState copyOf(EndpointState epState)
+    {
+        FrozenEndpointState state;
+        if (epState instanceof MaxVersionEndpointState)
+        {
+            state = ((MaxVersionEndpointState) epState).current;
+        }
+        else
+        {
+            FrozenHeartBeatState heartBeat = FrozenHeartBeatState.of(epState.getHeartBeatState());
+            state = shared(new FrozenEndpointState(heartBeat).merge(heartBeat, states(epState)), epState);
+        }
+        MaxVersionEndpointState copy = new MaxVersionEndpointState(state);
+        if (epState.isAlive())
+            copy.markAlive();
+        else
+            copy.markDead();
+        return copy;
+    }
+
+    /* the sender's version, if it's the same as the one just built from its delta */
+    private static FrozenEndpointState shared(FrozenEndpointState built, EndpointState from)
+    {
+        if (from instanceof FrozenEndpointState.Delta)
+        {
+            FrozenEndpointState source = ((FrozenEndpointState.Delta) from).source;
+            if (source.sameAs(built))
+                return source;
+        }
+        return built;
+    }
+
+    /* a delta holds the sender's values; anything else came off the wire, with values of its own */
+    private static Map<ApplicationState, VersionedValue> states(EndpointState from)
+    {
+        if (from instanceof FrozenEndpointState.Delta)
+            return from.getApplicationStateMap();
+        return VersionedValueInterner.instance.intern(from.getApplicationStateMap());
+    }
+
+    /**
+     * Apply a newer state of the same generation: take its heartbeat, and add its application states.
+     */
+    synchronized void merge(EndpointState remote)
+    {
+        FrozenHeartBeatState heartBeat = FrozenHeartBeatState.of(remote.getHeartBeatState());
+        current = shared(current.merge(heartBeat, states(remote)), remote);
+    }
+
+    FrozenEndpointState frozen()
+    {
+        return current;
+    }
+
+    @Override
+    HeartBeatState getHeartBeatState()
+    {
+        return current.heartBeat;
+    }
+
+    @Override
+    synchronized void setHeartBeatState(HeartBeatState newHbState)
+    {
+        current = current.withHeartBeat(FrozenHeartBeatState.of(newHbState));
+    }
+
+    synchronized void updateHeartBeat(int version)
+    {
+        current = current.withHeartBeat(current.heartBeat.nextBeat(version));
+    }
+
+    synchronized void forceNewerGeneration()
+    {
+        current = current.withHeartBeat(current.heartBeat.newerGeneration());
+    }
+
+    @Override
+    public VersionedValue getApplicationState(ApplicationState key)
+    {
+        return current.states.get(key);
+    }
+
+    @Override
+    public Map<ApplicationState, VersionedValue> getApplicationStateMap()
+    {
+        return current.states;
+    }
+
+    @Override
+    synchronized void addApplicationState(ApplicationState key, VersionedValue value)
+    {
+        current = current.with(key, VersionedValueInterner.instance.intern(key, value));
+    }
+
+    void updateTimestamp(long nowNanos)
+    {
+        updateTimestampNanos = nowNanos;
+    }
+
+    @Override
+    public long getUpdateTimestamp()
+    {
+        return updateTimestampNanos;
+    }
+
+    int getMaxVersion()
+    {
+        return current.getMaxVersion();
+    }
+
+    public String toString()
+    {
+        FrozenEndpointState state = current;
+        return "EndpointState: HeartBeatState = " + state.heartBeat + ", AppStateMap = " + state.states;
+    }
+}
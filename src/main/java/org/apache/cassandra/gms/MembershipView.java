@@ -0,0 +1,109 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A set of endpoints for peer selection: membership is tracked in an {@link IndexedEndpointSet}, and the members
+ * are also kept in a copy-on-write array so a uniformly random member can be picked in O(1), without copying the
+ * set. Changes (nodes going up or down) are rare next to the picks made every round, so the O(N) copy on
+ * add/remove is the cheaper side of the trade.
+ */
+public class MembershipView extends AbstractSet<InetAddress>
+{
+    private static final InetAddress[] EMPTY = new InetAddress[0];
+
+    private final IndexedEndpointSet members = new IndexedEndpointSet();
+    private volatile InetAddress[] snapshot = EMPTY;
+
+    public synchronized boolean add(InetAddress endpoint)
+    {
+        if (!members.add(endpoint))
+            return false;
+        InetAddress[] current = snapshot;
+        InetAddress[] updated = new InetAddress[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = endpoint;
+        snapshot = updated;
+        return true;
+    }
+
+    public synchronized boolean remove(Object o)
+    {
+        if (!members.remove(o))
+            return false;
+        InetAddress[] current = snapshot;
+        InetAddress[] updated = new InetAddress[current.length - 1];
+        for (int i = 0, j = 0; i < current.length; i++)
+        {
+            if (!current[i].equals(o))
+                updated[j++] = current[i];
+        }
+        snapshot = updated;
+        return true;
+    }
+
+    public synchronized void clear()
+    {
+        members.clear();
+        snapshot = EMPTY;
+    }
+
+    public boolean contains(Object o)
+    {
+        return members.contains(o);
+    }
+
+    public int size()
+    {
+        return snapshot.length;
+    }
+
+    /**
+     * @return a uniformly chosen member, or null if the view is empty
+     */
+    public InetAddress random(Random random)
+    {
+        InetAddress[] current = snapshot;
+        switch (current.length)
+        {
+            case 0: return null;
+            case 1: return current[0];
+            default: return current[random.nextInt(current.length)];
+        }
+    }
+
+    /**
+     * Iterates over the members as of the call; removals through the iterator go to the view.
+     */
+    public Iterator<InetAddress> iterator()
+    {
+        final InetAddress[] current = snapshot;
+        return new Iterator<InetAddress>()
+        {
+            private int next;
+
+            public boolean hasNext()
+            {
+                return next < current.length;
+            }
+
+            public InetAddress next()
+            {
+                if (next >= current.length)
+                    throw new NoSuchElementException();
+                return current[next++];
+            }
+
+            public void remove()
+            {
+                if (next == 0)
+                    throw new IllegalStateException();
+                MembershipView.this.remove(current[next - 1]);
+            }
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scheduled network partitions. Each partition cuts a datacenter off from the rest of the cluster for a window of
+ * simulation time (in millis since the start of the simulation): messages between a node inside the datacenter and
+ * one outside are dropped. Messages within the datacenter, or between nodes outside of it, are unaffected. Which
+ * datacenter a node is in is looked up in the {@link Topology} as each message is sent, so nodes placed by churn after
+ * the partitions were scheduled are cut off with the rest of their datacenter.
+ */
+public class NetworkPartitions
+{
+    public static final NetworkPartitions NONE = new NetworkPartitions(null, Collections.<Partition>emptyList());
+
+    private final Topology topology;
+    private final List<Partition> partitions;
+
+    private NetworkPartitions(Topology topology, List<Partition> partitions)
+    {
+        this.topology = topology;
+        this.partitions = partitions;
+    }
+
+    public boolean isEmpty()
+    {
+        return partitions.isEmpty();
+    }
+
+    /**
+     * @return true if a message from one endpoint to the other, sent at the given time, cannot get through
+     */
+    public boolean blocks(InetAddress from, InetAddress to, long elapsedMillis)
+    {
+        if (partitions.isEmpty())
+            return false;
+        String fromDc = datacenter(from);
+        String toDc = datacenter(to);
+        if (fromDc != null && fromDc.equals(toDc))
+            return false;
+        for (int i = 0; i < partitions.size(); i++)
+        {
+            Partition partition = partitions.get(i);
+            if (partition.isActive(elapsedMillis) && partition.datacenter.equals(fromDc) != partition.datacenter.equals(toDc))
+                return true;
+        }
+        return false;
+    }
+
+    /* null for an endpoint the topology didn't place, which is outside every partition */
+    private String datacenter(InetAddress endpoint)
+    {
+        Topology.Location location = topology.location(endpoint);
+        return location == null ? null : location.datacenter;
+    }
+
+    /**
+     * @return the time the most recent partition healed, as of the given time, or -1 if none has yet
+     */
+    public long lastHealedBefore(long elapsedMillis)
+    {
+        long healed = -1;
+        for (Partition partition : partitions)
+        {
+            if (partition.healAtMillis <= elapsedMillis)
+                healed = Math.max(healed, partition.healAtMillis);
+        }
+        return healed;
+    }
+
+    /**
+     * @return true if every partition has come and gone by the given time
+     */
+    public boolean allHealedBy(long elapsedMillis)
+    {
+        for (Partition partition : partitions)
+        {
+            if (partition.healAtMillis > elapsedMillis)
+                return false;
+        }
+        return true;
+    }
+
+    public String toString()
+    {
+        return partitions.toString();
+    }
+
+    public static class Builder
+    {
+        private final Topology topology;
+        private final List<Partition> partitions = new ArrayList<>();
+
+        public Builder(Topology topology)
+        {
+            this.topology = topology;
+        }
+
+        /**
+         * Cut the datacenter off from the rest of the cluster from startMillis until healAtMillis.
+         */
+        public Builder isolate(String datacenter, long startMillis, long healAtMillis)
+        {
+            if (!topology.hasDatacenter(datacenter))
+                throw new IllegalArgumentException("unknown datacenter: " + datacenter);
+            if (healAtMillis <= startMillis)
+                throw new IllegalArgumentException("a partition must heal after it starts: " + datacenter);
+            partitions.add(new Partition(datacenter, startMillis, healAtMillis));
+            return this;
+        }
+
+        public NetworkPartitions build()
+        {
+            return partitions.isEmpty() ? NONE : new NetworkPartitions(topology, new ArrayList<>(partitions));
+        }
+    }
+
+    private static class Partition
+    {
+        final String datacenter;
+        final long startMillis;
+        final long healAtMillis;
+
+        Partition(String datacenter, long startMillis, long healAtMillis)
+        {
+            this.datacenter = datacenter;
+            this.startMillis = startMillis;
+            this.healAtMillis = healAtMillis;
+        }
+
+        boolean isActive(long elapsedMillis)
+        {
+            return elapsedMillis >= startMillis && elapsedMillis < healAtMillis;
+        }
+
+        public String toString()
+        {
+            return String.format("%s from %dms to %dms", datacenter, startMillis, healAtMillis);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.apache.cassandra.gms;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.io.IVersionedSerializer;
+import org.apache.cassandra.io.util.DataOutputPlus;
+import org.apache.cassandra.net.CompactEndpointSerializationHelper;
+import org.apache.cassandra.net.MessagingService;
+
+/**
+ * The messages of {@link PlumtreeSimulator}'s broadcast tree, all sent on a verb Cassandra leaves unused:
+ * <ul>
+ * <li>GOSSIP - a broadcast, pushed eagerly along the tree: the originator's whole endpoint state</li>
+ * <li>IHAVE - the ids of broadcasts the sender has, announced lazily to its peers off the tree</li>
+ * <li>GRAFT - asks for the broadcasts (which never arrived), and puts the link into the tree</li>
+ * <li>PRUNE - takes the link out of the tree, as it delivered a duplicate</li>
+ * </ul>
+ */
+class PlumtreeMessage
+{
+    static final MessagingService.Verb VERB = MessagingService.Verb.UNUSED_1;
+    static final IVersionedSerializer<PlumtreeMessage> serializer = new PlumtreeMessageSerializer();
+
+    enum Kind { GOSSIP, IHAVE, GRAFT, PRUNE }
+
+    final Kind kind;
+    final List<Id> ids;
+    /* the broadcast, for GOSSIP */
+    final EndpointState state;
+
+    private PlumtreeMessage(Kind kind, List<Id> ids, EndpointState state)
+    {
+        this.kind = kind;
+        this.ids = ids;
+        this.state = state;
+    }
+
+    static PlumtreeMessage gossip(Id id, EndpointState state)
+    {
+        return new PlumtreeMessage(Kind.GOSSIP, Collections.singletonList(id), state);
+    }
+
+    static PlumtreeMessage ihave(List<Id> ids)
+    {
+        return new PlumtreeMessage(Kind.IHAVE, ids, null);
+    }
+
+    static PlumtreeMessage graft(List<Id> ids)
+    {
+        return new PlumtreeMessage(Kind.GRAFT, ids, null);
+    }
+
+    static PlumtreeMessage prune()
+    {
+        return new PlumtreeMessage(Kind.PRUNE, Collections.<Id>emptyList(), null);
+    }
+
+    /**
+     * A broadcast is identified by its originator, and the generation and highest application state version of the
+     * state it carries.
+     */
+    static class Id
+    {
+        final InetAddress origin;
+        final int generation;
+        final int version;
+
+        Id(InetAddress origin, int generation, int version)
+        {
+            this.origin = origin;
+            this.generation = generation;
+            this.version = version;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Id))
+                return false;
+            Id other = (Id) o;
+            return generation == other.generation && version == other.version && origin.equals(other.origin);
+        }
+
+        public int hashCode()
+        {
+            return 31 * (31 * origin.hashCode() + generation) + version;
+        }
+
+        public String toString()
+        {
+            return origin.getHostAddress() + ':' + generation + ':' + version;
+        }
+    }
+
+    private static class PlumtreeMessageSerializer implements IVersionedSerializer<PlumtreeMessage>
+    {
+        public void serialize(PlumtreeMessage message, DataOutputPlus out, int version) throws IOException
+        {
+            out.writeByte(message.kind.ordinal());
+            out.writeInt(message.ids.size());
+            for (Id id : message.ids)
+            {
+                CompactEndpointSerializationHelper.serialize(id.origin, out);
+                out.writeInt(id.generation);
+                out.writeInt(id.version);
+            }
+            if (message.kind == Kind.GOSSIP)
+                EndpointState.serializer.serialize(message.state, out, version);
+        }
+
+        public PlumtreeMessage deserialize(DataInput in, int version) throws IOException
+        {
+            Kind kind = Kind.values()[in.readByte()];
+            int count = in.readInt();
+            List<Id> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                ids.add(new Id(CompactEndpointSerializationHelper.deserialize(in), in.readInt(), in.readInt()));
+            EndpointState state = kind == Kind.GOSSIP ? EndpointState.serializer.deserialize(in, version) : null;
+            return new PlumtreeMessage(kind, ids, state);
+        }
+
+        public long serializedSize(PlumtreeMessage message, int version)
+        {
+            long size = 1 + TypeSizes.NATIVE.sizeof(message.ids.size());
+            for (Id id : message.ids)
+                size += CompactEndpointSerializationHelper.serializedSize(id.origin) + TypeSizes.NATIVE.sizeof(id.generation) + TypeSizes.NATIVE.sizeof(id.version);
+            if (message.kind == Kind.GOSSIP)
+                size += EndpointState.serializer.serializedSize(message.state, version);
+            return size;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.cassandra.net.MessageIn;
+import org.apache.cassandra.net.MessageOut;
+
+/**
+ * Cassandra's gossiper, with changes to a node's application states also broadcast along a Plumtree (an epidemic
+ * broadcast tree, after Leitão, Pereira and Rodrigues). Each node keeps a small view of peers, split into eager peers,
+ * which it pushes every broadcast to straight away, and lazy peers, which it only tells the ids of the broadcasts it
+ * has, once a round. A node that gets a broadcast twice prunes the link it came in on the second time out of the tree,
+ * so the eager links settle into a spanning tree; a node that hears of a broadcast it hasn't had by the next round
+ * grafts the link it heard of it on into the tree, which repairs the tree when a node fails.
+ *
+ * A broadcast carries the originator's whole endpoint state, so it can be applied like any other gossiped state
+ * (Cassandra expects a delta to hold everything newer than the versions the receiver has). The anti-entropy rounds
+ * carry on as before, alongside the tree, so heartbeats, failure detection and anything a broadcast misses are still
+ * left to them.
+ */
+public class PlumtreeSimulator extends GossiperSimulator
+{
+    /** peers in a node's broadcast view, eager and lazy */
+    static final int PEERS = Integer.getInteger("gossipocolypse.plumtree.peers", 5);
+    /** rounds to wait for a broadcast a lazy peer announced, before grafting it */
+    static final int GRAFT_TIMEOUT_ROUNDS = Integer.getInteger("gossipocolypse.plumtree.graft.rounds", 1);
+    /** rounds a broadcast is kept for, to recognise duplicates and answer grafts */
+    static final int RETAIN_ROUNDS = Integer.getInteger("gossipocolypse.plumtree.retain.rounds", 30);
+
+    private final Object broadcastLock = new Object();
+    private final Random random;
+    private final Set<InetAddress> eagerPeers = new LinkedHashSet<>();
+    private final Set<InetAddress> lazyPeers = new LinkedHashSet<>();
+    /* broadcasts received (or originated) here, oldest first */
+    private final LinkedHashMap<PlumtreeMessage.Id, Received> received = new LinkedHashMap<>();
+    /* broadcasts announced by lazy peers, that haven't arrived */
+    private final Map<PlumtreeMessage.Id, Missing> missing = new LinkedHashMap<>();
+    /* ids to announce to each lazy peer at the next tick */
+    private final Map<InetAddress, List<PlumtreeMessage.Id>> announcements = new LinkedHashMap<>();
+    private int round;
+
+    public PlumtreeSimulator(InetAddress broadcastAddr, List<InetAddress> seeds, CustomMessagingService messaging)
+    {
+        super(broadcastAddr, seeds, messaging);
+        random = messaging.newRandom();
+        register(new PeerListener());
+    }
+
+    @Override
+    public void tick()
+    {
+        super.tick();
+        if (!isEnabled())
+            return;
+
+        List<Outgoing> out = new ArrayList<>();
+        synchronized (broadcastLock)
+        {
+            round++;
+            fillView();
+
+            for (Map.Entry<InetAddress, List<PlumtreeMessage.Id>> entry : announcements.entrySet())
+                out.add(new Outgoing(PlumtreeMessage.ihave(entry.getValue()), entry.getKey()));
+            announcements.clear();
+
+            Map<InetAddress, List<PlumtreeMessage.Id>> grafts = new LinkedHashMap<>();
+            for (Iterator<Map.Entry<PlumtreeMessage.Id, Missing>> iter = missing.entrySet().iterator(); iter.hasNext(); )
+            {
+                Map.Entry<PlumtreeMessage.Id, Missing> entry = iter.next();
+                Missing m = entry.getValue();
+                if (m.deadline > round)
+                    continue;
+                // graft the announcers one at a time, in case the first has gone too
+                InetAddress announcer = m.announcers.poll();
+                if (announcer == null)
+                {
+                    iter.remove();
+                    continue;
+                }
+                m.deadline = round + GRAFT_TIMEOUT_ROUNDS;
+                promote(announcer);
+                List<PlumtreeMessage.Id> ids = grafts.get(announcer);
+                if (ids == null)
+                    grafts.put(announcer, ids = new ArrayList<>());
+                ids.add(entry.getKey());
+            }
+            for (Map.Entry<InetAddress, List<PlumtreeMessage.Id>> entry : grafts.entrySet())
+                out.add(new Outgoing(PlumtreeMessage.graft(entry.getValue()), entry.getKey()));
+
+            for (Iterator<Received> iter = received.values().iterator(); iter.hasNext(); )
+            {
+                if (iter.next().round > round - RETAIN_ROUNDS)
+                    break;
+                iter.remove();
+            }
+        }
+        send(out);
+    }
+
+    /* top the view up from the live members, as peers die or are pruned out */
+    private void fillView()
+    {
+        for (int attempts = PEERS * 2; attempts > 0 && eagerPeers.size() + lazyPeers.size() < PEERS; attempts--)
+        {
+            InetAddress peer = liveEndpoints.random(random);
+            if (peer == null)
+                return;
+            if (!lazyPeers.contains(peer))
+                eagerPeers.add(peer);
+        }
+    }
+
+    @Override
+    public void addLocalApplicationState(ApplicationState state, VersionedValue value)
+    {
+        super.addLocalApplicationState(state, value);
+        if (!isEnabled())
+            return;
+
+        InetAddress self = address();
+        FrozenEndpointState local = ((MaxVersionEndpointState) getEndpointStateForEndpoint(self)).frozen();
+        PlumtreeMessage.Id id = new PlumtreeMessage.Id(self, local.heartBeat.getGeneration(), local.maxAppStateVersion);
+        PlumtreeMessage broadcast = PlumtreeMessage.gossip(id, local.toDelta());
+        List<Outgoing> out = new ArrayList<>();
+        synchronized (broadcastLock)
+        {
+            if (received.containsKey(id))
+                return;
+            received.put(id, new Received(broadcast));
+            push(broadcast, null, out);
+        }
+        send(out);
+    }
+
+    /* eager peers (but the one it came from) get the broadcast now, lazy ones hear of it next tick */
+    private void push(PlumtreeMessage broadcast, InetAddress from, List<Outgoing> out)
+    {
+        PlumtreeMessage.Id id = broadcast.ids.get(0);
+        for (InetAddress peer : eagerPeers)
+        {
+            if (!peer.equals(from))
+                out.add(new Outgoing(broadcast, peer));
+        }
+        for (InetAddress peer : lazyPeers)
+        {
+            if (peer.equals(from))
+                continue;
+            List<PlumtreeMessage.Id> ids = announcements.get(peer);
+            if (ids == null)
+                announcements.put(peer, ids = new ArrayList<>());
+            ids.add(id);
+        }
+    }
+
+    @Override
+    public void receive(MessageIn<?> message, SimulatedNode sender)
+    {
+        if (message.verb != PlumtreeMessage.VERB)
+        {
+            super.receive(message, sender);
+            return;
+        }
+        if (!isEnabled())
+            return;
+
+        PlumtreeMessage broadcast = (PlumtreeMessage) message.payload;
+        InetAddress from = message.from;
+        List<Outgoing> out = new ArrayList<>();
+        boolean deliver = false;
+        synchronized (broadcastLock)
+        {
+            switch (broadcast.kind)
+            {
+                case GOSSIP:
+                    PlumtreeMessage.Id id = broadcast.ids.get(0);
+                    if (received.containsKey(id))
+                    {
+                        // the tree reached us twice; take the later link out of it
+                        demote(from);
+                        out.add(new Outgoing(PlumtreeMessage.prune(), from));
+                        break;
+                    }
+                    received.put(id, new Received(broadcast));
+                    missing.remove(id);
+                    promote(from);
+                    push(broadcast, from, out);
+                    deliver = true;
+                    break;
+                case IHAVE:
+                    for (PlumtreeMessage.Id announced : broadcast.ids)
+                    {
+                        if (received.containsKey(announced))
+                            continue;
+                        Missing m = missing.get(announced);
+                        if (m == null)
+                            missing.put(announced, m = new Missing(round + GRAFT_TIMEOUT_ROUNDS));
+                        m.announcers.add(from);
+                    }
+                    break;
+                case GRAFT:
+                    promote(from);
+                    for (PlumtreeMessage.Id grafted : broadcast.ids)
+                    {
+                        Received r = received.get(grafted);
+                        if (r != null)
+                            out.add(new Outgoing(r.broadcast, from));
+                    }
+                    break;
+                case PRUNE:
+                    demote(from);
+                    break;
+            }
+        }
+
+        if (deliver)
+            applyStateLocally(Collections.singletonMap(broadcast.ids.get(0).origin, broadcast.state));
+        send(out);
+    }
+
+    private void promote(InetAddress peer)
+    {
+        lazyPeers.remove(peer);
+        eagerPeers.add(peer);
+    }
+
+    private void demote(InetAddress peer)
+    {
+        eagerPeers.remove(peer);
+        lazyPeers.add(peer);
+    }
+
+    /* outside of broadcastLock, as a threaded scheduler may deliver on this thread */
+    private void send(List<Outgoing> out)
+    {
+        for (Outgoing outgoing : out)
+        {
+            messaging.sendOneWay(new MessageOut<PlumtreeMessage>(address(),
+                                                                 PlumtreeMessage.VERB,
+                                                                 outgoing.message,
+                                                                 PlumtreeMessage.serializer,
+                                                                 CustomMessagingService.parameters),
+                                 outgoing.to, this);
+        }
+    }
+
+    private static class Outgoing
+    {
+        final PlumtreeMessage message;
+        final InetAddress to;
+
+        Outgoing(PlumtreeMessage message, InetAddress to)
+        {
+            this.message = message;
+            this.to = to;
+        }
+    }
+
+    private class Received
+    {
+        final PlumtreeMessage broadcast;
+        final int round;
+
+        Received(PlumtreeMessage broadcast)
+        {
+            this.broadcast = broadcast;
+            this.round = PlumtreeSimulator.this.round;
+        }
+    }
+
+    private static class Missing
+    {
+        final ArrayDeque<InetAddress> announcers = new ArrayDeque<>();
+        int deadline;
+
+        Missing(int deadline)
+        {
+            this.deadline = deadline;
+        }
+    }
+
+    /* peers the failure detector convicts, or that are removed, leave the view */
+    private class PeerListener implements IEndpointStateChangeSubscriber
+    {
+        public void onJoin(InetAddress endpoint, EndpointState epState) {}
+
+        public void beforeChange(InetAddress endpoint, EndpointState currentState, ApplicationState newStateKey, VersionedValue newValue) {}
+
+        public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {}
+
+        public void onAlive(InetAddress endpoint, EndpointState state) {}
+
+        public void onDead(InetAddress endpoint, EndpointState state)
+        {
+            forget(endpoint);
+        }
+
+        public void onRemove(InetAddress endpoint)
+        {
+            forget(endpoint);
+        }
+
+        public void onRestart(InetAddress endpoint, EndpointState state) {}
+
+        private void forget(InetAddress endpoint)
+        {
+            synchronized (broadcastLock)
+            {
+                eagerPeers.remove(endpoint);
+                lazyPeers.remove(endpoint);
+                announcements.remove(endpoint);
+            }
+        }
+    }
+}
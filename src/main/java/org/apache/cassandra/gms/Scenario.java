@@ -0,0 +1,367 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * A sweep of simulations. Every combination of the swept parameters (protocol, seeds, nodes, interval, fanout,
+ * latency and churn) is a cell, and each cell is simulated {@code runs} times, each for at most {@code rounds} rounds. The
+ * rest of the parameters apply to every cell.
+ *
+ * A scenario is read from a YAML file, for example:
+ * <pre>
+ * name: fanout
+ * runs: 3
+ * scheduler: DISCRETE_EVENT
+ * protocol: CASSANDRA
+ * seeds: [3, 6]
+ * nodes: [100, 400]
+ * interval: 1000
+ * fanout: [1, 2]
+ * latency: ["constant:500", "lognormal:1000,0.5"]
+ * drop: 0.01
+ * topology: dc1:3,dc2:3
+ * links:
+ *   remote: { latency: "constant:40000", bandwidth: 1000000 }
+ * churn: [none, "bounce@20,add@25"]
+ * </pre>
+ * or, without a file, from the gossipocolypse.* system properties (see the README), where a swept value is a list
+ * separated by ';'.
+ *
+ * Every random source in a run is seeded from the scenario's {@code seed} (picked at random if not given), the cell
+ * and the run, so with the discrete event scheduler a run can be replayed exactly by giving the same seed and
+ * {@code replay: <cell>:<run>}.
+ */
+public class Scenario
+{
+    private static final String[] LINK_CLASSES = { "rack", "dc", "remote" };
+
+    final String name;
+    final int runs;
+    /* the most rounds a run goes on for, before it's given up on */
+    final int maxRounds;
+    final long seed;
+    /* the only cell and run to simulate, or -1 for all of them */
+    final int replayCell;
+    final int replayRun;
+    final SimulationScheduler.Type scheduler;
+    final CustomMessagingService.DeliveryMode delivery;
+    final boolean serialize;
+    final boolean trace;
+    /* how many cells to run at once; 0 picks a default based on the scheduler */
+    final int parallelism;
+    final double drop;
+    final double duplicate;
+    final double reorder;
+    final long reorderWindowMicros;
+    /* null for a flat network */
+    final String topology;
+    /* latency ("latency") and bandwidth ("bandwidth") overrides, by link class */
+    final Map<String, Map<String, Object>> links;
+    /* null for no partitions */
+    final String partitions;
+
+    final List<Object> protocol;
+    final List<Object> seeds;
+    final List<Object> nodes;
+    final List<Object> interval;
+    final List<Object> fanout;
+    final List<Object> latency;
+    final List<Object> churn;
+
+    @SuppressWarnings("unchecked")
+    Scenario(Map<String, Object> spec)
+    {
+        name = string(spec.get("name"), "gossipocolypse");
+        runs = integer(spec.get("runs"), 1);
+        maxRounds = integer(spec.get("rounds"), 1000);
+        String seedSpec = string(spec.get("seed"), null);
+        seed = seedSpec == null ? System.nanoTime() : Long.parseLong(seedSpec);
+        String replay = string(spec.get("replay"), null);
+        if (replay == null)
+        {
+            replayCell = -1;
+            replayRun = -1;
+        }
+        else
+        {
+            String[] parts = replay.split(":");
+            if (parts.length != 2)
+                throw new IllegalArgumentException("expected replay as <cell>:<run>, got " + replay);
+            replayCell = Integer.parseInt(parts[0]);
+            replayRun = Integer.parseInt(parts[1]);
+        }
+        scheduler = SimulationScheduler.Type.valueOf(string(spec.get("scheduler"), "DISCRETE_EVENT"));
+        delivery = CustomMessagingService.DeliveryMode.valueOf(string(spec.get("delivery"), "INLINE"));
+        serialize = Boolean.parseBoolean(string(spec.get("serialize"), "false"));
+        trace = Boolean.parseBoolean(string(spec.get("trace"), "false"));
+        parallelism = integer(spec.get("parallelism"), 0);
+        drop = Double.parseDouble(string(spec.get("drop"), "0"));
+        duplicate = Double.parseDouble(string(spec.get("duplicate"), "0"));
+        reorder = Double.parseDouble(string(spec.get("reorder"), "0"));
+        reorderWindowMicros = Long.parseLong(string(spec.get("reorder.window"), "10000"));
+        topology = string(spec.get("topology"), null);
+        Object linkSpec = spec.get("links");
+        links = linkSpec == null ? Collections.<String, Map<String, Object>>emptyMap() : (Map<String, Map<String, Object>>) linkSpec;
+        partitions = string(spec.get("partitions"), null);
+        if (partitions != null && topology == null)
+            throw new IllegalArgumentException("partitions are defined by datacenter, so need a topology");
+
+        protocol = values(spec.get("protocol"), SimulatedNode.Protocol.CASSANDRA.name());
+        seeds = values(spec.get("seeds"), 3);
+        nodes = values(spec.get("nodes"), 25);
+        interval = values(spec.get("interval"), GossiperSimulator.intervalInMillis);
+        fanout = values(spec.get("fanout"), 1);
+        latency = values(spec.get("latency"), null);
+        churn = values(spec.get("churn"), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Scenario load(File file) throws IOException
+    {
+        try (InputStream in = new FileInputStream(file))
+        {
+            Object spec = new Yaml().load(in);
+            if (!(spec instanceof Map))
+                throw new IllegalArgumentException("expected a map of scenario parameters in " + file);
+            return new Scenario((Map<String, Object>) spec);
+        }
+    }
+
+    /**
+     * The scenario the gossipocolypse.* system properties describe, which by default is ten runs of 1200 nodes with
+     * 20 seeds.
+     */
+    public static Scenario fromProperties()
+    {
+        Map<String, Object> spec = new HashMap<>();
+        spec.put("runs", System.getProperty("gossipocolypse.runs", "10"));
+        spec.put("seeds", System.getProperty("gossipocolypse.seeds", "20"));
+        spec.put("nodes", System.getProperty("gossipocolypse.nodes", "1200"));
+        for (String key : new String[]{ "name", "rounds", "seed", "replay", "scheduler", "delivery", "serialize", "trace", "parallelism", "drop", "duplicate", "reorder",
+                                        "reorder.window", "topology", "partitions", "protocol", "interval", "fanout", "latency", "churn" })
+        {
+            String value = System.getProperty("gossipocolypse." + key);
+            if (value != null)
+                spec.put(key, value);
+        }
+
+        Map<String, Map<String, Object>> links = new HashMap<>();
+        for (String linkClass : LINK_CLASSES)
+        {
+            Map<String, Object> link = new HashMap<>();
+            String latency = System.getProperty("gossipocolypse.latency." + linkClass);
+            if (latency != null)
+                link.put("latency", latency);
+            String bandwidth = System.getProperty("gossipocolypse.bandwidth." + linkClass);
+            if (bandwidth != null)
+                link.put("bandwidth", bandwidth);
+            links.put(linkClass, link);
+        }
+        spec.put("links", links);
+        return new Scenario(spec);
+    }
+
+    /**
+     * How many cells can run side by side. Simulations on the wall clock skew each other's timings (and the
+     * thread-per-node scheduler would multiply its threads), so unless told otherwise only those on virtual time
+     * run in parallel, one per core.
+     */
+    int parallelism()
+    {
+        if (parallelism > 0)
+            return parallelism;
+        return scheduler.isVirtualTime() ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+
+    /**
+     * @return every combination of the swept parameters
+     */
+    List<Cell> cells()
+    {
+        List<Cell> cells = new ArrayList<>();
+        for (Object protocolName : protocol)
+            for (Object seedCnt : seeds)
+                for (Object nodeCnt : nodes)
+                    for (Object intervalMillis : interval)
+                        for (Object fanoutCnt : fanout)
+                            for (Object latencySpec : latency)
+                                for (Object churnSpec : churn)
+                                    cells.add(new Cell(cells.size(), SimulatedNode.Protocol.valueOf(string(protocolName, null).toUpperCase()),
+                                                       integer(seedCnt, 0), integer(nodeCnt, 0), integer(intervalMillis, 0),
+                                                       integer(fanoutCnt, 0), string(latencySpec, null), string(churnSpec, null)));
+        return cells;
+    }
+
+    /**
+     * @return true if the run of the cell should be simulated, which is all of them unless a single one is being replayed
+     */
+    boolean includes(Cell cell, int run)
+    {
+        return replayCell < 0 || (replayCell == cell.index && replayRun == run);
+    }
+
+    /* a string is a list separated by ';', so swept values can be given as system properties */
+    private static List<Object> values(Object value, Object defaultValue)
+    {
+        if (value == null)
+            return Collections.singletonList(defaultValue);
+        if (value instanceof List)
+            return new ArrayList<>((List<?>) value);
+        if (value instanceof String)
+            return new ArrayList<Object>(Arrays.asList(((String) value).split(";")));
+        return Collections.singletonList(value);
+    }
+
+    private static String string(Object value, String defaultValue)
+    {
+        if (value == null)
+            return defaultValue;
+        String s = value.toString().trim();
+        return s.isEmpty() || s.equalsIgnoreCase("none") ? defaultValue : s;
+    }
+
+    private static int integer(Object value, int defaultValue)
+    {
+        String s = string(value, null);
+        return s == null ? defaultValue : Integer.parseInt(s);
+    }
+
+    /**
+     * A single combination of the swept parameters.
+     */
+    class Cell
+    {
+        final int index;
+        final SimulatedNode.Protocol protocol;
+        final int seeds;
+        final int nodes;
+        final int intervalMillis;
+        final int fanout;
+        /* null for no latency */
+        final String latency;
+        /* null for no churn */
+        final String churn;
+
+        Cell(int index, SimulatedNode.Protocol protocol, int seeds, int nodes, int intervalMillis, int fanout, String latency, String churn)
+        {
+            this.index = index;
+            this.protocol = protocol;
+            this.seeds = seeds;
+            this.nodes = nodes;
+            this.intervalMillis = intervalMillis;
+            this.fanout = fanout;
+            this.latency = latency;
+            this.churn = churn;
+        }
+
+        Scenario scenario()
+        {
+            return Scenario.this;
+        }
+
+        /**
+         * @return the seed every random source in the run derives from
+         */
+        long seed(int run)
+        {
+            // murmur3's finalizer, so neighbouring cells and runs don't get neighbouring seeds
+            long h = seed ^ (((long) index << 32) | run);
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        /**
+         * @return how many addresses a run of the cell can use: the initial nodes plus one per node churn adds
+         */
+        int addressCount()
+        {
+            int count = nodes;
+            if (churn != null)
+            {
+                for (String entry : churn.split(","))
+                {
+                    if (entry.trim().toLowerCase().startsWith("add@"))
+                        count++;
+                }
+            }
+            return count;
+        }
+
+        String label(int run)
+        {
+            return String.format("%s-c%d-%dn-%ds-%d", name, index, nodes, seeds, run);
+        }
+
+        LinkModel linkModel()
+        {
+            if (latency == null && drop == 0 && duplicate == 0 && reorder == 0)
+                return LinkModel.PERFECT;
+            return new LinkModel.Uniform(baseLink());
+        }
+
+        private LinkModel.Link baseLink()
+        {
+            LatencyDistribution distribution = latency == null ? LatencyDistribution.NONE : LatencyDistribution.parse(latency);
+            return new LinkModel.Link(distribution, drop, duplicate, reorder, reorderWindowMicros, 0);
+        }
+
+        /**
+         * @return a new topology (as it keeps track of the nodes placed in it), or null for a flat network
+         */
+        Topology topology()
+        {
+            if (topology == null)
+                return null;
+            LinkModel.Link base = baseLink();
+            Map<Topology.LinkClass, LinkModel.Link> classes = new EnumMap<>(Topology.LinkClass.class);
+            classes.put(Topology.LinkClass.SAME_RACK, link(base, LINK_CLASSES[0]));
+            classes.put(Topology.LinkClass.SAME_DC, link(base, LINK_CLASSES[1]));
+            classes.put(Topology.LinkClass.CROSS_DC, link(base, LINK_CLASSES[2]));
+            return Topology.parse(topology, classes);
+        }
+
+        private LinkModel.Link link(LinkModel.Link base, String linkClass)
+        {
+            Map<String, Object> overrides = links.get(linkClass);
+            if (overrides == null)
+                return base;
+            String latencySpec = string(overrides.get("latency"), null);
+            LatencyDistribution distribution = latencySpec == null ? base.latency : LatencyDistribution.parse(latencySpec);
+            return base.withLatency(distribution, Long.parseLong(string(overrides.get("bandwidth"), "0")));
+        }
+
+        /**
+         * Partitions are specified as {@code <dc>@<start ms>-<heal ms>,...}; each cuts the datacenter off from the others.
+         */
+        NetworkPartitions partitions(Topology topology)
+        {
+            if (partitions == null)
+                return NetworkPartitions.NONE;
+            NetworkPartitions.Builder builder = new NetworkPartitions.Builder(topology);
+            for (String partition : partitions.split(","))
+            {
+                String[] parts = partition.trim().split("[@-]");
+                if (parts.length != 3)
+                    throw new IllegalArgumentException("expected <dc>@<start ms>-<heal ms>, got " + partition);
+                builder.isolate(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            }
+            return builder.build();
+        }
+
+        public String toString()
+        {
+            return String.format("%s, %d nodes, %d seeds, interval %dms, fanout %d, latency %s, churn %s",
+                                 protocol.name().toLowerCase(), nodes, seeds, intervalMillis, fanout, latency, churn);
+        }
+    }
+}
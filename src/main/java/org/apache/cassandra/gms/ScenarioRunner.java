@@ -0,0 +1,142 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+/**
+ * Runs every cell of a {@link Scenario}, {@link Scenario#parallelism()} at a time, and writes one row per run to
+ * {@code <name>-results.csv} in the metrics output directory (next to each run's per-round metrics).
+ */
+public class ScenarioRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(ScenarioRunner.class);
+
+    private final Scenario scenario;
+
+    public ScenarioRunner(Scenario scenario)
+    {
+        this.scenario = scenario;
+    }
+
+    public List<Simulator.Result> run() throws InterruptedException
+    {
+        List<Scenario.Cell> cells = scenario.cells();
+        int parallelism = scenario.parallelism();
+        logger.warn("####### Running scenario {} (seed {}): {} cells, {} runs each, {} at a time ######",
+                    new Object[]{ scenario.name, scenario.seed, cells.size(), scenario.runs, parallelism });
+        if (!scenario.scheduler.isVirtualTime())
+            logger.warn("the {} scheduler leaves the order of events to the threads, so runs can't be replayed exactly", scenario.scheduler);
+        registerEndpoints(cells);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("scenario_cell"));
+        List<Future<Simulator.Result>> futures = new ArrayList<>(cells.size() * scenario.runs);
+        for (final Scenario.Cell cell : cells)
+        {
+            for (int i = 0; i < scenario.runs; i++)
+            {
+                if (!scenario.includes(cell, i))
+                    continue;
+                final int run = i;
+                futures.add(executor.submit(new Callable<Simulator.Result>()
+                {
+                    public Simulator.Result call()
+                    {
+                        return new Simulator(cell).runSimulation(run);
+                    }
+                }));
+            }
+        }
+        executor.shutdown();
+
+        List<Simulator.Result> results = new ArrayList<>(futures.size());
+        for (Future<Simulator.Result> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (ExecutionException e)
+            {
+                logger.error("simulation failed", e.getCause());
+            }
+        }
+        write(results);
+        return results;
+    }
+
+    /**
+     * The per-node endpoint structures iterate (and pick peers) in endpoint id order, and ids are handed out on first
+     * use. Assign them all up front, in cell order, so a run sees the same ids whichever cells ran before or beside it.
+     */
+    private static void registerEndpoints(List<Scenario.Cell> cells)
+    {
+        for (Scenario.Cell cell : cells)
+        {
+            Topology topology = cell.topology();
+            int count = cell.addressCount();
+            for (int i = 0; i < count; i++)
+                EndpointRegistry.instance.idOf(Simulator.getInetAddr(topology, i));
+        }
+    }
+
+    private void write(List<Simulator.Result> results)
+    {
+        File dir = new File(SimulationMetrics.OUTPUT_DIR);
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            logger.error("could not create metrics directory {}", dir);
+            return;
+        }
+
+        File file = new File(dir, scenario.name + "-results.csv");
+        try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            out.println(join(Simulator.Result.COLUMNS));
+            for (Simulator.Result result : results)
+            {
+                Object[] row = result.toRow();
+                String[] values = new String[row.length];
+                for (int i = 0; i < row.length; i++)
+                    values[i] = csv(row[i]);
+                out.println(join(values));
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("failed to write the results of scenario " + scenario.name, e);
+            return;
+        }
+        logger.warn("wrote {} results to {}", results.size(), file);
+    }
+
+    /* latency and churn specs contain commas */
+    private static String csv(Object value)
+    {
+        if (value == null)
+            return "";
+        String s = value.toString();
+        return s.indexOf(',') < 0 ? s : '"' + s + '"';
+    }
+
+    private static String join(String[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values)
+        {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
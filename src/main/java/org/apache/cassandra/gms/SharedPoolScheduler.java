@@ -0,0 +1,108 @@
+package org.apache.cassandra.gms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+/**
+ * Runs the gossip tasks of all the nodes on a small, shared pool of threads (one per core), rather than a thread
+ * per node. A single driver thread kicks off each round: it executes the round action, hands every node's gossip task
+ * to the pool, and waits for them all to complete; the next round starts {@link #intervalMillis()}
+ * later. As nothing blocks on a barrier, the node count is no longer bound by the number of platform threads (and
+ * their stacks) the JVM can hold. Message delivery happens inline on the sender's thread, or on a shared timer pool
+ * if the message is delayed. Uses the wall clock.
+ */
+class SharedPoolScheduler implements SimulationScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(SharedPoolScheduler.class);
+
+    private final Map<SimulatedNode, Runnable> ticks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService driver;
+    private final ExecutorService workers;
+    private final DelayedDeliveries delayedDeliveries = new DelayedDeliveries();
+    private final long intervalMillis;
+
+    SharedPoolScheduler(final Runnable roundAction, long intervalMillis)
+    {
+        this.intervalMillis = intervalMillis;
+        driver = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("gossip_rounds"));
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("gossip_worker"));
+        driver.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    roundAction.run();
+                    List<Callable<Object>> tasks = new ArrayList<>(ticks.size());
+                    for (Runnable task : ticks.values())
+                        tasks.add(Executors.callable(task));
+                    workers.invokeAll(tasks);
+                }
+                catch (InterruptedException e)
+                {
+                    // shutting down
+                }
+                catch (Exception e)
+                {
+                    logger.error("gossip round failed", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    public long intervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    public void register(final SimulatedNode node)
+    {
+        ticks.put(node, new Runnable()
+        {
+            public void run()
+            {
+                node.tick();
+            }
+        });
+    }
+
+    public void unregister(SimulatedNode node)
+    {
+        ticks.remove(node);
+    }
+
+    public void deliver(Runnable delivery, long delayMicros)
+    {
+        delayedDeliveries.deliver(delivery, delayMicros);
+    }
+
+    public boolean awaitCompletion(CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return latch.await(timeout, unit);
+    }
+
+    public void shutdown()
+    {
+        ticks.clear();
+        driver.shutdownNow();
+        workers.shutdownNow();
+        delayedDeliveries.shutdown();
+    }
+}
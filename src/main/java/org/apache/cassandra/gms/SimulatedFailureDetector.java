@@ -0,0 +1,146 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The phi accrual failure detector of {@link FailureDetector}, one instance per simulated node, with all times taken
+ * from the simulation clock instead of System.nanoTime(). Heartbeat arrival intervals are kept per endpoint in a
+ * fixed-size ring of longs with a running sum, so the mean (and thus {@link #interpret(InetAddress)}) is O(1).
+ */
+public class SimulatedFailureDetector
+{
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedFailureDetector.class);
+
+    public static final double PHI_CONVICT_THRESHOLD = Double.parseDouble(System.getProperty("gossipocolypse.fd.phi", "8"));
+    private static final double PHI_FACTOR = 1.0 / Math.log(10.0);
+    private static final int SAMPLE_SIZE = 1000;
+
+    private final SimulationScheduler scheduler;
+    private final IFailureDetectionEventListener listener;
+    private final FailureDetectorStats stats;
+    private final ConcurrentMap<InetAddress, ArrivalWindow> arrivalSamples = new IndexedEndpointMap<>();
+    // same defaults as FailureDetector (two gossip rounds): the interval assumed before any have been seen, and the longest one counted
+    private final long initialValueNanos;
+    private final long maxIntervalNanos;
+
+    public SimulatedFailureDetector(SimulationScheduler scheduler, IFailureDetectionEventListener listener, FailureDetectorStats stats)
+    {
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.stats = stats;
+        initialValueNanos = TimeUnit.MILLISECONDS.toNanos(scheduler.intervalMillis() * 2);
+        maxIntervalNanos = initialValueNanos;
+    }
+
+    public void report(InetAddress ep)
+    {
+        report(ep, scheduler.nanoTime());
+    }
+
+    void report(InetAddress ep, long now)
+    {
+        ArrivalWindow window = arrivalSamples.get(ep);
+        if (window == null)
+        {
+            window = new ArrivalWindow(SAMPLE_SIZE, initialValueNanos, maxIntervalNanos);
+            ArrivalWindow existing = arrivalSamples.putIfAbsent(ep, window);
+            if (existing != null)
+                window = existing;
+        }
+        window.add(now);
+    }
+
+    public void interpret(InetAddress ep)
+    {
+        interpret(ep, scheduler.nanoTime());
+    }
+
+    void interpret(InetAddress ep, long now)
+    {
+        long start = System.nanoTime();
+        ArrivalWindow window = arrivalSamples.get(ep);
+        if (window == null)
+            return;
+        double phi = window.phi(now);
+        stats.recordInterpret(System.nanoTime() - start);
+        if (logger.isTraceEnabled())
+            logger.trace("PHI for {} : {}", ep, phi);
+
+        if (PHI_FACTOR * phi > PHI_CONVICT_THRESHOLD)
+            listener.convict(ep, phi);
+    }
+
+    public void remove(InetAddress ep)
+    {
+        arrivalSamples.remove(ep);
+    }
+
+    static class ArrivalWindow
+    {
+        private final long[] intervals;
+        private final long initialValueNanos;
+        private final long maxIntervalNanos;
+        private int count;
+        private int next;
+        private long sum;
+        private long tLast;
+
+        ArrivalWindow(int size, long initialValueNanos, long maxIntervalNanos)
+        {
+            intervals = new long[size];
+            this.initialValueNanos = initialValueNanos;
+            this.maxIntervalNanos = maxIntervalNanos;
+        }
+
+        synchronized void add(long value)
+        {
+            if (tLast > 0L)
+            {
+                long interArrivalTime = value - tLast;
+                if (interArrivalTime <= maxIntervalNanos)
+                    addInterval(interArrivalTime);
+                else
+                    logger.debug("Ignoring interval time of {}", interArrivalTime);
+            }
+            else
+            {
+                // We use a very large initial interval since the "right" average depends on the cluster size
+                // and it's better to err high (false negatives, which will be corrected by waiting a bit longer)
+                // than low (false positives, which cause "flapping").
+                addInterval(initialValueNanos);
+            }
+            // the simulation clock may start at zero, which is also the 'never seen' marker
+            tLast = Math.max(value, 1L);
+        }
+
+        private void addInterval(long interval)
+        {
+            if (count == intervals.length)
+                sum -= intervals[next];
+            else
+                count++;
+            intervals[next] = interval;
+            sum += interval;
+            next = (next + 1) % intervals.length;
+        }
+
+        synchronized double mean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // see CASSANDRA-2597 for an explanation of the math at work here.
+        synchronized double phi(long tnow)
+        {
+            double mean = mean();
+            if (mean <= 0 || tLast == 0)
+                return 0;
+            return (tnow - tLast) / mean;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.net.MessageIn;
+
+/**
+ * A node of the simulated cluster, as the harness sees it, whatever gossip protocol it runs. The scheduler calls
+ * {@link #tick()} once per round, messages sent through {@link CustomMessagingService#sendOneWay} are handed to the
+ * target's {@link #receive(MessageIn, SimulatedNode)}, and convergence, dissemination and churn only go through the
+ * methods here, so every {@link Protocol} is measured against the same scenarios and metrics.
+ *
+ * Every protocol keeps its view of the cluster as an EndpointState per endpoint (the heartbeat generation and the
+ * application states, as the endpoint itself set them), which is what convergence is judged on.
+ */
+public interface SimulatedNode
+{
+    enum Protocol
+    {
+        /** Cassandra's gossiper: SYN/ACK/ACK2 anti-entropy with a random live member (and seeds, and the unreachable) */
+        CASSANDRA
+        {
+            SimulatedNode create(InetAddress addr, List<InetAddress> seeds, CustomMessagingService messaging)
+            {
+                return withFailureDetector(new GossiperSimulator(addr, seeds, messaging), messaging);
+            }
+        },
+        /** Cassandra's gossiper, with application state changes also pushed along a broadcast tree (see {@link PlumtreeSimulator}) */
+        PLUMTREE
+        {
+            SimulatedNode create(InetAddress addr, List<InetAddress> seeds, CustomMessagingService messaging)
+            {
+                return withFailureDetector(new PlumtreeSimulator(addr, seeds, messaging), messaging);
+            }
+        },
+        /** SWIM: probes with direct and indirect pings, suspicion, and membership updates piggybacked on the probes (see {@link SwimSimulator}) */
+        SWIM
+        {
+            SimulatedNode create(InetAddress addr, List<InetAddress> seeds, CustomMessagingService messaging)
+            {
+                return new SwimSimulator(addr, seeds, messaging);
+            }
+        };
+
+        /**
+         * @return a new node, not yet registered with the messaging service or started
+         */
+        abstract SimulatedNode create(InetAddress addr, List<InetAddress> seeds, CustomMessagingService messaging);
+
+        private static GossiperSimulator withFailureDetector(GossiperSimulator gossiper, CustomMessagingService messaging)
+        {
+            if (CustomMessagingService.FAILURE_DETECTION)
+                gossiper.setFailureDetector(new SimulatedFailureDetector(messaging.scheduler(), gossiper, messaging.failureDetection));
+            return gossiper;
+        }
+    }
+
+    InetAddress address();
+
+    /**
+     * Join the cluster with the generation, and the application states to announce. Starts the node's ticks.
+     */
+    void start(int generation, Map<ApplicationState, VersionedValue> localStates);
+
+    /**
+     * Stop dead, without telling anyone, and stop ticking.
+     */
+    void terminate();
+
+    boolean isEnabled();
+
+    /**
+     * @return true if the node isn't enabled, but is catching up on the cluster's state before it starts (so its
+     * view still counts for convergence). Protocols without such a phase never are.
+     */
+    boolean isInShadowRound();
+
+    /**
+     * The node's work for a round: whatever it sends on its own account, and any timeouts it checks.
+     */
+    void tick();
+
+    /**
+     * Handle a message from another node.
+     *
+     * @param sender the node that started the exchange the message is part of
+     */
+    void receive(MessageIn<?> message, SimulatedNode sender);
+
+    /**
+     * Peers to gossip to each round; each protocol decides what that means for it.
+     */
+    void setFanout(int fanout);
+
+    /**
+     * Change one of the node's own application states, and let the cluster know.
+     */
+    void addLocalApplicationState(ApplicationState state, VersionedValue value);
+
+    EndpointState getEndpointStateForEndpoint(InetAddress ep);
+
+    /**
+     * @return the node's view of the cluster, which is not to be changed by the caller
+     */
+    Map<InetAddress, EndpointState> endpointStates();
+
+    /**
+     * Report every change to the view (see {@link ConvergenceTracker#update}) to the tracker.
+     */
+    void setConvergenceTracker(ConvergenceTracker tracker);
+
+    /**
+     * @return a sequence that is odd while the view is being changed, and moves on with every change
+     */
+    long viewSequence();
+
+    /**
+     * @return how many times the view (generations and application states, not heartbeats) has changed
+     */
+    long viewChanges();
+
+    void setTrace(TraceRecorder.Buffer trace);
+
+    void trace(TraceRecorder.Event event, InetAddress peer, InetAddress subject, int value);
+}
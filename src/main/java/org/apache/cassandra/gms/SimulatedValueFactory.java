@@ -0,0 +1,102 @@
+package org.apache.cassandra.gms;
+
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the application state values of one simulation, like Cassandra's {@link VersionedValue.VersionedValueFactory},
+ * but versioned from a counter of the simulation's own instead of the process-wide {@link VersionGenerator}. Cells run
+ * in parallel would otherwise interleave their versions, and a run could not be replayed exactly from its seed.
+ * Heartbeats take their versions from the same counter, as Cassandra's do from VersionGenerator.
+ */
+public class SimulatedValueFactory
+{
+    private static final Constructor<VersionedValue> VERSIONED;
+    static
+    {
+        try
+        {
+            VERSIONED = VersionedValue.class.getDeclaredConstructor(String.class, int.class);
+            VERSIONED.setAccessible(true);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final VersionedValue.VersionedValueFactory values = new VersionedValue.VersionedValueFactory(GossiperSimulator.partitioner);
+    private final AtomicInteger versions = new AtomicInteger();
+
+    public int nextVersion()
+    {
+        return versions.incrementAndGet();
+    }
+
+    public VersionedValue networkVersion()
+    {
+        return cloneWithHigherVersion(values.networkVersion());
+    }
+
+    public VersionedValue releaseVersion()
+    {
+        return cloneWithHigherVersion(values.releaseVersion());
+    }
+
+    public VersionedValue hostId(UUID hostId)
+    {
+        return cloneWithHigherVersion(values.hostId(hostId));
+    }
+
+    public VersionedValue rpcaddress(InetAddress endpoint)
+    {
+        return cloneWithHigherVersion(values.rpcaddress(endpoint));
+    }
+
+    public VersionedValue datacenter(String dcId)
+    {
+        return cloneWithHigherVersion(values.datacenter(dcId));
+    }
+
+    public VersionedValue rack(String rackId)
+    {
+        return cloneWithHigherVersion(values.rack(rackId));
+    }
+
+    public VersionedValue load(double load)
+    {
+        return cloneWithHigherVersion(values.load(load));
+    }
+
+    public VersionedValue removingNonlocal(UUID hostId)
+    {
+        return cloneWithHigherVersion(values.removingNonlocal(hostId));
+    }
+
+    public VersionedValue removalCoordinator(UUID hostId)
+    {
+        return cloneWithHigherVersion(values.removalCoordinator(hostId));
+    }
+
+    public VersionedValue removedNonlocal(UUID hostId, long expireTime)
+    {
+        return cloneWithHigherVersion(values.removedNonlocal(hostId, expireTime));
+    }
+
+    /**
+     * @return the value, with this simulation's next version
+     */
+    public VersionedValue cloneWithHigherVersion(VersionedValue value)
+    {
+        try
+        {
+            return VERSIONED.newInstance(value.value, nextVersion());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
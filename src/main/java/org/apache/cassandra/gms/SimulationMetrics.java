@@ -0,0 +1,273 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Per-round counters for a single simulation: messages sent per verb, digest and delta state counts, bytes on the
+ * wire (when messages are serialized) and verb handler latencies. Rounds are delimited by the round action calling
+ * {@link #startRound(int)}; at the end of the simulation the rows can be exported as CSV and JSON.
+ */
+public class SimulationMetrics
+{
+    private static final Logger logger = LoggerFactory.getLogger(SimulationMetrics.class);
+    public static final String OUTPUT_DIR = System.getProperty("gossipocolypse.metrics.dir", "/tmp/gossipocolypse-metrics");
+
+    private static final String[] COLUMNS = { "round", "syn", "ack", "ack2", "bytes", "syn_digests", "ack_digests", "ack_states", "ack2_states",
+                                              "syn_p50_us", "syn_p99_us", "ack_p50_us", "ack_p99_us", "ack2_p50_us", "ack2_p99_us",
+                                              "cross_dc", "cross_dc_bytes", "partition_drops", "other" };
+
+    private volatile Round current = new Round(0);
+    private final List<long[]> rows = new ArrayList<>();
+    private final List<Integer> convergenceRounds = new ArrayList<>();
+    private final List<Long> healToConvergenceMillis = new ArrayList<>();
+    private final List<String> churn = new ArrayList<>();
+    // across all rounds, so the cost of an event can be taken as the difference between two readings
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong messageBytes = new AtomicLong();
+
+    void recordSend(MessagingService.Verb verb, int bytes)
+    {
+        messages.incrementAndGet();
+        messageBytes.addAndGet(bytes);
+        Round round = current;
+        switch (verb)
+        {
+            case GOSSIP_DIGEST_SYN: round.syn.incrementAndGet(); break;
+            case GOSSIP_DIGEST_ACK: round.ack.incrementAndGet(); break;
+            case GOSSIP_DIGEST_ACK2: round.ack2.incrementAndGet(); break;
+            // whatever else a protocol sends (see SimulatedNode.Protocol)
+            default: round.other.incrementAndGet(); break;
+        }
+        round.bytes.addAndGet(bytes);
+    }
+
+    void recordCrossDc(long bytes)
+    {
+        Round round = current;
+        round.crossDc.incrementAndGet();
+        round.crossDcBytes.addAndGet(bytes);
+    }
+
+    void recordPartitionDrop()
+    {
+        current.partitionDrops.incrementAndGet();
+    }
+
+    void recordSyn(int digests, long elapsedNanos)
+    {
+        Round round = current;
+        round.synDigests.addAndGet(digests);
+        round.synLatency.add(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    void recordAck(int digests, int states, long elapsedNanos)
+    {
+        Round round = current;
+        round.ackDigests.addAndGet(digests);
+        round.ackStates.addAndGet(states);
+        round.ackLatency.add(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    void recordAck2(int states, long elapsedNanos)
+    {
+        Round round = current;
+        round.ack2States.addAndGet(states);
+        round.ack2Latency.add(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    /**
+     * Close out the previous round, and start collecting for the new one.
+     */
+    synchronized void startRound(int round)
+    {
+        Round previous = current;
+        current = new Round(round);
+        if (previous.number > 0)
+            rows.add(previous.toRow());
+    }
+
+    /**
+     * @return the named column of every finished round
+     */
+    synchronized long[] column(String name)
+    {
+        int index = Arrays.asList(COLUMNS).indexOf(name);
+        if (index < 0)
+            throw new IllegalArgumentException("no metrics column " + name);
+        long[] column = new long[rows.size()];
+        for (int i = 0; i < column.length; i++)
+            column[i] = rows.get(i)[index];
+        return column;
+    }
+
+    synchronized void recordConvergence(int rounds)
+    {
+        convergenceRounds.add(rounds);
+    }
+
+    /**
+     * @return the rounds the cluster took to converge the first time, or -1 if it never did
+     */
+    synchronized int firstConvergenceRounds()
+    {
+        return convergenceRounds.isEmpty() ? -1 : convergenceRounds.get(0);
+    }
+
+    /**
+     * Record how long the cluster took to converge after the last network partition healed.
+     */
+    synchronized void recordHealToConvergence(long millis)
+    {
+        healToConvergenceMillis.add(millis);
+    }
+
+    long totalMessages()
+    {
+        return messages.get();
+    }
+
+    long totalMessageBytes()
+    {
+        return messageBytes.get();
+    }
+
+    /**
+     * Record how long, and how many messages, it took the cluster to converge again once a churn event had played out.
+     */
+    synchronized void recordChurn(String event, int rounds, long messages, long bytes)
+    {
+        churn.add(String.format("{\"event\": \"%s\", \"rounds\": %d, \"messages\": %d, \"bytes\": %d}", event, rounds, messages, bytes));
+    }
+
+    /**
+     * Write the collected rows to {@code <label>.csv} and {@code <label>.json} in the output directory.
+     */
+    synchronized void export(String label)
+    {
+        startRound(current.number + 1);
+        File dir = new File(OUTPUT_DIR);
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            logger.error("could not create metrics directory {}", dir);
+            return;
+        }
+
+        try
+        {
+            writeCsv(new File(dir, label + ".csv"));
+            writeJson(new File(dir, label + ".json"));
+        }
+        catch (IOException e)
+        {
+            logger.error("failed to write metrics for " + label, e);
+        }
+    }
+
+    private void writeCsv(File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            out.println(join(COLUMNS));
+            for (long[] row : rows)
+            {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < row.length; i++)
+                {
+                    if (i > 0)
+                        sb.append(',');
+                    sb.append(row[i]);
+                }
+                out.println(sb);
+            }
+        }
+    }
+
+    private void writeJson(File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            out.println("{");
+            out.println("  \"convergenceRounds\": " + convergenceRounds + ",");
+            out.println("  \"healToConvergenceMillis\": " + healToConvergenceMillis + ",");
+            out.println("  \"churn\": " + churn + ",");
+            out.println("  \"rounds\": [");
+            for (int r = 0; r < rows.size(); r++)
+            {
+                long[] row = rows.get(r);
+                StringBuilder sb = new StringBuilder("    {");
+                for (int i = 0; i < row.length; i++)
+                {
+                    if (i > 0)
+                        sb.append(", ");
+                    sb.append('"').append(COLUMNS[i]).append("\": ").append(row[i]);
+                }
+                sb.append(r < rows.size() - 1 ? "}," : "}");
+                out.println(sb);
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static String join(String[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values)
+        {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static class Round
+    {
+        final int number;
+        final AtomicLong syn = new AtomicLong();
+        final AtomicLong ack = new AtomicLong();
+        final AtomicLong ack2 = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong synDigests = new AtomicLong();
+        final AtomicLong ackDigests = new AtomicLong();
+        final AtomicLong ackStates = new AtomicLong();
+        final AtomicLong ack2States = new AtomicLong();
+        final AtomicLong crossDc = new AtomicLong();
+        final AtomicLong crossDcBytes = new AtomicLong();
+        final AtomicLong partitionDrops = new AtomicLong();
+        final AtomicLong other = new AtomicLong();
+        // handler latencies, in micros
+        final EstimatedHistogram synLatency = new EstimatedHistogram(160);
+        final EstimatedHistogram ackLatency = new EstimatedHistogram(160);
+        final EstimatedHistogram ack2Latency = new EstimatedHistogram(160);
+
+        Round(int number)
+        {
+            this.number = number;
+        }
+
+        long[] toRow()
+        {
+            return new long[]{ number, syn.get(), ack.get(), ack2.get(), bytes.get(),
+                               synDigests.get(), ackDigests.get(), ackStates.get(), ack2States.get(),
+                               synLatency.percentile(0.5), synLatency.percentile(0.99),
+                               ackLatency.percentile(0.5), ackLatency.percentile(0.99),
+                               ack2Latency.percentile(0.5), ack2Latency.percentile(0.99),
+                               crossDc.get(), crossDcBytes.get(), partitionDrops.get(), other.get() };
+        }
+    }
+}
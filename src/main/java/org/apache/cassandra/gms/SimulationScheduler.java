@@ -0,0 +1,85 @@
+package org.apache.cassandra.gms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the simulation: ticks each registered node once per round, runs the round action
+ * (convergence checking, etc) before each round starts, and delivers messages between nodes. All simulated
+ * time (quarantine, expire times, downtime) should be read from here rather than from the system clock.
+ */
+public interface SimulationScheduler
+{
+    enum Type
+    {
+        /** the original model: one executor thread per node, rounds separated by a barrier */
+        THREAD_PER_NODE
+        {
+            SimulationScheduler create(Runnable roundAction, long intervalMillis)
+            {
+                return new ThreadPerNodeScheduler(roundAction, intervalMillis);
+            }
+        },
+        /** rounds driven by a single thread, node gossip tasks executed on a shared pool sized to the cores */
+        SHARED_POOL
+        {
+            SimulationScheduler create(Runnable roundAction, long intervalMillis)
+            {
+                return new SharedPoolScheduler(roundAction, intervalMillis);
+            }
+        },
+        /** single-threaded virtual clock, events processed in timestamp order */
+        DISCRETE_EVENT
+        {
+            SimulationScheduler create(Runnable roundAction, long intervalMillis)
+            {
+                return new DiscreteEventScheduler(roundAction, intervalMillis);
+            }
+        };
+
+        /**
+         * @param intervalMillis the length of a gossip round
+         */
+        abstract SimulationScheduler create(Runnable roundAction, long intervalMillis);
+
+        /**
+         * @return true if the scheduler keeps its own (virtual) time, so several simulations can run side by side
+         * without skewing each other's timings
+         */
+        boolean isVirtualTime()
+        {
+            return this == DISCRETE_EVENT;
+        }
+    }
+
+    long currentTimeMillis();
+
+    long nanoTime();
+
+    /**
+     * @return the length of a gossip round
+     */
+    long intervalMillis();
+
+    /**
+     * Start calling the node's {@link SimulatedNode#tick()}, once every {@link #intervalMillis()}.
+     */
+    void register(SimulatedNode node);
+
+    void unregister(SimulatedNode node);
+
+    /**
+     * Hand off the delivery of a message (which executes the verb handler on the target) that should arrive after the
+     * given delay (in simulation time); at once if the delay is 0.
+     */
+    void deliver(Runnable delivery, long delayMicros);
+
+    /**
+     * Run the simulation until either the latch is released, or the timeout (in simulation time) expires.
+     *
+     * @return true if the latch was released
+     */
+    boolean awaitCompletion(CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException;
+
+    void shutdown();
+}
@@ -1,96 +1,143 @@
 package org.apache.cassandra.gms;
 
-import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
 
 public class Simulator
 {
     private static final Logger logger = LoggerFactory.getLogger(Simulator.class);
 
+    /**
+     * Runs the scenario in the YAML file given as the first argument or, without one, the scenario described by the
+     * gossipocolypse.* system properties.
+     */
     public static void main(String[] args) throws Exception
     {
         String cwd = System.getProperty("user.dir");
         System.setProperty("logback.configurationFile", "src/main/resources/logback.xml");
         System.setProperty("cassandra.config", "file://" + cwd + "/src/main/resources/cassandra.yaml");
 
-        Simulator simulator = new Simulator();
-//        simulator.runSimulation(3, 25, 10);
-//        simulator.runSimulation(3, 50, 10);
-//        simulator.runSimulation(3, 100, 10);
-//        simulator.runSimulation(6, 200, 10);
-//        simulator.runSimulation(6, 400, 10);
-//        simulator.runSimulation(12, 800, 10);
-        simulator.runSimulation(20, 1200, 10);
-
-        System.exit(0);
+        Scenario scenario = args.length > 0 ? Scenario.load(new File(args[0])) : Scenario.fromProperties();
+        new ScenarioRunner(scenario).run();
     }
 
-    void runSimulation(int seedCnt, int nodeCnt, int simulationRounds)
-    {
-        logger.warn("####### Running new simulation for {} nodes with {} seeds ######", nodeCnt, seedCnt);
+    private final Scenario.Cell cell;
+    private final Scenario scenario;
 
-        for (int i = 0; i < simulationRounds; i ++)
-            runSimulation(seedCnt, nodeCnt);
+    Simulator(Scenario.Cell cell)
+    {
+        this.cell = cell;
+        this.scenario = cell.scenario();
     }
 
-    void runSimulation(int seedCnt, int nodeCnt)
+    Result runSimulation(int run)
     {
-        assert seedCnt > nodeCnt;
-        CustomMessagingService.renewInstance();
+        String label = cell.label(run);
+        long seed = cell.seed(run);
+        logger.warn("####### Running simulation {} for {} (seed {}, replay with seed: {} and replay: {}:{}) ######",
+                    new Object[]{ label, cell, seed, scenario.seed, cell.index, run });
+        long wallStart = System.currentTimeMillis();
 
-        List<InetAddress> seeds = new ArrayList<>(seedCnt);
-        for (int i = 0; i < seedCnt; i++)
+        CountDownLatch latch = new CountDownLatch(1);
+        Topology topology = cell.topology();
+        List<InetAddress> seeds = new ArrayList<>(cell.seeds);
+        for (int i = 0; i < cell.seeds; i++)
         {
-            seeds.add(getInetAddr(i));
+            seeds.add(getInetAddr(topology, i));
         }
-
-        CountDownLatch latch = new CountDownLatch(1);
-        CyclicBarrier barrier = new CyclicBarrier(nodeCnt, new BarrierAction(latch));
-
-        for (int i = 0; i < nodeCnt; i++)
+        Cluster cluster = new Cluster(seeds, topology, cell.nodes);
+        ConvergenceVerifier verifier = new ConvergenceVerifier(scenario.scheduler.isVirtualTime());
+        BarrierAction barrierAction = new BarrierAction(latch, ChurnScenario.parse(cell.churn, cluster), verifier, scenario.maxRounds);
+        SimulationScheduler scheduler = scenario.scheduler.create(barrierAction, cell.intervalMillis);
+        CustomMessagingService messaging = new CustomMessagingService(scheduler, scenario.delivery, scenario.serialize, seed);
+        cluster.setMessaging(messaging);
+        barrierAction.messaging = messaging;
+        if (scenario.trace)
+            messaging.setTrace(newTrace(label, scheduler));
+        messaging.setLinkModel(cell.linkModel());
+        if (topology != null)
+            messaging.setTopology(topology);
+
+        for (int i = 0; i < cell.nodes; i++)
         {
-            InetAddress addr = getInetAddr(i);
-            GossiperSimulator simulator = new GossiperSimulator(addr, seeds, barrier);
-            CustomMessagingService.instance().register(simulator);
-
-            Map<ApplicationState, VersionedValue> appStates = new HashMap<>();
-            appStates.put(ApplicationState.NET_VERSION, GossiperSimulator.valueFactory.networkVersion());
-            appStates.put(ApplicationState.HOST_ID, GossiperSimulator.valueFactory.hostId(UUID.randomUUID()));
-            appStates.put(ApplicationState.RPC_ADDRESS, GossiperSimulator.valueFactory.rpcaddress(addr));
-            appStates.put(ApplicationState.RELEASE_VERSION, GossiperSimulator.valueFactory.releaseVersion());
+            InetAddress addr = getInetAddr(topology, i);
             //TODO: add listener, probably one that simulates StorageService (or maybe SS :) )
-            simulator.start(0, appStates);
+            cluster.newNode(addr).start(0, cluster.appStates(addr, cluster.newHostId()));
+        }
+        messaging.dissemination.start();
+
+        // the datacenters are fully populated now
+        if (topology != null)
+        {
+            NetworkPartitions partitions = cell.partitions(topology);
+            if (!partitions.isEmpty())
+            {
+                logger.warn("scheduled partitions: {}", partitions);
+                messaging.setPartitions(partitions);
+            }
         }
 
+        boolean completed = false;
         try
         {
-            latch.await(10, TimeUnit.MINUTES);
+            // the round action ends the run at the round limit; the timeout only covers the rounds stalling altogether
+            completed = scheduler.awaitCompletion(latch, 2L * (scenario.maxRounds + 1) * cell.intervalMillis, TimeUnit.MILLISECONDS)
+                        && !barrierAction.reachedRoundLimit;
+            if (barrierAction.reachedRoundLimit)
+                logger.error("simulation {} reached the limit of {} rounds before completion", label, scenario.maxRounds);
+            else if (!completed)
+                logger.error("simulation {} timed out before completion", label);
         }
         catch (InterruptedException e)
         {
-            logger.error("test with {} seeds and {} nodes timed out before completion", seedCnt, nodeCnt);
+            logger.error("simulation {} was interrupted before completion", label);
         }
 
         //shut down everything - might be some noisy errors?
-        for (GossiperSimulator simulator : CustomMessagingService.instance().gossipers.values())
+        for (SimulatedNode node : messaging.gossipers.values())
         {
-            simulator.terminate();
+            node.terminate();
         }
+        scheduler.shutdown();
+        verifier.shutdown();
+        messaging.shutdown();
+        if (messaging.trace() != null)
+            messaging.trace().close();
+        messaging.metrics.export(label);
+        messaging.dissemination.export(new File(SimulationMetrics.OUTPUT_DIR), label);
+        return new Result(cell, run, completed, barrierAction.counter, messaging.metrics.firstConvergenceRounds(),
+                          messaging.metrics.totalMessages(), messaging.metrics.totalMessageBytes(), messaging.failureDetection,
+                          messaging.metrics, messaging.dissemination, messaging.elapsedMillis(), System.currentTimeMillis() - wallStart);
+    }
 
-        // wait a short while for things to die
-        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+    private static TraceRecorder newTrace(String label, SimulationScheduler scheduler)
+    {
+        File dir = new File(SimulationMetrics.OUTPUT_DIR);
+        if (!dir.exists() && !dir.mkdirs())
+            throw new RuntimeException("could not create metrics directory " + dir);
+        try
+        {
+            return new TraceRecorder(new File(dir, label + ".trace"), scheduler);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("could not create the trace for " + label, e);
+        }
     }
 
-    InetAddress getInetAddr(int i)
+    static InetAddress getInetAddr(Topology topology, int i)
     {
+        if (topology != null)
+            return topology.place(i);
+
         int thirdOctet = i / 255;
         int fourthOctet = i % 255;
         String ipAddr = "127.0." + thirdOctet + "." + fourthOctet;
@@ -104,130 +151,278 @@ public class Simulator
         }
     }
 
+    /**
+     * The outcome of a single simulation run, as a row of the scenario's result table.
+     */
+    static class Result
+    {
+        static final String[] COLUMNS = { "cell", "run", "seed", "protocol", "seeds", "nodes", "interval_ms", "fanout", "latency", "churn",
+                                          "converged", "rounds", "first_convergence_rounds", "messages", "bytes", "messages_per_node_round",
+                                          "convictions", "false_positives", "detect_p50_ms", "detect_p99_ms", "simulated_ms", "wall_ms" };
+
+        final Scenario.Cell cell;
+        final int run;
+        final boolean converged;
+        final int rounds;
+        final int firstConvergenceRounds;
+        final long messages;
+        final long bytes;
+        final FailureDetectorStats failureDetection;
+        /* the per-round metrics */
+        final SimulationMetrics metrics;
+        final DisseminationTracker dissemination;
+        final long simulatedMillis;
+        final long wallMillis;
+
+        Result(Scenario.Cell cell, int run, boolean converged, int rounds, int firstConvergenceRounds, long messages, long bytes,
+               FailureDetectorStats failureDetection, SimulationMetrics metrics, DisseminationTracker dissemination,
+               long simulatedMillis, long wallMillis)
+        {
+            this.cell = cell;
+            this.run = run;
+            this.converged = converged;
+            this.rounds = rounds;
+            this.firstConvergenceRounds = firstConvergenceRounds;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.failureDetection = failureDetection;
+            this.metrics = metrics;
+            this.dissemination = dissemination;
+            this.simulatedMillis = simulatedMillis;
+            this.wallMillis = wallMillis;
+        }
+
+        Object[] toRow()
+        {
+            return new Object[]{ cell.index, run, cell.scenario().seed, cell.protocol, cell.seeds, cell.nodes, cell.intervalMillis, cell.fanout, cell.latency, cell.churn,
+                                 converged, rounds, firstConvergenceRounds, messages, bytes, messagesPerNodeRound(),
+                                 failureDetection.convictions.get(), failureDetection.falsePositives.get(),
+                                 failureDetection.detectionMillis(0.5), failureDetection.detectionMillis(0.99), simulatedMillis, wallMillis };
+        }
+
+        /* the load on a node, which is what a protocol that isn't O(N) per round should keep flat as the cluster grows */
+        String messagesPerNodeRound()
+        {
+            return rounds == 0 ? "0" : String.format("%.2f", (double) messages / cell.nodes / rounds);
+        }
+    }
+
+    /**
+     * The nodes of a single simulation run, as churn sees them.
+     */
+    class Cluster implements ChurnScenario.Cluster
+    {
+        private final List<InetAddress> seeds;
+        /* null for a flat network */
+        private final Topology topology;
+        private int nextIndex;
+        private CustomMessagingService messaging;
+        private Random random;
+
+        Cluster(List<InetAddress> seeds, Topology topology, int nodeCnt)
+        {
+            this.seeds = seeds;
+            this.topology = topology;
+            nextIndex = nodeCnt;
+        }
+
+        void setMessaging(CustomMessagingService messaging)
+        {
+            this.messaging = messaging;
+            random = messaging.newRandom();
+        }
+
+        public CustomMessagingService messaging()
+        {
+            return messaging;
+        }
+
+        public Random random()
+        {
+            return random;
+        }
+
+        /* a random (version 4) UUID, but from the simulation's random source rather than a SecureRandom */
+        public UUID newHostId()
+        {
+            long msb = (random.nextLong() & ~0xf000L) | 0x4000L;
+            long lsb = (random.nextLong() & ~(0xcL << 60)) | (0x8L << 60);
+            return new UUID(msb, lsb);
+        }
+
+        public boolean isSeed(InetAddress addr)
+        {
+            return seeds.contains(addr);
+        }
+
+        public InetAddress nextAddress()
+        {
+            return getInetAddr(topology, nextIndex++);
+        }
+
+        public SimulatedNode newNode(InetAddress addr)
+        {
+            SimulatedNode node = cell.protocol.create(addr, seeds, messaging);
+            node.setFanout(cell.fanout);
+            messaging.register(node);
+            return node;
+        }
+
+        public Map<ApplicationState, VersionedValue> appStates(InetAddress addr, UUID hostId)
+        {
+            Map<ApplicationState, VersionedValue> appStates = new EnumMap<>(ApplicationState.class);
+            appStates.put(ApplicationState.NET_VERSION, messaging.values.networkVersion());
+            appStates.put(ApplicationState.HOST_ID, messaging.values.hostId(hostId));
+            appStates.put(ApplicationState.RPC_ADDRESS, messaging.values.rpcaddress(addr));
+            appStates.put(ApplicationState.RELEASE_VERSION, messaging.values.releaseVersion());
+            if (topology != null)
+            {
+                Topology.Location location = topology.location(addr);
+                appStates.put(ApplicationState.DC, messaging.values.datacenter(location.datacenter));
+                appStates.put(ApplicationState.RACK, messaging.values.rack(location.rack));
+            }
+            return appStates;
+        }
+    }
+
     static class BarrierAction implements Runnable
     {
+        /** number of rounds after which to run a full inspection, if the convergence tracker hasn't reported convergence */
+        private static final int FULL_INSPECTION_INTERVAL = 10;
+
         int counter = 0;
         int lastConvergenceRound = 0;
+        // the last round the cluster was known not to have converged in; round 1 never has
+        int lastDivergedRound = 1;
+        int lastFullInspection = 0;
         private final CountDownLatch latch;
-
-        public BarrierAction(CountDownLatch latch)
+        private final ChurnScenario churn;
+        private final ConvergenceVerifier verifier;
+        private final int maxRounds;
+        /* set once the messaging service exists, which needs the scheduler, which needs this */
+        volatile CustomMessagingService messaging;
+        volatile boolean reachedRoundLimit;
+
+        public BarrierAction(CountDownLatch latch, ChurnScenario churn, ConvergenceVerifier verifier, int maxRounds)
         {
             this.latch = latch;
+            this.churn = churn;
+            this.verifier = verifier;
+            this.maxRounds = maxRounds;
         }
 
         public void run()
         {
+            CustomMessagingService messaging = this.messaging;
+            if (messaging == null)
+                return;
+            if (counter >= maxRounds)
+            {
+                // give up on the run, unless it has already completed
+                if (latch.getCount() > 0)
+                {
+                    reachedRoundLimit = true;
+                    latch.countDown();
+                }
+                return;
+            }
             counter++;
             logger.debug("**************** ROUND {}  **************************", counter);
+            messaging.metrics.startRound(counter);
+            TraceRecorder trace = messaging.trace();
+            if (trace != null)
+                trace.startRound(counter);
             if (counter <= 1)
                 return;
+            churn.tick(counter);
 
             long start = System.currentTimeMillis();
-//            boolean convergedViaGossip = hasConvergedViaGossip();
-            boolean convergedByInspection = hasConvergedByInspection();
+            int convergedRound = convergedRound();
+            boolean convergedByInspection = convergedRound > 0;
+            long elapsed = messaging.elapsedMillis();
+            // don't call it done while there are partitions still to come, or still in effect
+            if (convergedByInspection && !messaging.partitions().allHealedBy(elapsed))
+            {
+                logger.debug("****** converged, but waiting on the scheduled partitions");
+                return;
+            }
             logger.debug("****** elapsed comparison time (ms) = " + (System.currentTimeMillis() - start));
             logger.debug("****** have we converged? " + convergedByInspection);
 
             if (convergedByInspection)
             {
-                if (counter - 1 > lastConvergenceRound)
-                    logger.warn("****** converged after {} rounds", (counter - lastConvergenceRound));
+                if (lastDivergedRound > lastConvergenceRound)
+                {
+                    logger.warn("****** converged after {} rounds", (convergedRound - lastConvergenceRound));
+                    messaging.metrics.recordConvergence(convergedRound - lastConvergenceRound);
+                }
+
+                long healed = messaging.partitions().lastHealedBefore(elapsed);
+                if (healed >= 0)
+                {
+                    logger.warn("****** converged {} ms after the last partition healed", elapsed - healed);
+                    messaging.metrics.recordHealToConvergence(elapsed - healed);
+                }
 
-                lastConvergenceRound = counter;
+                lastConvergenceRound = convergedRound;
+                churn.converged(convergedRound, messaging.metrics);
 
-                latch.countDown();
+                if (churn.isDone())
+                    latch.countDown();
+                else
+                    logger.debug("****** converged, but waiting on the churn scenario");
             }
             else
                 logger.debug("****** rounds since convergence = {} ", (counter - lastConvergenceRound));
-
-            // TODO: execute new behaviors: add/remove node (and replace barrier in simulators) and other actions
-            // bounce nodes
         }
 
-        boolean hasConvergedViaGossip()
+        /**
+         * Ask the verifier to confirm what the convergence tracker says, and collect any verdict it has come back with.
+         * The verifier runs in the background on the threaded schedulers, so the verdict can be for an earlier round;
+         * it only counts if the tracker hasn't seen the cluster diverge since.
+         *
+         * @return the round the cluster was verified to have converged in, or 0 if there's no (new) such round
+         */
+        int convergedRound()
         {
-            // hoping like hell there's a less miserable way to do this diff'ing...
-            Map<InetAddress, GossiperSimulator> gossipers = CustomMessagingService.instance().gossipers;
-            for (GossiperSimulator simulator : gossipers.values())
+            if (messaging.convergence.isConverged())
             {
-                List<GossipDigest> digests = new ArrayList<>(gossipers.size());
-                simulator.makeRandomGossipDigest(digests);
-                for (GossipDigest digest : digests)
-                {
-                    GossiperSimulator peer = gossipers.get(digest.getEndpoint());
-                    if (null == peer)
-                        return false;
-
-                }
+                // the tracker works off of hashes, so confirm with a full verification
+                lastFullInspection = counter;
+                verifier.request(counter, false, messaging.gossipers, messaging.convergence);
             }
-
-            return true;
-        }
-
-        boolean hasConvergedByInspection()
-        {
-            Map<InetAddress, GossiperSimulator> gossipers = CustomMessagingService.instance().gossipers;
-            for (GossiperSimulator simulator : gossipers.values())
+            else
             {
-                Collection<InetAddress> peerAddrs = new ArrayList<>(gossipers.keySet());
-
-                for (Map.Entry<InetAddress, EndpointState> peer : simulator.endpointStateMap.entrySet())
+                lastDivergedRound = counter;
+                // every once in a while, make sure the tracker hasn't drifted away from the actual state
+                if (counter - lastFullInspection >= FULL_INSPECTION_INTERVAL)
                 {
-                    InetAddress peerAddr = peer.getKey();
-                    //this case *really* shouldn't fail - would seem to be more of my error than anything else
-                    if (!peerAddrs.remove(peerAddr))
-                        return false;
-                    if (peerAddr.equals(simulator.broadcastAddr))
-                        continue;
-
-                    // simulator knows about peer, now let's compare states
-                    EndpointState localEndpointState = peer.getValue();
-                    EndpointState peerEndpointState = gossipers.get(peerAddr).getEndpointStateForEndpoint(peerAddr);
-
-                    // first compare the heartbeats
-                    //NOTE: the heartBeat.version is almost guaranteed to be different (non-convergent), especially in anything larger than a very small cluster,
-                    // as the target/source node updates it's heartbeat.version on every gossip round. thus, don't bother to compare them
-                    if (localEndpointState.getHeartBeatState().getGeneration() != peerEndpointState.getHeartBeatState().getGeneration())
-                    {
-                        logger.debug("hasConvergedByInspection: generations are different: local = {}, target = {}",
-                                localEndpointState.getHeartBeatState().getGeneration(), peerEndpointState.getHeartBeatState().getGeneration());
-                        return false;
-                    }
-
-                    // next, compare the app states
-                    Collection<ApplicationState> peerAppStates = new ArrayList<>(peerEndpointState.applicationState.keySet());
-                    for (Map.Entry<ApplicationState, VersionedValue> localAppStateEntry : localEndpointState.applicationState.entrySet())
-                    {
-                        ApplicationState appState = localAppStateEntry.getKey();
-                        if (!peerAppStates.remove(appState))
-                        {
-                            logger.debug("hasConvergedByInspection: unknown app state: peer {} does not have AppState {} that local does", new Object[]{peerAddr, appState, simulator.broadcastAddr});
-                            return false;
-                        }
-                        if (localAppStateEntry.getValue().compareTo(peerEndpointState.getApplicationState(appState)) != 0)
-                        {
-                            logger.debug("hasConvergedByInspection: divergent app state: AppState {} has local({}) version {} and peer({}) version {}",
-                                    new Object[]{appState, simulator.broadcastAddr, localAppStateEntry.getValue().value, peerAddr, peerEndpointState.getApplicationState(appState).value});
-                            return false;
-                        }
-                    }
-                    if (!peerAppStates.isEmpty())
-                    {
-                        logger.debug("hasConvergedByInspection: unknown app states: current node {} doesn't know about the following app states from {}: {}", new Object[]{simulator.broadcastAddr, peerAddr, peerAppStates});
-                        return false;
-                    }
+                    lastFullInspection = counter;
+                    verifier.request(counter, true, messaging.gossipers, messaging.convergence);
                 }
+            }
 
-                if (!peerAddrs.isEmpty())
-                {
-                    if (peerAddrs.size() < 8)
-                        logger.debug("hasConvergedByInspection: unknown nodes: current node {} doesn't know about the following nodes: {}", simulator.broadcastAddr, peerAddrs);
-                    else
-                        logger.debug("hasConvergedByInspection: unknown nodes: current node {} doesn't know about {} nodes (out of {} total)", new Object[]{simulator.broadcastAddr, peerAddrs.size(), gossipers.size()});
-                    return false;
-                }
+            ConvergenceVerifier.Verdict verdict = verifier.poll();
+            if (verdict == null)
+                return 0;
+            if (!verdict.converged)
+            {
+                if (!verdict.drifted)
+                    logger.warn("****** convergence tracker reported a false positive in round {}", verdict.round);
+                lastDivergedRound = Math.max(lastDivergedRound, verdict.round);
+                return 0;
+            }
+            if (verdict.drifted)
+            {
+                logger.warn("****** convergence tracker drifted in round {}, rebuilding", verdict.round);
+                messaging.convergence.rebuild(messaging.gossipers.values());
+                if (!messaging.convergence.isConverged())
+                    return 0;
+                // this round's divergence was the tracker's, not the cluster's
+                lastDivergedRound = counter - 1;
+                return counter;
             }
-            return true;
+            return verdict.round > lastDivergedRound ? verdict.round : 0;
         }
     }
 }
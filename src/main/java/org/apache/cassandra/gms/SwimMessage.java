@@ -0,0 +1,113 @@
+package org.apache.cassandra.gms;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.io.IVersionedSerializer;
+import org.apache.cassandra.io.util.DataOutputPlus;
+import org.apache.cassandra.net.CompactEndpointSerializationHelper;
+import org.apache.cassandra.net.MessagingService;
+
+/**
+ * The messages of {@link SwimSimulator}, all sent on a verb Cassandra leaves unused:
+ * <ul>
+ * <li>PING - a direct probe, answered with an ACK of the same sequence</li>
+ * <li>PING_REQ - asks the receiver to probe the target on the sender's behalf, and pass the target's ACK back</li>
+ * <li>ACK - the answer to a probe</li>
+ * <li>SYNC - the sender's whole membership, answered with a SYNC_ACK holding the receiver's</li>
+ * </ul>
+ * Every message but the syncs piggybacks the membership updates the sender is disseminating.
+ */
+class SwimMessage
+{
+    static final MessagingService.Verb VERB = MessagingService.Verb.UNUSED_2;
+    static final IVersionedSerializer<SwimMessage> serializer = new SwimMessageSerializer();
+
+    enum Kind { PING, PING_REQ, ACK, SYNC, SYNC_ACK }
+
+    /** a member's status, in order of precedence for the same incarnation */
+    enum Status { ALIVE, SUSPECT, DEAD }
+
+    final Kind kind;
+    final int seq;
+    /* the member to probe, for PING_REQ */
+    final InetAddress target;
+    final List<Update> updates;
+
+    SwimMessage(Kind kind, int seq, InetAddress target, List<Update> updates)
+    {
+        this.kind = kind;
+        this.seq = seq;
+        this.target = target;
+        this.updates = updates;
+    }
+
+    /**
+     * A member's status, at the incarnation in the heartbeat of the state: the generation, and a version the member
+     * bumps whenever it changes its application states or refutes a suspicion. The state always holds the member's
+     * application states as of that incarnation, so a node that hasn't heard of the member yet can take it as is.
+     */
+    static class Update
+    {
+        final InetAddress endpoint;
+        final Status status;
+        final EndpointState state;
+
+        Update(InetAddress endpoint, Status status, EndpointState state)
+        {
+            this.endpoint = endpoint;
+            this.status = status;
+            this.state = state;
+        }
+    }
+
+    private static class SwimMessageSerializer implements IVersionedSerializer<SwimMessage>
+    {
+        public void serialize(SwimMessage message, DataOutputPlus out, int version) throws IOException
+        {
+            out.writeByte(message.kind.ordinal());
+            out.writeInt(message.seq);
+            out.writeBoolean(message.target != null);
+            if (message.target != null)
+                CompactEndpointSerializationHelper.serialize(message.target, out);
+            out.writeInt(message.updates.size());
+            for (Update update : message.updates)
+            {
+                CompactEndpointSerializationHelper.serialize(update.endpoint, out);
+                out.writeByte(update.status.ordinal());
+                EndpointState.serializer.serialize(update.state, out, version);
+            }
+        }
+
+        public SwimMessage deserialize(DataInput in, int version) throws IOException
+        {
+            Kind kind = Kind.values()[in.readByte()];
+            int seq = in.readInt();
+            InetAddress target = in.readBoolean() ? CompactEndpointSerializationHelper.deserialize(in) : null;
+            int count = in.readInt();
+            List<Update> updates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                InetAddress endpoint = CompactEndpointSerializationHelper.deserialize(in);
+                Status status = Status.values()[in.readByte()];
+                updates.add(new Update(endpoint, status, EndpointState.serializer.deserialize(in, version)));
+            }
+            return new SwimMessage(kind, seq, target, updates);
+        }
+
+        public long serializedSize(SwimMessage message, int version)
+        {
+            long size = 1 + TypeSizes.NATIVE.sizeof(message.seq) + TypeSizes.NATIVE.sizeof(true);
+            if (message.target != null)
+                size += CompactEndpointSerializationHelper.serializedSize(message.target);
+            size += TypeSizes.NATIVE.sizeof(message.updates.size());
+            for (Update update : message.updates)
+                size += CompactEndpointSerializationHelper.serializedSize(update.endpoint) + 1 + EndpointState.serializer.serializedSize(update.state, version);
+            return size;
+        }
+    }
+}
@@ -0,0 +1,614 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.net.MessageIn;
+import org.apache.cassandra.net.MessageOut;
+
+/**
+ * A SWIM node (Das, Gupta and Motivala), with the suspicion sub-protocol and round-robin probing. Each round a node
+ * pings the next member in a shuffled order; if there's no ACK within the ping timeout it asks a few other members to
+ * ping the target for it, and if there's still no ACK by the next round the target becomes a suspect. A suspect that
+ * doesn't refute the suspicion (by announcing a newer incarnation) is declared dead once its suspicion times out.
+ * Membership updates (alive, suspect, dead) are piggybacked on the pings and ACKs, each a few times log(N), so a
+ * node's load stays the same however large the cluster grows.
+ *
+ * There is no full-state gossip round: application states travel with a member's alive updates, and a member bumps
+ * its incarnation (the heartbeat version) whenever it changes one, so the newer state overrides the old everywhere.
+ * A node joins by syncing its whole membership with a seed, and syncs with a random member every
+ * {@link #SYNC_ROUNDS} rounds after that, to catch up on anything the piggybacking missed.
+ *
+ * Every node that learns a member is dead, whether it timed out the suspicion or heard of it, counts it as a
+ * conviction, so the failure detector stats compare with Cassandra's (where each node convicts on its own).
+ */
+public class SwimSimulator implements SimulatedNode
+{
+    private static final Logger logger = LoggerFactory.getLogger(SwimSimulator.class);
+
+    /** members asked to probe a target that didn't answer a direct ping */
+    static final int INDIRECT_PROBES = Integer.getInteger("gossipocolypse.swim.indirect", 3);
+    /** membership updates piggybacked on each message */
+    static final int PIGGYBACK = Integer.getInteger("gossipocolypse.swim.piggyback", 8);
+    /** an update is piggybacked this many times log10(cluster size) */
+    static final int RETRANSMIT_MULT = Integer.getInteger("gossipocolypse.swim.retransmit", 4);
+    /** a suspect is declared dead after this many times log10(cluster size) rounds */
+    static final int SUSPICION_MULT = Integer.getInteger("gossipocolypse.swim.suspicion", 4);
+    /** rounds between syncs of the whole membership with a random member; 0 for none after joining */
+    static final int SYNC_ROUNDS = Integer.getInteger("gossipocolypse.swim.sync.rounds", 10);
+
+    private final InetAddress broadcastAddr;
+    private final List<InetAddress> seeds = new ArrayList<>();
+    private final CustomMessagingService messaging;
+    private final SimulationScheduler scheduler;
+    private final Random random;
+    /* how long to wait for a direct ACK before probing indirectly */
+    private final long pingTimeoutMicros;
+
+    /* guards everything below; messages are only sent once it's released */
+    private final Object stateLock = new Object();
+    private final Map<InetAddress, EndpointState> endpointStateMap = new IndexedEndpointMap<>();
+    /* members that aren't dead, but for this node */
+    private final MembershipView liveMembers = new MembershipView();
+    /* suspects, and the round each is to be declared dead in */
+    private final Map<InetAddress, Integer> suspects = new LinkedHashMap<>();
+    /* the updates being disseminated, one per member, least piggybacked first */
+    private final Map<InetAddress, Broadcast> broadcasts = new HashMap<>();
+    private final TreeSet<Broadcast> broadcastQueue = new TreeSet<>();
+    private final List<InetAddress> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    /* this round's probes that haven't been acked, by sequence */
+    private final Map<Integer, InetAddress> probes = new HashMap<>();
+    /* pings sent for another member's PING_REQ, by sequence */
+    private final Map<Integer, Relay> relays = new HashMap<>();
+    private int nextSeq;
+    private long nextBroadcast;
+    private int round;
+    private boolean joined;
+    private int fanout = 1;
+
+    private volatile boolean enabled;
+    private volatile ConvergenceTracker convergenceTracker;
+    private volatile TraceRecorder.Buffer trace;
+    /* a seqlock over the endpoint state map for readers off the protocol path, only ever written under the stateLock */
+    private volatile long viewSequence;
+    private volatile long viewChanges;
+
+    public SwimSimulator(InetAddress broadcastAddr, List<InetAddress> incomingSeeds, CustomMessagingService messaging)
+    {
+        this.broadcastAddr = broadcastAddr;
+        this.messaging = messaging;
+        this.scheduler = messaging.scheduler();
+        random = messaging.newRandom();
+        pingTimeoutMicros = Long.getLong("gossipocolypse.swim.ping.timeout", scheduler.intervalMillis() / 2) * 1000;
+        for (InetAddress seed : incomingSeeds)
+        {
+            if (!seed.equals(broadcastAddr))
+                seeds.add(seed);
+        }
+    }
+
+    public InetAddress address()
+    {
+        return broadcastAddr;
+    }
+
+    public void start(int generation, Map<ApplicationState, VersionedValue> localStates)
+    {
+        synchronized (stateLock)
+        {
+            MaxVersionEndpointState local = new MaxVersionEndpointState(new HeartBeatState(generation));
+            long before = beginStateChange(broadcastAddr);
+            endpointStateMap.put(broadcastAddr, local);
+            for (Map.Entry<ApplicationState, VersionedValue> entry : localStates.entrySet())
+            {
+                local.addApplicationState(entry.getKey(), entry.getValue());
+                originated(local, entry.getValue());
+            }
+            endStateChange(broadcastAddr, before);
+            disseminate(broadcastAddr, SwimMessage.Status.ALIVE, local);
+            joined = seeds.isEmpty();
+        }
+        enabled = true;
+        scheduler.register(this);
+    }
+
+    public void terminate()
+    {
+        enabled = false;
+        scheduler.unregister(this);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public boolean isInShadowRound()
+    {
+        return false;
+    }
+
+    /**
+     * Probes per round.
+     */
+    public void setFanout(int fanout)
+    {
+        if (fanout < 1)
+            throw new IllegalArgumentException("fanout must be at least 1, got " + fanout);
+        this.fanout = fanout;
+    }
+
+    public void tick()
+    {
+        if (!enabled)
+            return;
+
+        List<Outgoing> out = new ArrayList<>();
+        final List<Integer> sent = new ArrayList<>(fanout);
+        synchronized (stateLock)
+        {
+            round++;
+            // last round's probes that no-one acked, directly or not
+            for (InetAddress target : probes.values())
+                suspect(target);
+            probes.clear();
+            relays.clear();
+            expireSuspects();
+
+            if (!joined)
+            {
+                InetAddress seed = seeds.get(random.nextInt(seeds.size()));
+                out.add(new Outgoing(sync(SwimMessage.Kind.SYNC), seed));
+            }
+            else if (SYNC_ROUNDS > 0 && round % SYNC_ROUNDS == 0)
+            {
+                InetAddress peer = liveMembers.random(random);
+                if (peer != null)
+                    out.add(new Outgoing(sync(SwimMessage.Kind.SYNC), peer));
+            }
+
+            for (int i = 0; i < fanout; i++)
+            {
+                InetAddress target = nextProbeTarget();
+                if (target == null)
+                    break;
+                int seq = nextSeq++;
+                probes.put(seq, target);
+                sent.add(seq);
+                out.add(new Outgoing(message(SwimMessage.Kind.PING, seq, null), target));
+            }
+        }
+        send(out);
+
+        if (!sent.isEmpty())
+        {
+            scheduler.deliver(new Runnable()
+            {
+                public void run()
+                {
+                    probeIndirectly(sent);
+                }
+            }, pingTimeoutMicros);
+        }
+    }
+
+    /* the next member in the (shuffled) round-robin, reshuffled every time through */
+    private InetAddress nextProbeTarget()
+    {
+        if (probeIndex >= probeOrder.size())
+        {
+            probeOrder.clear();
+            probeOrder.addAll(liveMembers);
+            Collections.shuffle(probeOrder, random);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size())
+        {
+            InetAddress candidate = probeOrder.get(probeIndex++);
+            if (liveMembers.contains(candidate))
+                return candidate;
+        }
+        return null;
+    }
+
+    private void probeIndirectly(List<Integer> seqs)
+    {
+        if (!enabled)
+            return;
+
+        List<Outgoing> out = new ArrayList<>();
+        synchronized (stateLock)
+        {
+            for (Integer seq : seqs)
+            {
+                InetAddress target = probes.get(seq);
+                if (target == null)
+                    continue;
+                List<InetAddress> relayedBy = new ArrayList<>(INDIRECT_PROBES);
+                for (int attempts = INDIRECT_PROBES * 2; attempts > 0 && relayedBy.size() < INDIRECT_PROBES; attempts--)
+                {
+                    InetAddress relay = liveMembers.random(random);
+                    if (relay == null)
+                        break;
+                    if (!relay.equals(target) && !relayedBy.contains(relay))
+                        relayedBy.add(relay);
+                }
+                for (InetAddress relay : relayedBy)
+                    out.add(new Outgoing(message(SwimMessage.Kind.PING_REQ, seq, target), relay));
+            }
+        }
+        send(out);
+    }
+
+    public void receive(MessageIn<?> message, SimulatedNode sender)
+    {
+        if (message.verb != SwimMessage.VERB || !enabled)
+            return;
+
+        SwimMessage swim = (SwimMessage) message.payload;
+        InetAddress from = message.from;
+        List<Outgoing> out = new ArrayList<>();
+        synchronized (stateLock)
+        {
+            for (SwimMessage.Update update : swim.updates)
+                apply(update);
+
+            switch (swim.kind)
+            {
+                case PING:
+                    out.add(new Outgoing(message(SwimMessage.Kind.ACK, swim.seq, null), from));
+                    break;
+                case PING_REQ:
+                    int seq = nextSeq++;
+                    relays.put(seq, new Relay(from, swim.seq));
+                    out.add(new Outgoing(message(SwimMessage.Kind.PING, seq, null), swim.target));
+                    break;
+                case ACK:
+                    if (probes.remove(swim.seq) != null)
+                        break;
+                    Relay relay = relays.remove(swim.seq);
+                    if (relay != null)
+                        out.add(new Outgoing(message(SwimMessage.Kind.ACK, relay.seq, null), relay.requester));
+                    break;
+                case SYNC:
+                    out.add(new Outgoing(sync(SwimMessage.Kind.SYNC_ACK), from));
+                    break;
+                case SYNC_ACK:
+                    joined = true;
+                    break;
+            }
+        }
+        send(out);
+    }
+
+    /**
+     * Take an update if it's for a newer incarnation of the member, or for the same one with a status that takes
+     * precedence, and pass it on.
+     */
+    private void apply(SwimMessage.Update update)
+    {
+        InetAddress ep = update.endpoint;
+        EndpointState local = endpointStateMap.get(ep);
+        if (ep.equals(broadcastAddr))
+        {
+            if (update.status != SwimMessage.Status.ALIVE)
+                refute(update.state.getHeartBeatState());
+            return;
+        }
+
+        int newer = local == null ? 1 : compare(update.state.getHeartBeatState(), local.getHeartBeatState());
+        if (newer < 0 || (newer == 0 && update.status.compareTo(statusOf(ep)) <= 0))
+            return;
+
+        boolean wasAlive = local != null && local.isAlive();
+        long before = beginStateChange(ep);
+        EndpointState current = local;
+        if (newer > 0)
+        {
+            MaxVersionEndpointState copy = MaxVersionEndpointState.copyOf(update.state);
+            copy.updateTimestamp(scheduler.nanoTime());
+            endpointStateMap.put(ep, copy);
+            int generation = copy.getHeartBeatState().getGeneration();
+            int fromVersion = local != null && local.getHeartBeatState().getGeneration() == generation
+                              ? ((MaxVersionEndpointState) local).getMaxVersion()
+                              : Integer.MIN_VALUE;
+            trace(TraceRecorder.Event.APPLY, null, ep, copy.getMaxVersion());
+            messaging.dissemination.seen(ep, generation, fromVersion, copy.getMaxVersion());
+            if (local == null)
+                probeOrder.add(probeIndex + random.nextInt(probeOrder.size() - probeIndex + 1), ep);
+            current = copy;
+        }
+        setStatus(ep, current, wasAlive, update.status);
+        endStateChange(ep, before);
+        disseminate(ep, update.status, current);
+    }
+
+    /* someone suspects (or has declared dead) this node's current incarnation; announce a newer one */
+    private void refute(HeartBeatState suspected)
+    {
+        MaxVersionEndpointState local = (MaxVersionEndpointState) endpointStateMap.get(broadcastAddr);
+        if (compare(suspected, local.getHeartBeatState()) < 0)
+            return;
+        if (logger.isTraceEnabled())
+            logger.trace("refuting suspicion of incarnation {}", suspected.getHeartBeatVersion());
+        long before = beginStateChange(broadcastAddr);
+        local.updateHeartBeat(messaging.values.nextVersion());
+        endStateChange(broadcastAddr, before);
+        disseminate(broadcastAddr, SwimMessage.Status.ALIVE, local);
+    }
+
+    private void suspect(InetAddress ep)
+    {
+        EndpointState epState = endpointStateMap.get(ep);
+        if (epState == null || !epState.isAlive() || suspects.containsKey(ep))
+            return;
+        long before = beginStateChange(ep);
+        setStatus(ep, epState, true, SwimMessage.Status.SUSPECT);
+        endStateChange(ep, before);
+        disseminate(ep, SwimMessage.Status.SUSPECT, epState);
+    }
+
+    private void expireSuspects()
+    {
+        List<InetAddress> expired = new ArrayList<>();
+        for (Map.Entry<InetAddress, Integer> entry : suspects.entrySet())
+        {
+            if (entry.getValue() <= round)
+                expired.add(entry.getKey());
+        }
+        for (InetAddress ep : expired)
+        {
+            EndpointState epState = endpointStateMap.get(ep);
+            long before = beginStateChange(ep);
+            setStatus(ep, epState, epState.isAlive(), SwimMessage.Status.DEAD);
+            endStateChange(ep, before);
+            disseminate(ep, SwimMessage.Status.DEAD, epState);
+        }
+    }
+
+    private void setStatus(InetAddress ep, EndpointState epState, boolean wasAlive, SwimMessage.Status status)
+    {
+        switch (status)
+        {
+            case ALIVE:
+                suspects.remove(ep);
+                break;
+            case SUSPECT:
+                if (!suspects.containsKey(ep))
+                    suspects.put(ep, round + suspicionRounds());
+                break;
+            case DEAD:
+                suspects.remove(ep);
+                liveMembers.remove(ep);
+                epState.markDead();
+                if (wasAlive)
+                {
+                    trace(TraceRecorder.Event.MARK_DEAD, null, ep, 0);
+                    messaging.recordConviction(ep);
+                }
+                return;
+        }
+        liveMembers.add(ep);
+        epState.markAlive();
+        if (!wasAlive)
+            trace(TraceRecorder.Event.MARK_ALIVE, null, ep, 0);
+    }
+
+    private SwimMessage.Status statusOf(InetAddress ep)
+    {
+        if (!endpointStateMap.get(ep).isAlive())
+            return SwimMessage.Status.DEAD;
+        return suspects.containsKey(ep) ? SwimMessage.Status.SUSPECT : SwimMessage.Status.ALIVE;
+    }
+
+    /* orders incarnations: the generation, then the version */
+    private static int compare(HeartBeatState a, HeartBeatState b)
+    {
+        if (a.getGeneration() != b.getGeneration())
+            return a.getGeneration() < b.getGeneration() ? -1 : 1;
+        return Integer.compare(a.getHeartBeatVersion(), b.getHeartBeatVersion());
+    }
+
+    private int suspicionRounds()
+    {
+        return (int) Math.ceil(SUSPICION_MULT * Math.max(1, Math.log10(liveMembers.size() + 1)));
+    }
+
+    /* queue the update to be piggybacked, replacing any older one for the member */
+    private void disseminate(InetAddress ep, SwimMessage.Status status, EndpointState epState)
+    {
+        Broadcast broadcast = new Broadcast(new SwimMessage.Update(ep, status, ((MaxVersionEndpointState) epState).frozen().toDelta()), nextBroadcast++);
+        Broadcast previous = broadcasts.put(ep, broadcast);
+        if (previous != null)
+            broadcastQueue.remove(previous);
+        broadcastQueue.add(broadcast);
+    }
+
+    private SwimMessage message(SwimMessage.Kind kind, int seq, InetAddress target)
+    {
+        if (broadcastQueue.isEmpty())
+            return new SwimMessage(kind, seq, target, Collections.<SwimMessage.Update>emptyList());
+
+        int retransmits = RETRANSMIT_MULT * (int) Math.ceil(Math.log10(liveMembers.size() + 2));
+        List<SwimMessage.Update> updates = new ArrayList<>(PIGGYBACK);
+        List<Broadcast> piggybacked = new ArrayList<>(PIGGYBACK);
+        while (piggybacked.size() < PIGGYBACK && !broadcastQueue.isEmpty())
+            piggybacked.add(broadcastQueue.pollFirst());
+        for (Broadcast broadcast : piggybacked)
+        {
+            updates.add(broadcast.update);
+            if (++broadcast.transmits < retransmits)
+                broadcastQueue.add(broadcast);
+            else
+                broadcasts.remove(broadcast.update.endpoint);
+        }
+        return new SwimMessage(kind, seq, target, updates);
+    }
+
+    /* the whole membership, this node included */
+    private SwimMessage sync(SwimMessage.Kind kind)
+    {
+        List<SwimMessage.Update> updates = new ArrayList<>(endpointStateMap.size());
+        for (Map.Entry<InetAddress, EndpointState> entry : endpointStateMap.entrySet())
+        {
+            InetAddress ep = entry.getKey();
+            SwimMessage.Status status = ep.equals(broadcastAddr) ? SwimMessage.Status.ALIVE : statusOf(ep);
+            updates.add(new SwimMessage.Update(ep, status, ((MaxVersionEndpointState) entry.getValue()).frozen().toDelta()));
+        }
+        return new SwimMessage(kind, 0, null, updates);
+    }
+
+    /* outside of the stateLock, as a threaded scheduler may deliver on this thread */
+    private void send(List<Outgoing> out)
+    {
+        for (Outgoing outgoing : out)
+        {
+            messaging.sendOneWay(new MessageOut<SwimMessage>(broadcastAddr,
+                                                             SwimMessage.VERB,
+                                                             outgoing.message,
+                                                             SwimMessage.serializer,
+                                                             CustomMessagingService.parameters),
+                                 outgoing.to, this);
+        }
+    }
+
+    public void addLocalApplicationState(ApplicationState state, VersionedValue value)
+    {
+        value = messaging.values.cloneWithHigherVersion(value);
+        synchronized (stateLock)
+        {
+            MaxVersionEndpointState local = (MaxVersionEndpointState) endpointStateMap.get(broadcastAddr);
+            long before = beginStateChange(broadcastAddr);
+            local.addApplicationState(state, value);
+            // a new incarnation, so the new state overrides the old wherever it gets to
+            local.updateHeartBeat(messaging.values.nextVersion());
+            endStateChange(broadcastAddr, before);
+            originated(local, value);
+            disseminate(broadcastAddr, SwimMessage.Status.ALIVE, local);
+        }
+    }
+
+    public EndpointState getEndpointStateForEndpoint(InetAddress ep)
+    {
+        return endpointStateMap.get(ep);
+    }
+
+    public Map<InetAddress, EndpointState> endpointStates()
+    {
+        return Collections.unmodifiableMap(endpointStateMap);
+    }
+
+    public void setConvergenceTracker(ConvergenceTracker tracker)
+    {
+        convergenceTracker = tracker;
+    }
+
+    public long viewSequence()
+    {
+        return viewSequence;
+    }
+
+    public long viewChanges()
+    {
+        return viewChanges;
+    }
+
+    public void setTrace(TraceRecorder.Buffer trace)
+    {
+        this.trace = trace;
+    }
+
+    public void trace(TraceRecorder.Event event, InetAddress peer, InetAddress subject, int value)
+    {
+        TraceRecorder.Buffer trace = this.trace;
+        if (trace != null)
+            trace.record(event, peer, subject, value);
+    }
+
+    /* a new value for this node's state, made here */
+    private void originated(EndpointState local, VersionedValue value)
+    {
+        messaging.dissemination.originate(broadcastAddr, local.getHeartBeatState().getGeneration(), value.version);
+    }
+
+    /* see GossiperSimulator: open a change to the endpoint's state, under the stateLock */
+    private long beginStateChange(InetAddress ep)
+    {
+        viewSequence++;
+        return convergenceTracker == null ? 0 : ConvergenceTracker.fingerprint(ep, endpointStateMap.get(ep));
+    }
+
+    private void endStateChange(InetAddress ep, long before)
+    {
+        ConvergenceTracker tracker = convergenceTracker;
+        if (tracker != null)
+        {
+            long after = ConvergenceTracker.fingerprint(ep, endpointStateMap.get(ep));
+            tracker.update(broadcastAddr, ep, before, after);
+            if (after != before)
+                viewChanges++;
+        }
+        viewSequence++;
+    }
+
+    public String toString()
+    {
+        return "SwimSimulator(" + broadcastAddr + ")";
+    }
+
+    private static class Broadcast implements Comparable<Broadcast>
+    {
+        final SwimMessage.Update update;
+        final long order;
+        int transmits;
+
+        Broadcast(SwimMessage.Update update, long order)
+        {
+            this.update = update;
+            this.order = order;
+        }
+
+        /* the least transmitted first, then the newest */
+        public int compareTo(Broadcast other)
+        {
+            if (transmits != other.transmits)
+                return transmits < other.transmits ? -1 : 1;
+            return Long.compare(other.order, order);
+        }
+    }
+
+    private static class Relay
+    {
+        final InetAddress requester;
+        final int seq;
+
+        Relay(InetAddress requester, int seq)
+        {
+            this.requester = requester;
+            this.seq = seq;
+        }
+    }
+
+    private static class Outgoing
+    {
+        final SwimMessage message;
+        final InetAddress to;
+
+        Outgoing(SwimMessage message, InetAddress to)
+        {
+            this.message = message;
+            this.to = to;
+        }
+    }
+}
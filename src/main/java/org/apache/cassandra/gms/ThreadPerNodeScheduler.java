@@ -0,0 +1,119 @@
+package org.apache.cassandra.gms;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+/**
+ * Every node gets its own single-threaded executor, and all nodes wait on a shared phaser at the
+ * start of each round (the round action is executed by the last thread to arrive). Message delivery
+ * happens inline on the sender's thread, or on a shared timer pool if the message is delayed. Uses the wall clock.
+ */
+class ThreadPerNodeScheduler implements SimulationScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(ThreadPerNodeScheduler.class);
+
+    private final Phaser roundBarrier;
+    private final long intervalMillis;
+    private final Map<SimulatedNode, ScheduledThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+    private final DelayedDeliveries delayedDeliveries = new DelayedDeliveries();
+
+    ThreadPerNodeScheduler(final Runnable roundAction, long intervalMillis)
+    {
+        this.intervalMillis = intervalMillis;
+        roundBarrier = new Phaser()
+        {
+            protected boolean onAdvance(int phase, int registeredParties)
+            {
+                try
+                {
+                    roundAction.run();
+                }
+                catch (Exception e)
+                {
+                    logger.error("round action failed", e);
+                }
+                return false;
+            }
+        };
+    }
+
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    public long intervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    public void register(final SimulatedNode node)
+    {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("gossiper_" + node.address().toString()));
+        executors.put(node, executor);
+        // join the phaser from the node's own thread: nodes may come and go from within the round action, and
+        // registering there would wait on the very round action that is doing the registering
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                roundBarrier.register();
+                executor.scheduleWithFixedDelay(new Runnable()
+                {
+                    public void run()
+                    {
+                        roundBarrier.arriveAndAwaitAdvance();
+                        node.tick();
+                    }
+                }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    public void unregister(SimulatedNode node)
+    {
+        final ScheduledThreadPoolExecutor executor = executors.remove(node);
+        if (executor == null)
+            return;
+        // likewise, leave from the node's thread, once it's done with the current round
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                roundBarrier.arriveAndDeregister();
+                executor.shutdown();
+            }
+        });
+    }
+
+    public void deliver(Runnable delivery, long delayMicros)
+    {
+        delayedDeliveries.deliver(delivery, delayMicros);
+    }
+
+    public boolean awaitCompletion(CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return latch.await(timeout, unit);
+    }
+
+    public void shutdown()
+    {
+        for (SimulatedNode node : executors.keySet())
+            unregister(node);
+        delayedDeliveries.shutdown();
+
+        // wait a short while for things to die
+        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,139 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places nodes into datacenters and racks, and gives each class of link (within a rack, between racks of a
+ * datacenter, between datacenters) its own latency and bandwidth. Nodes are dealt out round-robin: node i goes to
+ * datacenter i % dcs, and then round-robin over that datacenter's racks, so the first few nodes (the seeds) are spread
+ * over all datacenters. Addresses are 10.&lt;dc&gt;.&lt;index in dc, high byte&gt;.&lt;index in dc, low byte&gt;.
+ */
+public class Topology implements LinkModel
+{
+    public enum LinkClass
+    {
+        SAME_RACK, SAME_DC, CROSS_DC
+    }
+
+    public static class Location
+    {
+        public final String datacenter;
+        public final String rack;
+
+        Location(String datacenter, String rack)
+        {
+            this.datacenter = datacenter;
+            this.rack = rack;
+        }
+
+        public String toString()
+        {
+            return datacenter + ":" + rack;
+        }
+    }
+
+    private final List<String> datacenters;
+    private final int[] racks;
+    private final Map<LinkClass, Link> links;
+    private final Map<InetAddress, Location> locations = new IndexedEndpointMap<>();
+
+    /**
+     * @param racksPerDatacenter the number of racks in each datacenter, by datacenter name, in order
+     * @param links the behaviour of each class of link
+     */
+    public Topology(LinkedHashMap<String, Integer> racksPerDatacenter, Map<LinkClass, Link> links)
+    {
+        if (racksPerDatacenter.isEmpty())
+            throw new IllegalArgumentException("need at least one datacenter");
+        datacenters = new ArrayList<>(racksPerDatacenter.keySet());
+        racks = new int[datacenters.size()];
+        for (int i = 0; i < racks.length; i++)
+            racks[i] = racksPerDatacenter.get(datacenters.get(i));
+        for (LinkClass linkClass : LinkClass.values())
+        {
+            if (!links.containsKey(linkClass))
+                throw new IllegalArgumentException("no link defined for " + linkClass);
+        }
+        this.links = new EnumMap<>(links);
+    }
+
+    /**
+     * Parse a topology spec of the form {@code <dc>:<racks>,<dc>:<racks>,...}.
+     */
+    public static Topology parse(String spec, Map<LinkClass, Link> links)
+    {
+        LinkedHashMap<String, Integer> racksPerDatacenter = new LinkedHashMap<>();
+        for (String dc : spec.split(","))
+        {
+            String[] parts = dc.trim().split(":");
+            racksPerDatacenter.put(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+        return new Topology(racksPerDatacenter, links);
+    }
+
+    /**
+     * Place the i'th node of the simulation, and return its address.
+     */
+    public synchronized InetAddress place(int i)
+    {
+        int dc = i % datacenters.size();
+        int indexInDc = i / datacenters.size();
+        if (indexInDc > 0xffff)
+            throw new IllegalArgumentException("too many nodes in datacenter " + datacenters.get(dc));
+        InetAddress address;
+        try
+        {
+            address = InetAddress.getByAddress(new byte[]{ 10, (byte) dc, (byte) (indexInDc >> 8), (byte) indexInDc });
+        }
+        catch (UnknownHostException e)
+        {
+            throw new AssertionError(e);
+        }
+        if (!locations.containsKey(address))
+            locations.put(address, new Location(datacenters.get(dc), "rack" + (indexInDc % racks[dc] + 1)));
+        return address;
+    }
+
+    public Location location(InetAddress endpoint)
+    {
+        return locations.get(endpoint);
+    }
+
+    public boolean hasDatacenter(String datacenter)
+    {
+        return datacenters.contains(datacenter);
+    }
+
+    public LinkClass linkClass(InetAddress from, InetAddress to)
+    {
+        Location a = locations.get(from);
+        Location b = locations.get(to);
+        if (a == null || b == null || !a.datacenter.equals(b.datacenter))
+            return LinkClass.CROSS_DC;
+        return a.rack.equals(b.rack) ? LinkClass.SAME_RACK : LinkClass.SAME_DC;
+    }
+
+    public Link link(InetAddress from, InetAddress to)
+    {
+        return links.get(linkClass(from, to));
+    }
+
+    public Link link(LinkClass linkClass)
+    {
+        return links.get(linkClass);
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < datacenters.size(); i++)
+            sb.append(datacenters.get(i)).append('(').append(racks[i]).append(" racks) ");
+        return sb.append(links).toString();
+    }
+}
@@ -0,0 +1,258 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reads a trace written by {@link TraceRecorder} and turns it into per-round timelines, as CSV:
+ * <ul>
+ * <li>with no endpoint, the events of each round, and how the states first applied in each round went on to spread:
+ * how many were picked up, and the average and slowest number of rounds until the last node applied them</li>
+ * <li>with an endpoint, how far each version of its state had spread by the end of every round, and how many nodes
+ * marked it up and down</li>
+ * </ul>
+ * Run as {@code TraceReader <trace file> [endpoint]}.
+ */
+public class TraceReader
+{
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long intervalMillis;
+    private final int records;
+    private final InetAddress[] addresses;
+
+    public TraceReader(File file) throws IOException
+    {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buffer.getLong(0) != TraceRecorder.MAGIC)
+            throw new IOException(file + " is not a trace");
+        int version = buffer.getInt(8);
+        if (version != TraceRecorder.FORMAT_VERSION)
+            throw new IOException("unsupported trace format version " + version + " in " + file);
+        if (buffer.getInt(12) != TraceRecorder.RECORD_SIZE)
+            throw new IOException("unexpected record size " + buffer.getInt(12) + " in " + file);
+        intervalMillis = buffer.getLong(16);
+        long trailerOffset = buffer.getLong(TraceRecorder.TRAILER_OFFSET_POSITION);
+        if (trailerOffset == 0)
+            throw new IOException(file + " was not closed, so has no endpoint table");
+        records = (int) ((trailerOffset - TraceRecorder.HEADER_SIZE) / TraceRecorder.RECORD_SIZE);
+
+        buffer.position((int) trailerOffset);
+        addresses = new InetAddress[buffer.getInt()];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            byte[] address = new byte[buffer.get()];
+            buffer.get(address);
+            addresses[i] = InetAddress.getByAddress(address);
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("usage: TraceReader <trace file> [endpoint]");
+            System.exit(1);
+        }
+        TraceReader reader = new TraceReader(new File(args[0]));
+        if (args.length > 1)
+            reader.writeEndpointTimeline(InetAddress.getByName(args[1]), System.out);
+        else
+            reader.writeRoundTimeline(System.out);
+    }
+
+    int records()
+    {
+        return records;
+    }
+
+    long intervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    private int offset(int record)
+    {
+        return TraceRecorder.HEADER_SIZE + record * TraceRecorder.RECORD_SIZE;
+    }
+
+    long nanos(int record)
+    {
+        return buffer.getLong(offset(record));
+    }
+
+    TraceRecorder.Event event(int record)
+    {
+        return TraceRecorder.Event.fromCode(buffer.getInt(offset(record) + 8));
+    }
+
+    int round(int record)
+    {
+        return buffer.getInt(offset(record) + 12);
+    }
+
+    int node(int record)
+    {
+        return buffer.getInt(offset(record) + 16);
+    }
+
+    int peer(int record)
+    {
+        return buffer.getInt(offset(record) + 20);
+    }
+
+    int subject(int record)
+    {
+        return buffer.getInt(offset(record) + 24);
+    }
+
+    int value(int record)
+    {
+        return buffer.getInt(offset(record) + 28);
+    }
+
+    InetAddress address(int id)
+    {
+        return id < 0 ? null : addresses[id];
+    }
+
+    int idOf(InetAddress endpoint)
+    {
+        for (int i = 0; i < addresses.length; i++)
+        {
+            if (addresses[i].equals(endpoint))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Event counts per round, and the spread of the states first applied in each round.
+     */
+    void writeRoundTimeline(PrintStream out)
+    {
+        int lastRound = 0;
+        for (int i = 0; i < records; i++)
+            lastRound = Math.max(lastRound, round(i));
+        long[][] counts = new long[lastRound + 1][TraceRecorder.Event.values().length];
+
+        // first and last round each state (an endpoint at a version) was applied, keyed by subject << 32 | version
+        Map<Long, int[]> spread = new HashMap<>();
+        for (int i = 0; i < records; i++)
+        {
+            TraceRecorder.Event event = event(i);
+            int round = round(i);
+            counts[round][event.ordinal()]++;
+            if (event != TraceRecorder.Event.APPLY)
+                continue;
+
+            long state = ((long) subject(i) << 32) | (value(i) & 0xffffffffL);
+            int[] rounds = spread.get(state);
+            if (rounds == null)
+                spread.put(state, new int[]{ round, round, 1 });
+            else
+            {
+                rounds[0] = Math.min(rounds[0], round);
+                rounds[1] = Math.max(rounds[1], round);
+                rounds[2]++;
+            }
+        }
+
+        long[] states = new long[lastRound + 1];
+        long[] totalRounds = new long[lastRound + 1];
+        int[] maxRounds = new int[lastRound + 1];
+        for (int[] rounds : spread.values())
+        {
+            int first = rounds[0];
+            int took = rounds[1] - first;
+            states[first]++;
+            totalRounds[first] += took;
+            maxRounds[first] = Math.max(maxRounds[first], took);
+        }
+
+        out.println("round,send,receive,apply,mark_alive,mark_dead,new_states,avg_rounds_to_spread,max_rounds_to_spread");
+        for (int round = 0; round <= lastRound; round++)
+        {
+            long[] count = counts[round];
+            out.printf("%d,%d,%d,%d,%d,%d,%d,%.2f,%d%n", round, count[0], count[1], count[2], count[3], count[4], states[round],
+                       states[round] == 0 ? 0.0 : (double) totalRounds[round] / states[round], maxRounds[round]);
+        }
+    }
+
+    /**
+     * For every version of the endpoint's state, the number of nodes that had applied it (or a later version) by
+     * the end of each round, and the nodes that marked it up or down in the round.
+     */
+    void writeEndpointTimeline(InetAddress endpoint, PrintStream out)
+    {
+        int subject = idOf(endpoint);
+        if (subject < 0)
+            throw new IllegalArgumentException(endpoint + " does not appear in " + file);
+
+        // the round each node first applied each version
+        TreeMap<Integer, Map<Integer, Integer>> applied = new TreeMap<>();
+        SortedMap<Integer, int[]> liveness = new TreeMap<>();
+        int lastRound = 0;
+        for (int i = 0; i < records; i++)
+        {
+            if (subject(i) != subject)
+                continue;
+            int round = round(i);
+            lastRound = Math.max(lastRound, round);
+            switch (event(i))
+            {
+                case APPLY:
+                    Map<Integer, Integer> nodes = applied.get(value(i));
+                    if (nodes == null)
+                        applied.put(value(i), nodes = new HashMap<>());
+                    if (!nodes.containsKey(node(i)))
+                        nodes.put(node(i), round);
+                    break;
+                case MARK_ALIVE:
+                case MARK_DEAD:
+                    int[] marks = liveness.get(round);
+                    if (marks == null)
+                        liveness.put(round, marks = new int[2]);
+                    marks[event(i) == TraceRecorder.Event.MARK_ALIVE ? 0 : 1]++;
+                    break;
+            }
+        }
+
+        out.println("round,version,nodes_reached,marked_alive,marked_dead");
+        for (int round = 0; round <= lastRound; round++)
+        {
+            int[] marks = liveness.get(round);
+            boolean wrote = false;
+            for (Map.Entry<Integer, Map<Integer, Integer>> entry : applied.entrySet())
+            {
+                // a node that applied a later version has this one too
+                Set<Integer> reached = new HashSet<>();
+                for (Map<Integer, Integer> nodes : applied.tailMap(entry.getKey()).values())
+                {
+                    for (Map.Entry<Integer, Integer> node : nodes.entrySet())
+                    {
+                        if (node.getValue() <= round)
+                            reached.add(node.getKey());
+                    }
+                }
+                if (reached.isEmpty())
+                    continue;
+                out.printf("%d,%d,%d,%d,%d%n", round, entry.getKey(), reached.size(),
+                           wrote || marks == null ? 0 : marks[0], wrote || marks == null ? 0 : marks[1]);
+                wrote = true;
+            }
+            if (!wrote && marks != null)
+                out.printf("%d,,0,%d,%d%n", round, marks[0], marks[1]);
+        }
+    }
+}
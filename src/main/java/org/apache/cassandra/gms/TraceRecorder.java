@@ -0,0 +1,257 @@
+package org.apache.cassandra.gms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records send, receive, apply, markAlive and markDead events to a compact binary trace, cheaply enough to leave on
+ * for full size simulations (unlike TRACE logging). Each node records into its own lock-free ring buffer, which is
+ * drained into a memory-mapped file at the start of every round, or by whoever finds it full. {@link TraceReader}
+ * turns a trace into per-round propagation timelines.
+ *
+ * The file is a header, fixed size records and a trailer mapping endpoint ids back to addresses:
+ * <pre>
+ * header:  magic (8), format version (4), record size (4), interval millis (8), trailer offset (8)
+ * record:  simulation nanos (8), event (4), round (4), node id (4), peer id (4), subject id (4), value (4)
+ * trailer: endpoint count (4), then per endpoint: address length (1), address
+ * </pre>
+ * Ids are {@link EndpointRegistry} ids, -1 where an event has no peer or subject. The value is the verb ordinal for
+ * send and receive, and the highest version applied for apply.
+ */
+public class TraceRecorder
+{
+    private static final Logger logger = LoggerFactory.getLogger(TraceRecorder.class);
+
+    /** events each node can hold between drains */
+    public static final int BUFFER_EVENTS = Integer.getInteger("gossipocolypse.trace.buffer", 1024);
+    /** the most the trace file can grow to; events past it are dropped */
+    public static final long MAX_BYTES = Long.getLong("gossipocolypse.trace.max.mb", 512) << 20;
+
+    static final long MAGIC = 0x474f5353545243L; // "GOSSTRC"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+    static final int TRAILER_OFFSET_POSITION = 24;
+
+    public enum Event
+    {
+        SEND, RECEIVE, APPLY, MARK_ALIVE, MARK_DEAD;
+
+        private static final Event[] values = values();
+
+        static Event fromCode(int code)
+        {
+            return values[code];
+        }
+    }
+
+    private final File file;
+    private final SimulationScheduler scheduler;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer mapped;
+    /* the next free offset in the file; drains claim their region with a getAndAdd */
+    private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+    /* where the first region that didn't fit in the file starts, so the trailer can go there */
+    private final AtomicLong overflow = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<Buffer> buffers = new CopyOnWriteArrayList<>();
+    private volatile int round;
+
+    public TraceRecorder(File file, SimulationScheduler scheduler) throws IOException
+    {
+        this.file = file;
+        this.scheduler = scheduler;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MAX_BYTES, Integer.MAX_VALUE));
+        mapped.putLong(0, MAGIC);
+        mapped.putInt(8, FORMAT_VERSION);
+        mapped.putInt(12, RECORD_SIZE);
+        mapped.putLong(16, scheduler.intervalMillis());
+        mapped.putLong(TRAILER_OFFSET_POSITION, 0);
+    }
+
+    /**
+     * @return a ring buffer for the node to record its events into
+     */
+    Buffer newBuffer(InetAddress node)
+    {
+        Buffer buffer = new Buffer(EndpointRegistry.instance.idOf(node), BUFFER_EVENTS);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    static int id(InetAddress endpoint)
+    {
+        return endpoint == null ? -1 : EndpointRegistry.instance.idOf(endpoint);
+    }
+
+    /**
+     * Drain what the last round recorded, and stamp events from here on with the new round. Called from the round action.
+     */
+    void startRound(int round)
+    {
+        this.round = round;
+        for (Buffer buffer : buffers)
+            buffer.drain();
+    }
+
+    /**
+     * Drain the remaining events and write the trailer. Should be called once the nodes have been terminated.
+     */
+    void close()
+    {
+        for (Buffer buffer : buffers)
+            buffer.drain();
+
+        EndpointRegistry registry = EndpointRegistry.instance;
+        int count = registry.size();
+        long trailerOffset = Math.min(position.get(), overflow.get());
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer trailer = ByteBuffer.allocate(4 + count * 17);
+            trailer.putInt(count);
+            for (int id = 0; id < count; id++)
+            {
+                byte[] address = registry.address(id).getAddress();
+                trailer.put((byte) address.length);
+                trailer.put(address);
+            }
+            trailer.flip();
+            mapped.putLong(TRAILER_OFFSET_POSITION, trailerOffset);
+            mapped.force();
+            channel.truncate(trailerOffset);
+            channel.write(trailer, trailerOffset);
+            raf.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("failed to finish trace " + file, e);
+            return;
+        }
+        logger.warn("wrote {} trace events to {} ({} dropped)",
+                    new Object[]{ (trailerOffset - HEADER_SIZE) / RECORD_SIZE, file, dropped.get() });
+    }
+
+    /**
+     * A node's events, until they're drained into the file. Any thread can record (a message is received on whichever
+     * thread delivers it), and any thread can drain, but only one at a time. Records are claimed by CAS on the claimed
+     * sequence, written, then published by storing their sequence in the slot's marker.
+     */
+    class Buffer
+    {
+        private static final int LONGS_PER_EVENT = 4;
+
+        private final int node;
+        private final int capacity;
+        private final long[] slots;
+        private final AtomicLongArray published;
+        private final AtomicLong claimed = new AtomicLong();
+        private volatile long consumed;
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Buffer(int node, int capacity)
+        {
+            this.node = node;
+            this.capacity = capacity;
+            slots = new long[capacity * LONGS_PER_EVENT];
+            published = new AtomicLongArray(capacity);
+        }
+
+        void record(Event event, InetAddress peer, InetAddress subject, int value)
+        {
+            long seq;
+            while (true)
+            {
+                seq = claimed.get();
+                if (seq - consumed >= capacity)
+                {
+                    // full: drain it ourselves, unless someone else already is
+                    if (!drain())
+                    {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    continue;
+                }
+                if (claimed.compareAndSet(seq, seq + 1))
+                    break;
+            }
+
+            int slot = (int) (seq % capacity);
+            int base = slot * LONGS_PER_EVENT;
+            slots[base] = scheduler.nanoTime();
+            slots[base + 1] = ((long) event.ordinal() << 32) | (round & 0xffffffffL);
+            slots[base + 2] = ((long) id(peer) << 32) | (id(subject) & 0xffffffffL);
+            slots[base + 3] = value;
+            published.lazySet(slot, seq + 1);
+        }
+
+        /**
+         * Write the published events out to the file, up to the first one that's still being written.
+         *
+         * @return false if someone else is draining
+         */
+        boolean drain()
+        {
+            if (!draining.compareAndSet(false, true))
+                return false;
+            try
+            {
+                long from = consumed;
+                long to = from;
+                long limit = claimed.get();
+                while (to < limit && published.get((int) (to % capacity)) == to + 1)
+                    to++;
+                if (to == from)
+                    return true;
+
+                long bytes = (to - from) * RECORD_SIZE;
+                long offset = position.getAndAdd(bytes);
+                if (offset + bytes > mapped.capacity())
+                {
+                    long current;
+                    while (offset < (current = overflow.get()) && !overflow.compareAndSet(current, offset));
+                    dropped.addAndGet(to - from);
+                    consumed = to;
+                    return true;
+                }
+
+                ByteBuffer out = mapped.duplicate();
+                out.position((int) offset);
+                for (long seq = from; seq < to; seq++)
+                {
+                    int base = (int) (seq % capacity) * LONGS_PER_EVENT;
+                    long eventAndRound = slots[base + 1];
+                    out.putLong(slots[base]);
+                    out.putInt((int) (eventAndRound >>> 32));
+                    out.putInt((int) eventAndRound);
+                    out.putInt(node);
+                    out.putLong(slots[base + 2]);
+                    out.putInt((int) slots[base + 3]);
+                }
+                // only now can the slots be reused
+                consumed = to;
+                return true;
+            }
+            finally
+            {
+                draining.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.apache.cassandra.gms;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Canonical VersionedValue instances, keyed by (application state, value, version), for the whole process. A value
+ * gossiped through the wire serializer is deserialized into a new instance at every node that receives it; interning
+ * it when it's applied leaves the cluster holding one instance per value rather than one per node. VersionedValue
+ * already interns its string, so this saves the per-node objects rather than the characters.
+ *
+ * Values are held weakly, so a value is dropped once no node holds it any longer (typically when a newer version has
+ * replaced it everywhere).
+ */
+public class VersionedValueInterner
+{
+    public static final VersionedValueInterner instance = new VersionedValueInterner();
+
+    private final Cache<Key, VersionedValue> values = CacheBuilder.newBuilder().weakValues().build();
+    /* values replaced by an existing canonical instance */
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    VersionedValue intern(ApplicationState state, VersionedValue value)
+    {
+        VersionedValue canonical = values.asMap().putIfAbsent(new Key(state, value), value);
+        if (canonical == null || canonical == value)
+            return value;
+        deduplicated.incrementAndGet();
+        return canonical;
+    }
+
+    /**
+     * @return the states, with their values replaced by the canonical ones
+     */
+    Map<ApplicationState, VersionedValue> intern(Map<ApplicationState, VersionedValue> states)
+    {
+        if (states.isEmpty())
+            return states;
+        Map<ApplicationState, VersionedValue> interned = new EnumMap<>(ApplicationState.class);
+        for (Map.Entry<ApplicationState, VersionedValue> entry : states.entrySet())
+            interned.put(entry.getKey(), intern(entry.getKey(), entry.getValue()));
+        return interned;
+    }
+
+    public String toString()
+    {
+        return String.format("canonical values = %d, duplicates replaced = %d", values.size(), deduplicated.get());
+    }
+
+    private static class Key
+    {
+        final ApplicationState state;
+        final int version;
+        final String value;
+
+        Key(ApplicationState state, VersionedValue value)
+        {
+            this.state = state;
+            this.version = value.version;
+            this.value = value.value;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return state == other.state && version == other.version && value.equals(other.value);
+        }
+
+        public int hashCode()
+        {
+            return 31 * (31 * state.hashCode() + version) + value.hashCode();
+        }
+    }
+}
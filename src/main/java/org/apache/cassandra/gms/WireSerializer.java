@@ -0,0 +1,233 @@
+package org.apache.cassandra.gms;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.io.IVersionedSerializer;
+import org.apache.cassandra.io.util.DataOutputByteBuffer;
+import org.apache.cassandra.net.MessageOut;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Puts messages through their real wire format: the payload is serialized on the sender straight into a pooled
+ * direct buffer, and deserialized from that buffer on the receiver. The bytes and ser/de time of every message are
+ * recorded per verb.
+ *
+ * A buffer goes back to the pool once its message is deserialized, or discarded: a message that will never be
+ * delivered (say, as the receiver's mailbox is full) must be {@link #discard(SerializedMessage)}ed, and those still in
+ * flight when the simulation ends are discarded by {@link #discardInFlight()}.
+ */
+class WireSerializer
+{
+    private static final Logger logger = LoggerFactory.getLogger(WireSerializer.class);
+    private static final int VERSION = MessagingService.current_version;
+
+    private final BufferPool pool = new BufferPool();
+    private final Map<MessagingService.Verb, VerbStats> stats = new EnumMap<>(MessagingService.Verb.class);
+    /* messages whose buffers haven't gone back to the pool */
+    private final Set<SerializedMessage> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<SerializedMessage, Boolean>());
+
+    WireSerializer()
+    {
+        for (MessagingService.Verb verb : MessagingService.Verb.values())
+            stats.put(verb, new VerbStats());
+    }
+
+    @SuppressWarnings("unchecked")
+    SerializedMessage serialize(MessageOut message)
+    {
+        VerbStats verbStats = stats.get(message.verb);
+        if (message.serializer == null || message.payload == null)
+        {
+            verbStats.record(0, 0);
+            return new SerializedMessage(message.from, message.verb, null, null);
+        }
+
+        long start = System.nanoTime();
+        IVersionedSerializer serializer = message.serializer;
+        int size = (int) serializer.serializedSize(message.payload, VERSION);
+        ByteBuffer buffer = pool.acquire(size);
+        try
+        {
+            serializer.serialize(message.payload, new DataOutputByteBuffer(buffer), VERSION);
+        }
+        catch (IOException e)
+        {
+            pool.release(buffer);
+            throw new RuntimeException("failed to serialize " + message.verb, e);
+        }
+        buffer.flip();
+        verbStats.record(buffer.remaining(), System.nanoTime() - start);
+        SerializedMessage serialized = new SerializedMessage(message.from, message.verb, serializer, buffer);
+        inFlight.add(serialized);
+        return serialized;
+    }
+
+    /**
+     * @return the payload, or null if there is none, or the message has been discarded
+     */
+    Object deserialize(SerializedMessage message)
+    {
+        if (message.buffer == null || !inFlight.remove(message))
+            return null;
+
+        long start = System.nanoTime();
+        try
+        {
+            return message.serializer.deserialize(new DataInputStream(ByteBufferUtil.inputStream(message.buffer)), VERSION);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("failed to deserialize " + message.verb, e);
+        }
+        finally
+        {
+            pool.release(message.buffer);
+            stats.get(message.verb).deserializeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Give the message's buffer back to the pool, without deserializing it.
+     */
+    void discard(SerializedMessage message)
+    {
+        if (message.buffer != null && inFlight.remove(message))
+            pool.release(message.buffer);
+    }
+
+    /**
+     * Discard every message that hasn't been delivered yet. Should be called once nothing will deliver them.
+     */
+    void discardInFlight()
+    {
+        int discarded = 0;
+        for (SerializedMessage message : inFlight)
+        {
+            if (inFlight.remove(message))
+            {
+                pool.release(message.buffer);
+                discarded++;
+            }
+        }
+        if (discarded > 0)
+            logger.warn("discarded {} messages still in flight", discarded);
+    }
+
+    void logStats()
+    {
+        for (Map.Entry<MessagingService.Verb, VerbStats> entry : stats.entrySet())
+        {
+            VerbStats verbStats = entry.getValue();
+            if (verbStats.messages.get() > 0)
+                logger.warn("wire stats for {}: {}", entry.getKey(), verbStats);
+        }
+        logger.warn("wire buffers: {} allocated, {} bytes", pool.allocated.get(), pool.allocatedBytes.get());
+    }
+
+    static class SerializedMessage
+    {
+        final InetAddress from;
+        final MessagingService.Verb verb;
+        final IVersionedSerializer<?> serializer;
+        final ByteBuffer buffer;
+
+        SerializedMessage(InetAddress from, MessagingService.Verb verb, IVersionedSerializer<?> serializer, ByteBuffer buffer)
+        {
+            this.from = from;
+            this.verb = verb;
+            this.serializer = serializer;
+            this.buffer = buffer;
+        }
+
+        int size()
+        {
+            return buffer == null ? 0 : buffer.remaining();
+        }
+    }
+
+    static class VerbStats
+    {
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong serializeNanos = new AtomicLong();
+        final AtomicLong deserializeNanos = new AtomicLong();
+
+        void record(int size, long nanos)
+        {
+            messages.incrementAndGet();
+            bytes.addAndGet(size);
+            serializeNanos.addAndGet(nanos);
+        }
+
+        public String toString()
+        {
+            long count = messages.get();
+            return String.format("messages = %d, bytes = %d (avg %d), serialize (ns/msg) = %d, deserialize (ns/msg) = %d",
+                                 count, bytes.get(), bytes.get() / count, serializeNanos.get() / count, deserializeNanos.get() / count);
+        }
+    }
+
+    /**
+     * Direct buffers, pooled by power-of-two size class.
+     */
+    static class BufferPool
+    {
+        private static final int MIN_SHIFT = 12; // 4KB
+        private static final int MAX_SHIFT = 26; // 64MB
+
+        @SuppressWarnings("unchecked")
+        private final Queue<ByteBuffer>[] classes = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLong allocatedBytes = new AtomicLong();
+
+        BufferPool()
+        {
+            for (int i = 0; i < classes.length; i++)
+                classes[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        ByteBuffer acquire(int size)
+        {
+            int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+            if (shift > MAX_SHIFT)
+                return ByteBuffer.allocateDirect(size);
+
+            ByteBuffer buffer = classes[shift - MIN_SHIFT].poll();
+            if (buffer == null)
+            {
+                buffer = ByteBuffer.allocateDirect(1 << shift);
+                allocated.incrementAndGet();
+                allocatedBytes.addAndGet(1 << shift);
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer)
+        {
+            int capacity = buffer.capacity();
+            // only pooled sizes are powers of two within the class range
+            if (Integer.bitCount(capacity) != 1)
+                return;
+            int shift = Integer.numberOfTrailingZeros(capacity);
+            if (shift < MIN_SHIFT || shift > MAX_SHIFT)
+                return;
+            classes[shift - MIN_SHIFT].offer(buffer);
+        }
+    }
+}
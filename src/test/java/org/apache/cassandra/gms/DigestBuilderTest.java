@@ -0,0 +1,70 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DigestBuilderTest
+{
+    /**
+     * Random adds and removes, past the initial slot array, leave every member in the digest exactly once.
+     */
+    @Test
+    public void addRemoveBuildStayConsistent() throws Exception
+    {
+        Random random = new Random(20140805);
+        DigestBuilder builder = new DigestBuilder(new Random(random.nextLong()));
+        List<InetAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            addresses.add(InetAddress.getByAddress(new byte[]{ 127, 0, (byte) (i >> 8), (byte) i }));
+
+        Set<InetAddress> members = new HashSet<>();
+        for (int op = 0; op < 20000; op++)
+        {
+            InetAddress address = addresses.get(random.nextInt(addresses.size()));
+            // lean towards adding, so the membership grows through the slot array resizes before it churns
+            if (random.nextInt(3) > 0 || op < 1000)
+            {
+                builder.add(address);
+                members.add(address);
+            }
+            else
+            {
+                builder.remove(address);
+                members.remove(address);
+            }
+            assertEquals(members.size(), builder.size());
+            if (op % 97 == 0)
+                assertDigests(builder, members);
+        }
+        assertDigests(builder, members);
+
+        for (InetAddress address : addresses)
+            builder.remove(address);
+        assertDigests(builder, Collections.<InetAddress>emptySet());
+    }
+
+    private static void assertDigests(DigestBuilder builder, Set<InetAddress> members)
+    {
+        List<GossipDigest> digests = new ArrayList<>();
+        // no states, so every digest is the placeholder, and the gossiper is never asked for a version
+        builder.build(Collections.<InetAddress, EndpointState>emptyMap(), null, digests);
+        assertEquals(members.size(), digests.size());
+        Set<InetAddress> endpoints = new HashSet<>();
+        for (GossipDigest digest : digests)
+        {
+            endpoints.add(digest.getEndpoint());
+            assertEquals(0, digest.getGeneration());
+            assertEquals(0, digest.getMaxVersion());
+        }
+        assertEquals(members, endpoints);
+    }
+}
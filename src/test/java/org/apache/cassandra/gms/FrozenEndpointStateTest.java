@@ -0,0 +1,128 @@
+package org.apache.cassandra.gms;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrozenEndpointStateTest
+{
+    private final SimulatedValueFactory values = new SimulatedValueFactory();
+
+    @Test
+    public void mergeMakesNewVersions()
+    {
+        VersionedValue load = values.load(1);
+        VersionedValue rack = values.rack("r1");
+        FrozenHeartBeatState beat = new FrozenHeartBeatState(1, 0);
+        FrozenEndpointState empty = new FrozenEndpointState(beat);
+        FrozenEndpointState first = empty.with(ApplicationState.LOAD, load);
+        assertEquals(0, empty.states.size());
+        assertEquals(load.version, first.maxAppStateVersion);
+
+        FrozenHeartBeatState nextBeat = beat.nextBeat(values.nextVersion());
+        FrozenEndpointState second = first.merge(nextBeat, Collections.singletonMap(ApplicationState.RACK, rack));
+        assertSame(beat, first.heartBeat);
+        assertEquals(1, first.states.size());
+        assertSame(nextBeat, second.heartBeat);
+        assertSame(load, second.states.get(ApplicationState.LOAD));
+        assertSame(rack, second.states.get(ApplicationState.RACK));
+        assertEquals(rack.version, second.maxAppStateVersion);
+        assertEquals(nextBeat.getHeartBeatVersion(), second.getMaxVersion());
+
+        // nothing changes, nothing new
+        assertSame(second, second.with(ApplicationState.RACK, rack));
+        assertSame(second, second.withHeartBeat(nextBeat));
+        assertSame(second, second.merge(nextBeat, FrozenEndpointState.NO_STATES));
+    }
+
+    @Test
+    public void beatsShareApplicationStates()
+    {
+        FrozenEndpointState state = new FrozenEndpointState(new FrozenHeartBeatState(1, 0)).with(ApplicationState.LOAD, values.load(1));
+        FrozenEndpointState beaten = state.withHeartBeat(state.heartBeat.nextBeat(values.nextVersion()));
+        assertNotSame(state, beaten);
+        assertSame(state.states, beaten.states);
+        assertEquals(state.maxAppStateVersion, beaten.maxAppStateVersion);
+
+        MaxVersionEndpointState epState = new MaxVersionEndpointState(state);
+        int version = values.nextVersion();
+        epState.updateHeartBeat(version);
+        assertSame(state.states, epState.getApplicationStateMap());
+        assertEquals(version, epState.getMaxVersion());
+        epState.forceNewerGeneration();
+        assertEquals(2, epState.getHeartBeatState().getGeneration());
+        assertSame(state.states, epState.getApplicationStateMap());
+    }
+
+    @Test
+    public void sameAsComparesContentsByIdentity()
+    {
+        VersionedValue load = values.load(1);
+        FrozenHeartBeatState beat = new FrozenHeartBeatState(1, 5);
+        FrozenEndpointState state = new FrozenEndpointState(beat).with(ApplicationState.LOAD, load);
+
+        assertTrue(state.sameAs(state));
+        assertTrue(state.sameAs(new FrozenEndpointState(new FrozenHeartBeatState(1, 5)).with(ApplicationState.LOAD, load)));
+        assertFalse(state.sameAs(state.withHeartBeat(beat.nextBeat(6))));
+        assertFalse(state.sameAs(state.withHeartBeat(beat.newerGeneration())));
+        assertFalse(state.sameAs(new FrozenEndpointState(beat)));
+        // an equal value, but not the same one
+        assertFalse(state.sameAs(new FrozenEndpointState(beat).with(ApplicationState.LOAD, values.cloneWithHigherVersion(load))));
+    }
+
+    @Test
+    public void copyOfSharesTheSendersVersion()
+    {
+        FrozenEndpointState sent = new FrozenEndpointState(new FrozenHeartBeatState(1, 0))
+                                   .with(ApplicationState.LOAD, values.load(1))
+                                   .with(ApplicationState.RACK, values.rack("r1"));
+
+        // the receiver rebuilds the sender's version from the whole delta, so takes the sender's
+        MaxVersionEndpointState received = MaxVersionEndpointState.copyOf(sent.toDelta());
+        assertSame(sent, received.frozen());
+
+        // another node's entry is shared as is
+        assertSame(sent, MaxVersionEndpointState.copyOf(received).frozen());
+
+        // a delta of part of the state makes a version of the receiver's own
+        FrozenEndpointState.Delta partial = new FrozenEndpointState.Delta(sent);
+        partial.addApplicationState(ApplicationState.LOAD, sent.states.get(ApplicationState.LOAD));
+        FrozenEndpointState built = MaxVersionEndpointState.copyOf(partial).frozen();
+        assertNotSame(sent, built);
+        assertEquals(1, built.states.size());
+
+        // and merging the rest in ends up at the sender's again
+        MaxVersionEndpointState merged = MaxVersionEndpointState.copyOf(partial);
+        merged.merge(sent.toDelta());
+        assertSame(sent, merged.frozen());
+    }
+
+    @Test
+    public void copyOfStateOffTheWire()
+    {
+        Map<ApplicationState, VersionedValue> states = new EnumMap<>(ApplicationState.class);
+        states.put(ApplicationState.LOAD, values.load(1));
+        states.put(ApplicationState.RACK, values.rack("r1"));
+        EndpointState wire = new EndpointState(new HeartBeatState(3, values.nextVersion()));
+        for (Map.Entry<ApplicationState, VersionedValue> entry : states.entrySet())
+            wire.addApplicationState(entry.getKey(), entry.getValue());
+
+        MaxVersionEndpointState copy = MaxVersionEndpointState.copyOf(wire);
+        assertEquals(3, copy.getHeartBeatState().getGeneration());
+        assertEquals(wire.getHeartBeatState().getHeartBeatVersion(), copy.getMaxVersion());
+        assertEquals(states.keySet(), copy.getApplicationStateMap().keySet());
+        for (Map.Entry<ApplicationState, VersionedValue> entry : states.entrySet())
+        {
+            assertEquals(entry.getValue().value, copy.getApplicationState(entry.getKey()).value);
+            assertEquals(entry.getValue().version, copy.getApplicationState(entry.getKey()).version);
+        }
+    }
+}
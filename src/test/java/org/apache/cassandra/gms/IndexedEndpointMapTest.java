@@ -0,0 +1,129 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedEndpointMapTest
+{
+    /* enough endpoints to span a few chunks, and end part way into the last */
+    private static final int ENDPOINTS = IndexedEndpointMap.CHUNK_SIZE * 3 + 5;
+
+    static InetAddress endpoint(int i) throws UnknownHostException
+    {
+        return InetAddress.getByAddress(new byte[]{ 127, (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+    }
+
+    /* endpoints registered in order, so endpoint i has id i */
+    static List<InetAddress> endpoints(EndpointRegistry registry, int count) throws UnknownHostException
+    {
+        List<InetAddress> endpoints = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            InetAddress endpoint = endpoint(i);
+            assertEquals(i, registry.idOf(endpoint));
+            endpoints.add(endpoint);
+        }
+        return endpoints;
+    }
+
+    @Test
+    public void putGetRemoveAcrossChunks() throws Exception
+    {
+        EndpointRegistry registry = new EndpointRegistry();
+        List<InetAddress> endpoints = endpoints(registry, ENDPOINTS);
+        IndexedEndpointMap<Integer> map = new IndexedEndpointMap<>(registry);
+
+        for (int i = 0; i < ENDPOINTS; i++)
+            assertNull(map.put(endpoints.get(i), i));
+        assertEquals(ENDPOINTS, map.size());
+        for (int i = 0; i < ENDPOINTS; i++)
+            assertEquals(Integer.valueOf(i), map.get(endpoints.get(i)));
+        assertEquals(Integer.valueOf(0), map.put(endpoints.get(0), -1));
+        assertEquals(ENDPOINTS, map.size());
+
+        // either side of each chunk boundary
+        for (int chunk = 1; chunk <= 3; chunk++)
+        {
+            int boundary = chunk * IndexedEndpointMap.CHUNK_SIZE;
+            assertEquals(Integer.valueOf(boundary - 1), map.remove(endpoints.get(boundary - 1)));
+            assertEquals(Integer.valueOf(boundary), map.remove(endpoints.get(boundary)));
+            assertNull(map.remove(endpoints.get(boundary)));
+            assertFalse(map.containsKey(endpoints.get(boundary)));
+        }
+        assertEquals(ENDPOINTS - 6, map.size());
+        assertNull(map.get(endpoint(ENDPOINTS)));
+        assertNull(map.remove(endpoint(ENDPOINTS)));
+    }
+
+    @Test
+    public void conditionalUpdates() throws Exception
+    {
+        EndpointRegistry registry = new EndpointRegistry();
+        List<InetAddress> endpoints = endpoints(registry, 2);
+        IndexedEndpointMap<String> map = new IndexedEndpointMap<>(registry);
+
+        assertNull(map.putIfAbsent(endpoints.get(0), "a"));
+        assertEquals("a", map.putIfAbsent(endpoints.get(0), "b"));
+        assertFalse(map.replace(endpoints.get(0), "b", "c"));
+        assertTrue(map.replace(endpoints.get(0), "a", "c"));
+        assertEquals("c", map.replace(endpoints.get(0), "d"));
+        assertNull(map.replace(endpoints.get(1), "d"));
+        assertFalse(map.remove(endpoints.get(0), "c"));
+        assertTrue(map.remove(endpoints.get(0), "d"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void iteratesInIdOrderSkippingEmptyChunks() throws Exception
+    {
+        EndpointRegistry registry = new EndpointRegistry();
+        List<InetAddress> endpoints = endpoints(registry, ENDPOINTS);
+        IndexedEndpointMap<Integer> map = new IndexedEndpointMap<>(registry);
+
+        // nothing in the first two chunks, so they're never allocated
+        List<Integer> expected = new ArrayList<>();
+        for (int i = IndexedEndpointMap.CHUNK_SIZE * 2; i < ENDPOINTS; i += 3)
+        {
+            map.put(endpoints.get(i), i);
+            expected.add(i);
+        }
+        map.put(endpoints.get(0), 0);
+        expected.add(0, 0);
+
+        List<Integer> iterated = new ArrayList<>();
+        for (Map.Entry<InetAddress, Integer> entry : map.entrySet())
+        {
+            assertEquals(endpoints.get(entry.getValue()), entry.getKey());
+            iterated.add(entry.getValue());
+        }
+        assertEquals(expected, iterated);
+
+        // removal and write through from the iterator
+        for (Iterator<Map.Entry<InetAddress, Integer>> iter = map.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry<InetAddress, Integer> entry = iter.next();
+            if (entry.getValue() % 2 == 0)
+                iter.remove();
+            else
+                entry.setValue(-entry.getValue());
+        }
+        for (Map.Entry<InetAddress, Integer> entry : map.entrySet())
+            assertTrue(entry.getValue() < 0);
+        assertEquals(map.size(), new ArrayList<>(map.keySet()).size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+}
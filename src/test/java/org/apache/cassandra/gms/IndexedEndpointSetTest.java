@@ -0,0 +1,78 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.apache.cassandra.gms.IndexedEndpointMapTest.endpoint;
+import static org.apache.cassandra.gms.IndexedEndpointMapTest.endpoints;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedEndpointSetTest
+{
+    /* a chunk holds 4096 ids; span two of them, and end part way into a word of the third */
+    private static final int ENDPOINTS = 4096 * 2 + 70;
+
+    @Test
+    public void addRemoveAcrossWordsAndChunks() throws Exception
+    {
+        EndpointRegistry registry = new EndpointRegistry();
+        List<InetAddress> endpoints = endpoints(registry, ENDPOINTS);
+        IndexedEndpointSet set = new IndexedEndpointSet(registry);
+
+        for (InetAddress endpoint : endpoints)
+            assertTrue(set.add(endpoint));
+        assertFalse(set.add(endpoints.get(4096)));
+        assertEquals(ENDPOINTS, set.size());
+
+        // either side of a word boundary, and of each chunk boundary
+        for (int id : new int[]{ 63, 64, 4095, 4096, 8191, 8192 })
+        {
+            assertTrue(set.remove(endpoints.get(id)));
+            assertFalse(set.remove(endpoints.get(id)));
+            assertFalse(set.contains(endpoints.get(id)));
+        }
+        assertEquals(ENDPOINTS - 6, set.size());
+        assertTrue(set.contains(endpoints.get(65)));
+        assertFalse(set.contains(endpoint(ENDPOINTS)));
+        assertFalse(set.remove(endpoint(ENDPOINTS)));
+    }
+
+    @Test
+    public void iteratesInIdOrder() throws Exception
+    {
+        EndpointRegistry registry = new EndpointRegistry();
+        List<InetAddress> endpoints = endpoints(registry, ENDPOINTS);
+        IndexedEndpointSet set = new IndexedEndpointSet(registry);
+
+        // nothing in the first chunk, then sparse bits in some words and not others
+        List<InetAddress> expected = new ArrayList<>();
+        for (int i = 4096 + 1; i < ENDPOINTS; i += 61)
+        {
+            set.add(endpoints.get(i));
+            expected.add(endpoints.get(i));
+        }
+        set.add(endpoints.get(ENDPOINTS - 1));
+        expected.add(endpoints.get(ENDPOINTS - 1));
+        assertEquals(expected, new ArrayList<>(set));
+
+        for (Iterator<InetAddress> iter = set.iterator(); iter.hasNext(); )
+        {
+            iter.next();
+            iter.remove();
+        }
+        assertTrue(set.isEmpty());
+        assertFalse(set.iterator().hasNext());
+
+        set.add(endpoints.get(0));
+        set.add(endpoints.get(ENDPOINTS - 1));
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.iterator().hasNext());
+    }
+}
@@ -0,0 +1,90 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.apache.cassandra.gms.IndexedEndpointMapTest.endpoint;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MembershipViewTest
+{
+    @Test
+    public void randomOfEmptyAndSingleViews() throws Exception
+    {
+        MembershipView view = new MembershipView();
+        Random random = new Random(0);
+        assertNull(view.random(random));
+
+        InetAddress only = endpoint(1);
+        view.add(only);
+        for (int i = 0; i < 10; i++)
+            assertEquals(only, view.random(random));
+
+        view.remove(only);
+        assertNull(view.random(random));
+    }
+
+    @Test
+    public void randomPicksEveryMember() throws Exception
+    {
+        MembershipView view = new MembershipView();
+        Set<InetAddress> members = new HashSet<>();
+        for (int i = 0; i < 10; i++)
+        {
+            view.add(endpoint(i));
+            members.add(endpoint(i));
+        }
+        view.remove(endpoint(4));
+        members.remove(endpoint(4));
+
+        Set<InetAddress> picked = new HashSet<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++)
+            picked.add(view.random(random));
+        assertEquals(members, picked);
+    }
+
+    @Test
+    public void addRemoveAndIterate() throws Exception
+    {
+        MembershipView view = new MembershipView();
+        assertTrue(view.add(endpoint(1)));
+        assertTrue(view.add(endpoint(2)));
+        assertTrue(view.add(endpoint(3)));
+        assertFalse(view.add(endpoint(2)));
+        assertEquals(3, view.size());
+        assertTrue(view.contains(endpoint(2)));
+
+        assertTrue(view.remove(endpoint(2)));
+        assertFalse(view.remove(endpoint(2)));
+        assertFalse(view.contains(endpoint(2)));
+        assertEquals(Arrays.asList(endpoint(1), endpoint(3)), new ArrayList<>(view));
+
+        // the iterator carries on over the members as of its creation, and removes from the view
+        Iterator<InetAddress> iter = view.iterator();
+        view.add(endpoint(4));
+        List<InetAddress> iterated = new ArrayList<>();
+        while (iter.hasNext())
+        {
+            iterated.add(iter.next());
+            iter.remove();
+        }
+        assertEquals(Arrays.asList(endpoint(1), endpoint(3)), iterated);
+        assertEquals(Arrays.asList(endpoint(4)), new ArrayList<>(view));
+
+        view.clear();
+        assertEquals(0, view.size());
+        assertNull(view.random(new Random(0)));
+    }
+}
@@ -0,0 +1,58 @@
+package org.apache.cassandra.gms;
+
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkPartitionsTest
+{
+    @Test
+    public void cutsOffNodesPlacedAfterScheduling() throws Exception
+    {
+        Topology topology = topology();
+        // dc1, dc2, dc1
+        InetAddress first = topology.place(0);
+        InetAddress second = topology.place(1);
+        InetAddress third = topology.place(2);
+        NetworkPartitions partitions = new NetworkPartitions.Builder(topology).isolate("dc2", 100, 200).build();
+
+        assertTrue(partitions.blocks(first, second, 100));
+        assertTrue(partitions.blocks(second, first, 199));
+        assertFalse(partitions.blocks(first, third, 150));
+        assertFalse(partitions.blocks(first, second, 99));
+        assertFalse(partitions.blocks(first, second, 200));
+
+        // brought in by churn once the partitions were scheduled
+        InetAddress joined = topology.place(3);
+        assertTrue(partitions.blocks(first, joined, 150));
+        assertFalse(partitions.blocks(second, joined, 150));
+
+        // the topology never placed it, so it's outside the datacenter
+        InetAddress stranger = InetAddress.getByAddress(new byte[]{ 127, 0, 0, 1 });
+        assertTrue(partitions.blocks(stranger, joined, 150));
+        assertFalse(partitions.blocks(stranger, first, 150));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDatacenter()
+    {
+        new NetworkPartitions.Builder(topology()).isolate("dc3", 100, 200);
+    }
+
+    private static Topology topology()
+    {
+        LinkedHashMap<String, Integer> racks = new LinkedHashMap<>();
+        racks.put("dc1", 1);
+        racks.put("dc2", 1);
+        Map<Topology.LinkClass, LinkModel.Link> links = new EnumMap<>(Topology.LinkClass.class);
+        for (Topology.LinkClass linkClass : Topology.LinkClass.values())
+            links.put(linkClass, LinkModel.PERFECT.link(null, null));
+        return new Topology(racks, links);
+    }
+}
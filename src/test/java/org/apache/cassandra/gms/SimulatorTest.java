@@ -0,0 +1,124 @@
+package org.apache.cassandra.gms;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Whole simulations, on the discrete event scheduler so they are the same every time.
+ */
+public class SimulatorTest
+{
+    /* the per-round metrics that don't depend on the wall clock */
+    private static final String[] REPLAYED_COLUMNS = { "round", "syn", "ack", "ack2", "bytes", "syn_digests", "ack_digests",
+                                                       "ack_states", "ack2_states", "other" };
+
+    @BeforeClass
+    public static void setUp()
+    {
+        System.setProperty("cassandra.config", "file://" + System.getProperty("user.dir") + "/src/main/resources/cassandra.yaml");
+    }
+
+    /**
+     * A run replayed on its own sees exactly what it saw next to another cell, whose nodes version their states
+     * at the same time.
+     */
+    @Test
+    public void replayIsIndependentOfOtherCells() throws Exception
+    {
+        Map<String, Object> spec = spec();
+        spec.put("nodes", "25;50");
+        spec.put("churn", "change@10");
+        spec.put("parallelism", "2");
+        Simulator.Result beside = result(new ScenarioRunner(new Scenario(spec)).run(), 0);
+
+        spec.put("replay", "0:0");
+        Simulator.Result alone = result(new ScenarioRunner(new Scenario(spec)).run(), 0);
+
+        assertTrue(alone.converged);
+        assertEquals(alone.rounds, beside.rounds);
+        assertEquals(alone.messages, beside.messages);
+        for (String column : REPLAYED_COLUMNS)
+            assertArrayEquals(column, alone.metrics.column(column), beside.metrics.column(column));
+    }
+
+    /**
+     * Heartbeats have to be versioned past the application states for them to be gossiped at all; if they aren't,
+     * nothing reports to the failure detectors and healthy nodes get convicted.
+     */
+    @Test
+    public void quietClusterConvictsNobody() throws Exception
+    {
+        Map<String, Object> spec = spec();
+        spec.put("nodes", "300");
+        spec.put("seeds", "10");
+        // nothing goes down, the change just keeps the run going for 100 rounds
+        spec.put("churn", "change@100");
+        Simulator.Result result = result(new ScenarioRunner(new Scenario(spec)).run(), 0);
+
+        assertTrue(result.converged);
+        assertTrue(result.rounds >= 100);
+        assertEquals(0, result.failureDetection.convictions.get());
+    }
+
+    /**
+     * A change made long after startup is versioned past every node's heartbeat, so is gossiped to (and counted at)
+     * every node, rather than being passed over as older than what they already have.
+     */
+    @Test
+    public void lateChangeReachesEveryNode() throws Exception
+    {
+        Map<String, Object> spec = spec();
+        spec.put("nodes", "25");
+        spec.put("churn", "change@201");
+        Simulator.Result result = result(new ScenarioRunner(new Scenario(spec)).run(), 0);
+
+        assertTrue(result.converged);
+        List<DisseminationTracker.Change> changes = result.dissemination.changes();
+        assertEquals(1, changes.size());
+        DisseminationTracker.Change change = changes.get(0);
+        assertEquals(24, change.expected);
+        assertEquals(change.expected, change.reached.get());
+        assertTrue(change.millisTo(DisseminationTracker.PERCENTILES.length - 1) >= 0);
+    }
+
+    @Test
+    public void runEndsAtTheRoundLimit() throws Exception
+    {
+        Map<String, Object> spec = spec();
+        spec.put("rounds", "30");
+        // would keep the run going past the limit
+        spec.put("churn", "change@100");
+        Simulator.Result result = result(new ScenarioRunner(new Scenario(spec)).run(), 0);
+
+        assertFalse(result.converged);
+        assertEquals(30, result.rounds);
+    }
+
+    private static Map<String, Object> spec()
+    {
+        Map<String, Object> spec = new HashMap<>();
+        spec.put("name", "simulator-test");
+        spec.put("seed", "20140805");
+        spec.put("scheduler", SimulationScheduler.Type.DISCRETE_EVENT.name());
+        return spec;
+    }
+
+    private static Simulator.Result result(List<Simulator.Result> results, int cell)
+    {
+        for (Simulator.Result result : results)
+        {
+            if (result.cell.index == cell)
+                return result;
+        }
+        throw new AssertionError("no result for cell " + cell);
+    }
+}